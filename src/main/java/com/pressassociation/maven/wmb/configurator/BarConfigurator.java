@@ -15,6 +15,15 @@ import java.util.Properties;
 public interface BarConfigurator {
     final String ROLE = BarConfigurator.class.getName();
 
+    /**
+     * Set where nested application and library archives are processed: in memory up to the given size, beyond which
+     * they are spilled to a private directory beneath the given directory, removed once each operation completes.
+     *
+     * @param directory       Directory beneath which nested archives are spilled
+     * @param memoryThreshold Size in bytes up to which nested archives are held in memory
+     */
+    void setScratchSpace(File directory, long memoryThreshold);
+
     /**
      * Perform a configuration operation.
      *
@@ -27,6 +36,32 @@ public interface BarConfigurator {
     Artifact configure(Artifact sourceArtifact, File targetArtifactFile, Properties properties)
             throws IOException, MojoExecutionException, ParsingException;
 
+    /**
+     * Perform a configuration operation, optionally writing the configured archive in reproducible form.
+     *
+     * @param sourceArtifact     Artifact to configure
+     * @param targetArtifactFile Destination filename
+     * @param properties         Properties to configure BAR with
+     * @param normalize          Whether to normalise the configured archive
+     * @throws IOException
+     * @throws MojoExecutionException
+     */
+    Artifact configure(Artifact sourceArtifact, File targetArtifactFile, Properties properties, boolean normalize)
+            throws IOException, MojoExecutionException, ParsingException;
+
+    /**
+     * Perform a configuration operation for several targets in a single pass over the source artifact. The source is
+     * read once and its unchanged entries copied to every target, only the descriptors being transformed for each.
+     *
+     * @param sourceArtifact Artifact to configure
+     * @param targets        Destination filenames mapped to the properties to configure each with
+     * @param normalize      Whether to normalise the configured archives
+     * @throws IOException
+     * @throws MojoExecutionException
+     */
+    Artifact configure(Artifact sourceArtifact, Map<File, Properties> targets, boolean normalize)
+            throws IOException, MojoExecutionException, ParsingException;
+
     /**
      * Extract properties from broker archive into a map.
      *
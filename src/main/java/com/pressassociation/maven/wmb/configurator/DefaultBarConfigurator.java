@@ -1,27 +1,39 @@
 package com.pressassociation.maven.wmb.configurator;
 
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
-import com.google.common.io.ByteStreams;
-import com.google.common.io.InputSupplier;
-import com.google.common.io.OutputSupplier;
-import com.pressassociation.maven.wmb.types.BarFile;
-import com.pressassociation.maven.wmb.utils.ElementIterable;
-import nu.xom.*;
+import com.pressassociation.maven.wmb.packager.BarNormalizer;
+import com.pressassociation.maven.wmb.utils.ConfigurablePropertyReader;
+import com.pressassociation.maven.wmb.utils.RawZipFile;
+import com.pressassociation.maven.wmb.utils.RawZipOutputStream;
+import com.pressassociation.maven.wmb.utils.ScratchSpace;
+import nu.xom.ParsingException;
 import org.apache.maven.artifact.Artifact;
 import org.codehaus.plexus.component.annotations.Component;
 import org.codehaus.plexus.logging.AbstractLogEnabled;
 import org.codehaus.plexus.util.IOUtil;
 
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartDocument;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
 import java.io.*;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 import static com.google.common.base.Preconditions.checkNotNull;
-import static com.pressassociation.maven.wmb.utils.TypeSafetyHelper.typeSafeCaptureOfIterable;
 
 /**
  * @author Bob Browning <bob.browning@pressassociation.com>
@@ -32,126 +44,261 @@ public class DefaultBarConfigurator extends AbstractLogEnabled implements BarCon
     private static final String BROKER_XML_ENTRY = "META-INF/broker.xml";
     private static final String ATTR_URI = "uri";
     private static final String ATTR_OVERRIDE = "override";
-    private static final String XPATH_CONFIGURABLE_PROPERTY = "//ConfigurableProperty";
     private static final String EXT_LIBRARY = ".libzip";
     private static final String EXT_APPLICATION = ".appzip";
+    private static final String ENCODING = "UTF-8";
+    private static final long DEFAULT_MEMORY_THRESHOLD = 32 * 1024 * 1024;
 
-    @Override
-    public Artifact configure(Artifact sourceArtifact, final File targetArtifactFile, Properties properties) throws IOException, ParsingException {
-        final BarFile file = new BarFile(sourceArtifact.getFile());
-        getLogger().info("Configuring source artifact : " + sourceArtifact);
+    private static final QName CONFIGURABLE_PROPERTY = new QName("ConfigurableProperty");
+    private static final QName ATTR_URI_NAME = new QName(ATTR_URI);
+    private static final QName ATTR_OVERRIDE_NAME = new QName(ATTR_OVERRIDE);
 
-        repackArchive(file, createZipOutputStreamSupplier(targetArtifactFile), Sets.<String>newHashSet(), properties);
+    private final XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+    private final XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+    private final XMLEventFactory eventFactory = XMLEventFactory.newInstance();
 
-        return sourceArtifact;
+    /**
+     * Directory beneath which nested archives too large to be held in memory are spilled.
+     */
+    private File scratchDirectory = new File(System.getProperty("java.io.tmpdir"));
+
+    /**
+     * Size in bytes up to which nested archives are held in memory.
+     */
+    private long memoryThreshold = DEFAULT_MEMORY_THRESHOLD;
+
+    @Override
+    public void setScratchSpace(File directory, long memoryThreshold) {
+        this.scratchDirectory = checkNotNull(directory);
+        this.memoryThreshold = memoryThreshold;
     }
 
-    private OutputSupplier<ZipOutputStream> createZipOutputStreamSupplier(final File file) {
-        return new OutputSupplier<ZipOutputStream>() {
-            @Override public ZipOutputStream getOutput() throws IOException {
-                return new ZipOutputStream(new FileOutputStream(file));
-            }
-        };
+    @Override
+    public Artifact configure(Artifact sourceArtifact, final File targetArtifactFile, Properties properties) throws IOException, ParsingException {
+        return configure(sourceArtifact, targetArtifactFile, properties, false);
     }
 
-    private void repackArchive(BarFile file, OutputSupplier<ZipOutputStream> supplier, Set<String> resources, Properties properties) throws IOException, ParsingException {
-        ZipOutputStream zos = supplier.getOutput();
+    @Override
+    public Artifact configure(Artifact sourceArtifact, File targetArtifactFile, Properties properties, boolean normalize) throws IOException, ParsingException {
+        return configure(sourceArtifact, ImmutableMap.of(targetArtifactFile, properties), normalize);
+    }
+
+    @Override
+    public Artifact configure(Artifact sourceArtifact, Map<File, Properties> targets, boolean normalize) throws IOException, ParsingException {
+        final RawZipFile file = RawZipFile.open(sourceArtifact.getFile());
+        if (targets.size() == 1) {
+            getLogger().info("Configuring source artifact : " + sourceArtifact);
+        } else {
+            getLogger().info("Configuring source artifact : " + sourceArtifact + " into " + targets.size() + " archives");
+        }
+
+        ScratchSpace scratch = new ScratchSpace(scratchDirectory, memoryThreshold);
+        List<Target> outputs = Lists.newArrayList();
+        boolean success = false;
         try {
-            repackArchive(file, zos, resources, properties);
+            try {
+                for (Map.Entry<File, Properties> target : targets.entrySet()) {
+                    outputs.add(new Target(new RawZipOutputStream(new FileOutputStream(target.getKey())),
+                            Maps.fromProperties(target.getValue())));
+                }
+                repackArchive(file, outputs, Sets.<String>newHashSet(), scratch);
+                for (Target target : outputs) {
+                    target.zos.close();
+                }
+                success = true;
+            } finally {
+                for (Target target : outputs) {
+                    IOUtil.close(target.zos);
+                }
+                /* Leave no truncated archive behind to be mistaken for a configured one */
+                if (!success) {
+                    for (File targetArtifactFile : targets.keySet()) {
+                        if (targetArtifactFile.exists() && !targetArtifactFile.delete()) {
+                            getLogger().warn("Unable to remove partially configured " + targetArtifactFile);
+                        }
+                    }
+                }
+            }
         } finally {
-            zos.close();
+            scratch.close();
+            file.close();
+        }
+
+        if (normalize) {
+            for (File targetArtifactFile : targets.keySet()) {
+                new BarNormalizer().normalize(targetArtifactFile);
+            }
         }
+
+        return sourceArtifact;
     }
 
-    private void repackArchive(BarFile file, ZipOutputStream zos, Set<String> resources, Properties properties) throws IOException, ParsingException {
-        for (ZipEntry entry : typeSafeCaptureOfIterable(file.entries())) {
+    /**
+     * Repack an archive into every target, copying unchanged entries as they are stored and only decompressing the
+     * descriptor and nested archives, which are rewritten. Every target receives the same entries, so the set of
+     * handled resources is shared between them.
+     */
+    private void repackArchive(RawZipFile file, List<Target> targets, Set<String> resources, ScratchSpace scratch)
+            throws IOException, ParsingException {
+        for (RawZipFile.Entry entry : file.getEntries()) {
             if (!entry.isDirectory()) {
-                InputStream is = file.getInputStream(entry);
+                repackEntry(file, entry, targets, resources, scratch);
+            }
+        }
+    }
+
+    private void repackEntry(RawZipFile file, RawZipFile.Entry entry, List<Target> targets, Set<String> resources,
+                             ScratchSpace scratch) throws IOException, ParsingException {
+        String name = entry.getName();
+        int idx = name.lastIndexOf("/");
+        if (idx != -1) {
+            String dir = name.substring(0, idx);
+            if (!resources.contains(dir)) {
+                addDirectory(resources, targets, dir);
+            }
+        }
+        if (resources.contains(name)) {
+            return;
+        }
+        if (isNestedArchive(name)) {
+            /* Nested archives are configured straight into the entry of each enclosing archive */
+            ScratchSpace.Content content = storeEntry(file, entry, scratch);
+            try {
+                RawZipFile nestedFile = openContent(content);
                 try {
-                    final String name = entry.getName();
-                    int idx = name.lastIndexOf("/");
-                    if (idx != -1) {
-                        String dir = name.substring(0, idx);
-                        if (!resources.contains(dir)) {
-                            addDirectory(resources, zos, dir);
-                        }
+                    List<Target> nested = Lists.newArrayListWithCapacity(targets.size());
+                    for (Target target : targets) {
+                        target.zos.putNextEntry(name);
+                        nested.add(new Target(new RawZipOutputStream(target.zos), target.properties));
                     }
-                    if (resources.contains(name)) {
-                        continue;
-                    }
-                    if (name.endsWith(EXT_LIBRARY) || name.endsWith(EXT_APPLICATION)) {
-                        File tmpFile = createTemporaryExtractedFile(name, is);
-                        final File tmpTargetFile = File.createTempFile("temp", name);
-                        try {
-                            repackArchive(new BarFile(tmpFile), createZipOutputStreamSupplier(tmpTargetFile), Sets.<String>newHashSet(), properties);
-                            zos.putNextEntry(new ZipEntry(name));
-                            ByteStreams.copy(new InputSupplier<InputStream>() {
-                                @Override public InputStream getInput() throws IOException {
-                                    return new FileInputStream(tmpTargetFile);
-                                }
-                            }, zos);
-                            resources.add(name);
-                        } finally {
-                            tmpFile.delete();
-                            tmpTargetFile.delete();
-                        }
-                    } else if (BROKER_XML_ENTRY.equals(name)) {
-                        addTransformBrokerXml(resources, zos, is, Maps.fromProperties(properties));
-                    } else {
-                        addResource(resources, zos, name, is);
+                    repackArchive(nestedFile, nested, Sets.<String>newHashSet(), scratch);
+                    for (Target target : nested) {
+                        target.zos.finish();
                     }
                 } finally {
-                    IOUtil.close(is);
+                    nestedFile.close();
                 }
+                resources.add(name);
+            } finally {
+                content.release();
+            }
+        } else if (BROKER_XML_ENTRY.equals(name) && targets.size() == 1) {
+            InputStream is = file.getInputStream(entry);
+            try {
+                addTransformBrokerXml(resources, targets.get(0).zos, is, targets.get(0).properties);
+            } finally {
+                IOUtil.close(is);
+            }
+        } else if (BROKER_XML_ENTRY.equals(name)) {
+            /* The descriptor is inflated once and transformed for each target from the scratch space */
+            ScratchSpace.Content content = storeEntry(file, entry, scratch);
+            try {
+                for (Target target : targets) {
+                    InputStream is = content.openStream();
+                    try {
+                        addTransformBrokerXml(resources, target.zos, is, target.properties);
+                    } finally {
+                        IOUtil.close(is);
+                    }
+                }
+            } finally {
+                content.release();
+            }
+        } else if (targets.size() == 1) {
+            addResource(resources, targets.get(0).zos, file, entry);
+        } else {
+            /* Content is read from the source once, however many archives it is copied to */
+            InputStream is = file.getRawInputStream(entry);
+            ScratchSpace.Content content;
+            try {
+                content = scratch.store(name, is);
+            } finally {
+                IOUtil.close(is);
+            }
+            try {
+                addResource(resources, targets, entry, content);
+            } finally {
+                content.release();
             }
         }
     }
 
-    private File createTemporaryExtractedFile(String originalFilename, InputStream is) throws IOException {
-        final File tmpFile = File.createTempFile("zip", "-" + originalFilename);
-        ByteStreams.copy(is, new OutputSupplier<OutputStream>() {
-            @Override public OutputStream getOutput() throws IOException {
-                return new FileOutputStream(tmpFile);
-            }
-        });
-        return tmpFile;
+    private static boolean isNestedArchive(String name) {
+        return name.endsWith(EXT_LIBRARY) || name.endsWith(EXT_APPLICATION);
+    }
+
+    private static ScratchSpace.Content storeEntry(RawZipFile file, RawZipFile.Entry entry, ScratchSpace scratch)
+            throws IOException {
+        InputStream is = file.getInputStream(entry);
+        try {
+            return scratch.store(entry.getName(), is);
+        } finally {
+            IOUtil.close(is);
+        }
+    }
+
+    private static RawZipFile openContent(ScratchSpace.Content content) throws IOException {
+        return content.isInMemory() ? RawZipFile.open(content.getBytes()) : RawZipFile.open(content.getFile());
     }
 
     @Override
     public Map<String, String> resolveProperties(Artifact artifact) throws IOException, ParsingException {
         getLogger().info("Resolving " + artifact);
-        return resolveProperties(new BarFile(artifact.getFile()));
+        RawZipFile file = RawZipFile.open(artifact.getFile());
+        ScratchSpace scratch = new ScratchSpace(scratchDirectory, memoryThreshold);
+        try {
+            return resolveProperties(artifact.getFile().getName(), file, scratch);
+        } finally {
+            scratch.close();
+            file.close();
+        }
     }
 
-    private Map<String, String> resolveProperties(BarFile file) throws IOException, ParsingException {
-        getLogger().info("Resolving properties for " + file.getName());
+    private Map<String, String> resolveProperties(String name, RawZipFile file, ScratchSpace scratch) throws IOException, ParsingException {
+        getLogger().info("Resolving properties for " + name);
 
         Map<String, String> map = Maps.newHashMap();
 
-        for (ZipEntry entry : typeSafeCaptureOfIterable(file.entries())) {
-            if (!entry.isDirectory()) {
-                if (entry.getName().endsWith(EXT_LIBRARY) || entry.getName().endsWith(EXT_APPLICATION)) {
-                    File tmpFile = createTemporaryExtractedFile(entry.getName(), file.getInputStream(entry));
-                    try {
-                        map.putAll(resolveProperties(new BarFile(tmpFile)));
-                    } finally {
-                        tmpFile.delete();
-                    }
-                } else if (BROKER_XML_ENTRY.equals(entry.getName())) {
-                    InputStream is = file.getInputStream(entry);
-                    try {
-                        map.putAll(extractProperties(is));
-                        return map;
-                    } finally {
-                        IOUtil.close(is);
-                    }
-                }
+        for (RawZipFile.Entry entry : file.getEntries()) {
+            if (!entry.isDirectory() && resolveEntry(file, entry, map, scratch)) {
+                return map;
             }
         }
 
         return map;
     }
 
+    /**
+     * Add the properties of an archive entry, either a nested archive or the descriptor, to a map.
+     *
+     * @return true if the entry was the descriptor of the archive, after which no further entries need be read
+     */
+    private boolean resolveEntry(RawZipFile file, RawZipFile.Entry entry, Map<String, String> map, ScratchSpace scratch) throws IOException, ParsingException {
+        String name = entry.getName();
+        if (isNestedArchive(name)) {
+            ScratchSpace.Content content = storeEntry(file, entry, scratch);
+            try {
+                RawZipFile nestedFile = openContent(content);
+                try {
+                    map.putAll(resolveProperties(name, nestedFile, scratch));
+                } finally {
+                    nestedFile.close();
+                }
+            } finally {
+                content.release();
+            }
+        } else if (BROKER_XML_ENTRY.equals(name)) {
+            InputStream is = file.getInputStream(entry);
+            try {
+                map.putAll(extractProperties(is));
+            } finally {
+                IOUtil.close(is);
+            }
+            return true;
+        }
+        return false;
+    }
+
     /**
      * Extract map of configurable properties from archive META-INF/broker.xml.
      *
@@ -161,19 +308,14 @@ public class DefaultBarConfigurator extends AbstractLogEnabled implements BarCon
      * @throws ParsingException
      */
     private Map<String, String> extractProperties(InputStream inputStream) throws IOException, ParsingException {
-        Nodes nodes = new Builder().build(checkNotNull(inputStream)).query(XPATH_CONFIGURABLE_PROPERTY);
-
-        Map<String, String> map = Maps.newHashMap();
-        for (Element e : new ElementIterable(nodes)) {
-            final String uri = e.getAttributeValue(ATTR_URI);
-            final Attribute override = e.getAttribute(ATTR_OVERRIDE);
-            map.put(uri, override == null ? null : override.getValue());
-        }
-        return map;
+        return ConfigurablePropertyReader.read(inputStream);
     }
 
     /**
      * Transform and add broker XML to zip output stream.
+     * <p/>
+     * The descriptor is streamed from input to output event by event, only the {@code override} attribute of
+     * matching configurable properties being rewritten, so memory use does not grow with the size of the descriptor.
      *
      * @param resources  Set of handled resources
      * @param zos        Output stream to be written to
@@ -182,72 +324,137 @@ public class DefaultBarConfigurator extends AbstractLogEnabled implements BarCon
      * @throws IOException
      * @throws ParsingException
      */
-    private void addTransformBrokerXml(Set<String> resources, ZipOutputStream zos, InputStream is,
+    private void addTransformBrokerXml(Set<String> resources, RawZipOutputStream zos, InputStream is,
                                        Map<String, String> properties) throws IOException, ParsingException {
         checkNotNull(properties);
 
-        Builder builder = new Builder();
-        Document document = builder.build(checkNotNull(is));
-
-        /* Update properties */
-        Nodes nodes = document.query(XPATH_CONFIGURABLE_PROPERTY);
-        for (Element e : new ElementIterable(nodes)) {
-            final String uri = e.getAttributeValue(ATTR_URI);
-            if (properties.containsKey(uri)) {
-                Attribute override = e.getAttribute(ATTR_OVERRIDE);
-                if (override != null) {
-                    override.setValue(properties.get(uri));
-                } else {
-                    e.addAttribute(new Attribute(ATTR_OVERRIDE, properties.get(uri)));
+        zos.putNextEntry(BROKER_XML_ENTRY);
+        try {
+            XMLEventReader reader = inputFactory.createXMLEventReader(checkNotNull(is));
+            XMLEventWriter writer = outputFactory.createXMLEventWriter(zos, ENCODING);
+            while (reader.hasNext()) {
+                XMLEvent event = reader.nextEvent();
+                if (event.isStartDocument()) {
+                    /* Content is always written in UTF-8 whatever the encoding of the source */
+                    StartDocument document = (StartDocument) event;
+                    event = document.standaloneSet()
+                            ? eventFactory.createStartDocument(ENCODING, document.getVersion(), document.isStandalone())
+                            : eventFactory.createStartDocument(ENCODING, document.getVersion());
+                } else if (event.isStartElement() && CONFIGURABLE_PROPERTY.equals(event.asStartElement().getName())) {
+                    event = transformConfigurableProperty(event.asStartElement(), properties);
                 }
-                getLogger().info("Overriding configurable property '" + uri + "' with '" + properties.get(uri) + "'.");
+                writer.add(event);
             }
+            writer.flush();
+            writer.close();
+            reader.close();
+        } catch (XMLStreamException e) {
+            throw new ParsingException(e.getMessage(), e);
         }
-
-        zos.putNextEntry(new ZipEntry(BROKER_XML_ENTRY));
-        Serializer s = new Serializer(zos);
-        s.write(document);
         resources.add(BROKER_XML_ENTRY);
     }
 
+    private StartElement transformConfigurableProperty(StartElement element, Map<String, String> properties) {
+        Attribute uriAttribute = element.getAttributeByName(ATTR_URI_NAME);
+        String uri = uriAttribute == null ? null : uriAttribute.getValue();
+        if (!properties.containsKey(uri)) {
+            return element;
+        }
+
+        String value = properties.get(uri);
+        List<Attribute> attributes = Lists.newArrayList();
+        boolean overridden = false;
+        for (Iterator<?> it = element.getAttributes(); it.hasNext(); ) {
+            Attribute attribute = (Attribute) it.next();
+            if (ATTR_OVERRIDE_NAME.equals(attribute.getName())) {
+                attributes.add(eventFactory.createAttribute(ATTR_OVERRIDE_NAME, value));
+                overridden = true;
+            } else {
+                attributes.add(attribute);
+            }
+        }
+        if (!overridden) {
+            attributes.add(eventFactory.createAttribute(ATTR_OVERRIDE_NAME, value));
+        }
+        getLogger().info("Overriding configurable property '" + uri + "' with '" + value + "'.");
+
+        return eventFactory.createStartElement(element.getName(), attributes.iterator(), element.getNamespaces());
+    }
+
     /**
-     * Add directory to zip output stream.
+     * Add directory to every target zip output stream.
      *
      * @param resources Set of handled resources
-     * @param zos       Output stream to be written to
+     * @param targets   Targets to be written to
      * @param name      name of directory
      * @throws IOException
      */
-    private void addDirectory(Set<String> resources, ZipOutputStream zos, String name)
+    private void addDirectory(Set<String> resources, List<Target> targets, String name)
             throws IOException {
         if (name.lastIndexOf('/') > 0) {
             String parent = name.substring(0, name.lastIndexOf('/'));
             if (!resources.contains(parent)) {
-                addDirectory(resources, zos, parent);
+                addDirectory(resources, targets, parent);
             }
         }
 
         // directory entries must end in "/"
-        ZipEntry entry = new ZipEntry(name + "/");
-        zos.putNextEntry(entry);
+        for (Target target : targets) {
+            target.zos.putNextEntry(name + "/");
+        }
 
         resources.add(name);
     }
 
     /**
-     * Add resource to zip output stream.
+     * Add resource to zip output stream, copying it compressed as it is stored in the source archive.
      *
      * @param resources Set of handled resources
      * @param zos       Output stream to be written to
-     * @param name      Name of resource
-     * @param is        Input stream of resource to be written
+     * @param file      Archive holding the resource
+     * @param entry     Entry of the resource
      * @throws IOException
      */
-    private void addResource(Set<String> resources, ZipOutputStream zos, String name, InputStream is)
+    private void addResource(Set<String> resources, RawZipOutputStream zos, RawZipFile file, RawZipFile.Entry entry)
             throws IOException {
-        zos.putNextEntry(new ZipEntry(name));
-        IOUtil.copy(is, zos);
-        resources.add(name);
+        zos.copyEntry(file, entry);
+        resources.add(entry.getName());
     }
 
+    /**
+     * Add resource to every target zip output stream, copying it compressed from content read once from the source
+     * archive.
+     *
+     * @param resources Set of handled resources
+     * @param targets   Targets to be written to
+     * @param entry     Entry of the resource
+     * @param content   Content of the entry as stored in the source archive
+     * @throws IOException
+     */
+    private void addResource(Set<String> resources, List<Target> targets, RawZipFile.Entry entry,
+                             ScratchSpace.Content content) throws IOException {
+        for (Target target : targets) {
+            InputStream is = content.openStream();
+            try {
+                target.zos.copyEntry(entry, is);
+            } finally {
+                IOUtil.close(is);
+            }
+        }
+        resources.add(entry.getName());
+    }
+
+    /**
+     * Archive being configured, together with the properties applied to its descriptors.
+     */
+    private static final class Target {
+
+        final RawZipOutputStream zos;
+        final Map<String, String> properties;
+
+        Target(RawZipOutputStream zos, Map<String, String> properties) {
+            this.zos = zos;
+            this.properties = checkNotNull(properties);
+        }
+    }
 }
@@ -36,7 +36,7 @@ public abstract class AbstractAnalyzeConfigurationBarMojo extends AbstractConfig
             }
 
             try {
-                barProperties.putAll(barConfigurator.resolveProperties(artifact));
+                barProperties.putAll(getBarConfigurator().resolveProperties(artifact));
             } catch (ParsingException e) {
                 throw propagateMojoExecutionException(e);
             } catch (IOException e) {
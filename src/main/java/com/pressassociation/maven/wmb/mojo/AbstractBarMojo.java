@@ -1,10 +1,25 @@
 package com.pressassociation.maven.wmb.mojo;
 
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import com.pressassociation.maven.wmb.types.BrokerArchive;
+import com.pressassociation.maven.wmb.utils.FileSetIndex;
+import com.pressassociation.maven.wmb.utils.ProjectGraph;
+import com.pressassociation.maven.wmb.utils.WorkspaceSync;
+import nu.xom.ParsingException;
 import org.apache.maven.plugin.AbstractMojo;
-import org.apache.maven.shared.model.fileset.util.FileSetManager;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.shared.model.fileset.FileSet;
+import org.codehaus.plexus.util.FileUtils;
 import org.jfrog.maven.annomojo.annotations.MojoParameter;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
 /**
  * @author Bob Browning
  */
@@ -31,6 +46,110 @@ public abstract class AbstractBarMojo extends AbstractMojo {
     @MojoParameter(expression = "${project.build.directory}", readonly = true, required = true)
     protected String targetdir;
 
-    protected FileSetManager fileSetManager = new FileSetManager();
+    /**
+     * Log the project reference graph and the projects required by each archive.
+     */
+    @MojoParameter(expression = "${wmb.printProjectGraph}", defaultValue = "false")
+    protected boolean printProjectGraph;
+
+    private FileSetIndex fileSetIndex;
+
+    /**
+     * @return Index resolving the deployable files of every archive from a single walk of each directory
+     */
+    protected synchronized FileSetIndex getFileSetIndex() {
+        if (fileSetIndex == null) {
+            List<FileSet> fileSets = Lists.newArrayList();
+            if (brokerArchives != null) {
+                for (BrokerArchive archive : brokerArchives) {
+                    if (archive.getDeployableFiles() != null) {
+                        fileSets.add(withDirectory(archive.getDeployableFiles()));
+                    }
+                }
+            }
+            fileSetIndex = new FileSetIndex(fileSets);
+        }
+        return fileSetIndex;
+    }
+
+    /**
+     * Discard the index of deployable files, so that files added or removed since are found.
+     */
+    protected synchronized void resetFileSetIndex() {
+        fileSetIndex = null;
+    }
+
+    private FileSet withDirectory(FileSet fileSet) {
+        if (fileSet.getDirectory() == null) {
+            fileSet.setDirectory(basedir);
+        }
+        return fileSet;
+    }
+
+    protected String[] resolveIncludedFiles(FileSet flowFileSet) {
+        withDirectory(flowFileSet);
+        String[] includedFiles = getFileSetIndex().getIncludedFiles(flowFileSet);
+        for (int i = 0; i < includedFiles.length; i++) {
+            includedFiles[i] = FileUtils.catPath(flowFileSet.getDirectory(), includedFiles[i]);
+        }
+        return includedFiles;
+    }
+
+    /**
+     * Synchronise the projects of every archive, and every project they reference directly or otherwise, from the
+     * base directory to the generated sources.
+     *
+     * @return Names of the synchronised projects
+     * @throws MojoExecutionException
+     */
+    protected Set<String> prepareSources() throws MojoExecutionException {
+        /* Compose distinct set of projects */
+        Set<String> projects = Sets.newHashSet();
+        for (BrokerArchive archive : checkNotNull(brokerArchives)) {
+            projects.addAll(archive.getWorkspaceProjects());
+        }
+
+        /* Include every project referenced, directly or otherwise, by those of the archives */
+        ProjectGraph graph = new ProjectGraph(new File(basedir));
+        try {
+            projects = graph.closure(projects);
+        } catch (ParsingException e) {
+            throw new MojoExecutionException("Invalid project description: " + e.getMessage(), e);
+        } catch (IOException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        }
+        logProjectGraph(graph);
+        for (String missing : graph.getMissing()) {
+            getLog().warn("Referenced project " + missing + " not found in " + basedir);
+        }
+
+        WorkspaceSync sync = new WorkspaceSync(Runtime.getRuntime().availableProcessors());
+        try {
+            sync.sync(new File(basedir), projects, new File(generatedSourcesDir));
+        } catch (IOException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        }
+        getLog().info("Synchronised " + projects.size() + " projects to " + generatedSourcesDir + ": "
+                + sync.getStatistics());
+        return projects;
+    }
+
+    /**
+     * Write the traversed project reference graph to the log, at info level if requested otherwise debug.
+     *
+     * @param graph Project graph
+     */
+    protected void logProjectGraph(ProjectGraph graph) {
+        if (!printProjectGraph && !getLog().isDebugEnabled()) {
+            return;
+        }
+        for (String line : graph.describe()) {
+            if (printProjectGraph) {
+                getLog().info(line);
+            } else {
+                getLog().debug(line);
+            }
+        }
+    }
 
 }
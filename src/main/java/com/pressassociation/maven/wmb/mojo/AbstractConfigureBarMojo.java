@@ -47,6 +47,34 @@ public abstract class AbstractConfigureBarMojo extends AbstractMojo {
     @MojoParameter
     private Properties properties;
 
+    /**
+     * Write configured archives in reproducible form, with sorted entries, fixed timestamps and a canonical
+     * descriptor written first.
+     */
+    @MojoParameter(expression = "${wmb.normalize}", defaultValue = "false")
+    protected boolean normalize;
+
+    /**
+     * Size in bytes up to which nested application and library archives are configured in memory, larger archives
+     * being spilled to {@link #scratchDirectory}.
+     */
+    @MojoParameter(expression = "${wmb.nestedArchiveThreshold}", defaultValue = "33554432")
+    private long nestedArchiveThreshold;
+
+    /**
+     * Directory beneath which nested archives too large to configure in memory are spilled.
+     */
+    @MojoParameter(expression = "${wmb.scratchDirectory}", defaultValue = "${project.build.directory}/wmb-scratch")
+    private File scratchDirectory;
+
+    /**
+     * @return Configurator using the scratch space of this project
+     */
+    protected BarConfigurator getBarConfigurator() {
+        barConfigurator.setScratchSpace(scratchDirectory, nestedArchiveThreshold);
+        return barConfigurator;
+    }
+
     public Properties getProperties() throws MojoExecutionException {
         if (propertiesFile != null) {
             properties = new Properties();
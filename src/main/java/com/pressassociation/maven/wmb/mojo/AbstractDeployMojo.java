@@ -1,11 +1,9 @@
 package com.pressassociation.maven.wmb.mojo;
 
-import com.ibm.broker.config.proxy.MQBrokerConnectionParameters;
+import com.pressassociation.maven.wmb.utils.BrokerConnection;
 import org.apache.maven.plugin.AbstractMojo;
 import org.jfrog.maven.annomojo.annotations.MojoParameter;
 
-import javax.inject.Provider;
-
 /**
  * @author Bob Browning <bob.browning@pressassociation.com>
  */
@@ -28,19 +26,16 @@ public abstract class AbstractDeployMojo extends AbstractMojo {
     @MojoParameter(expression = "${wmb.queueMgr}", required = true)
     protected String queueMgr;
 
+    private BrokerConnection connection;
+
     /**
-     * Connection parameters provider.
+     * @return Connection to the configured broker
      */
-    protected Provider<MQBrokerConnectionParameters> connectionParameters = new Provider<MQBrokerConnectionParameters>() {
-        MQBrokerConnectionParameters parameters;
-
-        @Override
-        public MQBrokerConnectionParameters get() {
-            if (parameters == null) {
-                parameters = new MQBrokerConnectionParameters(hostname, port, queueMgr);
-            }
-            return parameters;
+    protected synchronized BrokerConnection getConnection() {
+        if (connection == null) {
+            connection = new BrokerConnection(hostname, port, queueMgr);
         }
-    };
+        return connection;
+    }
 
 }
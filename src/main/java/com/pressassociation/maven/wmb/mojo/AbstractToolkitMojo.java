@@ -0,0 +1,399 @@
+package com.pressassociation.maven.wmb.mojo;
+
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import com.pressassociation.maven.wmb.packager.BarPackager;
+import com.pressassociation.maven.wmb.types.BrokerArchive;
+import com.pressassociation.maven.wmb.utils.Fingerprint;
+import com.pressassociation.maven.wmb.utils.ToolkitGovernor;
+import org.apache.maven.execution.MavenSession;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.toolchain.Toolchain;
+import org.apache.maven.toolchain.ToolchainManager;
+import org.jfrog.maven.annomojo.annotations.MojoComponent;
+import org.jfrog.maven.annomojo.annotations.MojoParameter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import static com.pressassociation.maven.wmb.utils.MojoUtils.propagateMojoExecutionException;
+
+/**
+ * Base for mojos which launch the IBM toolkit, resolving the toolkit command and the options of the JVM it starts.
+ *
+ * @author Bob Browning <bob.browning@pressassociation.com>
+ */
+public abstract class AbstractToolkitMojo extends AbstractBarMojo {
+
+    /**
+     * Compiler id selecting the in-process packaging engine.
+     */
+    protected static final String PACKAGE_ONLY_COMPILER = "java";
+
+    /**
+     * Toolkit argument after which every argument is passed to the toolkit JVM.
+     */
+    protected static final String VMARGS_ARGUMENT = "-vmargs";
+
+    /**
+     * Suffix of the marker file written alongside a trained class cache.
+     */
+    protected static final String TRAINED_EXTENSION = ".trained";
+
+    /**
+     * Toolkit argument discarding the output of previous builds in the workspace.
+     */
+    protected static final String CLEAN_BUILD_ARGUMENT = "-cleanBuild";
+
+    /**
+     * Bundles installed by the toolkit, relative to its installation directory.
+     */
+    private static final String BUNDLES_INFO = "configuration/org.eclipse.equinox.simpleconfigurator/bundles.info";
+
+    /**
+     * Maven Toolchain Manager
+     */
+    @MojoComponent
+    private ToolchainManager toolchainManager;
+
+    /**
+     * Maven Session
+     */
+    @MojoParameter(expression = "${session}", readonly = true, required = true)
+    private MavenSession session;
+
+    /**
+     * Toolkit command used to build archives, or {@value #PACKAGE_ONLY_COMPILER} to package prebuilt resources
+     * in-process without launching the toolkit.
+     * <p/>
+     * The in-process engine is limited to archives without message flows, such as those deploying only jars,
+     * stylesheets or schemas. Deployable flows need input nodes, whose configurable properties only the toolkit can
+     * describe, so an archive holding one fails the build and must be built with mqsicreatebar.
+     */
+    @MojoParameter(expression = "${wmb.compiler.compilerId}", defaultValue = "mqsicreatebar")
+    protected String compilerId;
+
+    /**
+     * Full path to mqsicreatebar command.
+     */
+    @MojoParameter(defaultValue = "/opt/IBM/WMBT800", expression = "${wmb.toolkitDirectory}")
+    private File toolkitDirectory;
+
+    /**
+     * Maximum time in seconds a single toolkit run may take before it is killed, zero for no limit.
+     */
+    @MojoParameter(expression = "${wmb.toolkitTimeout}", defaultValue = "3600")
+    protected long toolkitTimeout;
+
+    /**
+     * Maximum time in seconds a toolkit run may go without producing output before it is killed, zero for no limit.
+     */
+    @MojoParameter(expression = "${wmb.toolkitInactivityTimeout}", defaultValue = "900")
+    protected long toolkitInactivityTimeout;
+
+    /**
+     * Initial heap size of the toolkit JVM, e.g. 512m.
+     */
+    @MojoParameter(expression = "${wmb.toolkitInitialHeap}")
+    private String toolkitInitialHeap;
+
+    /**
+     * Maximum heap size of the toolkit JVM, e.g. 1536m.
+     */
+    @MojoParameter(expression = "${wmb.toolkitMaxHeap}")
+    private String toolkitMaxHeap;
+
+    /**
+     * Garbage collection policy of the toolkit JVM, e.g. gencon.
+     */
+    @MojoParameter(expression = "${wmb.toolkitGcPolicy}")
+    private String toolkitGcPolicy;
+
+    /**
+     * Additional whitespace separated options passed to the toolkit JVM.
+     */
+    @MojoParameter(expression = "${wmb.toolkitVmArgs}")
+    private String toolkitVmArgs;
+
+    /**
+     * Share loaded classes between toolkit runs through a persistent class cache, see the train-toolkit goal.
+     */
+    @MojoParameter(expression = "${wmb.toolkitClassSharing}", defaultValue = "false")
+    protected boolean toolkitClassSharing;
+
+    /**
+     * Directory holding the shared class cache of the toolkit JVM.
+     */
+    @MojoParameter(expression = "${wmb.toolkitClassCacheDirectory}", defaultValue = "${user.home}/.wmb/class-cache")
+    protected File toolkitClassCacheDirectory;
+
+    /**
+     * Name of the shared class cache of the toolkit JVM.
+     */
+    @MojoParameter(expression = "${wmb.toolkitClassCacheName}", defaultValue = "wmb-toolkit")
+    protected String toolkitClassCacheName;
+
+    /**
+     * Size of the shared class cache, applied only when the cache is created.
+     */
+    @MojoParameter(expression = "${wmb.toolkitClassCacheSize}", defaultValue = "128m")
+    private String toolkitClassCacheSize;
+
+    /**
+     * Maximum number of toolkit processes to run at once across every module of the build, zero to derive the limit
+     * from the memory available on the machine and {@link #toolkitMemoryEstimate}.
+     */
+    @MojoParameter(expression = "${wmb.toolkitSlots}", defaultValue = "0")
+    private int toolkitSlots;
+
+    /**
+     * Estimated memory in megabytes used by a single toolkit process, used to derive the number of toolkit slots.
+     */
+    @MojoParameter(expression = "${wmb.toolkitMemoryEstimate}", defaultValue = "1536")
+    private long toolkitMemoryEstimate;
+
+    /**
+     * Share toolkit slots with other builds on the same machine through lock files in
+     * {@link #toolkitSlotDirectory}.
+     */
+    @MojoParameter(expression = "${wmb.toolkitSlotsMachineWide}", defaultValue = "false")
+    private boolean toolkitSlotsMachineWide;
+
+    /**
+     * Directory holding the lock files of machine wide toolkit slots.
+     */
+    @MojoParameter(expression = "${wmb.toolkitSlotDirectory}", defaultValue = "${user.home}/.wmb/slots")
+    private File toolkitSlotDirectory;
+
+    private File _mqsicreatebar;
+
+    private String _toolkitFingerprint;
+
+    private Toolchain getToolchain() {
+        if (toolchainManager != null) {
+            return toolchainManager.getToolchainFromBuildContext("mqsitoolkit", session);
+        }
+        return null;
+    }
+
+    protected synchronized File getMQSICreateBar() throws MojoExecutionException {
+        if (_mqsicreatebar == null) {
+            Toolchain tc = getToolchain();
+            if (tc != null) {
+                getLog().info("Toolchain in wmb-maven-plugin: " + tc);
+                _mqsicreatebar = new File(tc.findTool(compilerId));
+            }
+
+            if (_mqsicreatebar != null) {
+                toolkitDirectory = _mqsicreatebar.getParentFile();
+            } else {
+                _mqsicreatebar = new File(toolkitDirectory, compilerId);
+            }
+
+            if (!_mqsicreatebar.exists()) {
+                throw new MojoExecutionException(String.format("Invalid toolkit directory (%s), cannot locate mqsicreatebar.", toolkitDirectory));
+            }
+            if (!_mqsicreatebar.canExecute()) {
+                throw new MojoExecutionException("Permission denied, cannot execute mqsicreatebar.");
+            }
+        }
+        return _mqsicreatebar;
+    }
+
+    protected boolean isPackageOnly() {
+        return PACKAGE_ONLY_COMPILER.equals(compilerId);
+    }
+
+    /**
+     * Identify the engine used to build archives. A toolkit is identified by its installation rather than its
+     * location, fix packs and plugin updates usually leaving the launcher untouched, so the bundles it installs are
+     * recorded by name and version along with the size of every plugin and feature.
+     *
+     * @return Identity of the engine used to build archives, a digest of the toolkit installation or the in-process
+     *         packager version
+     * @throws MojoExecutionException
+     */
+    protected synchronized String getToolkitFingerprint() throws MojoExecutionException {
+        if (isPackageOnly()) {
+            return BarPackager.VERSION;
+        }
+        if (_toolkitFingerprint == null) {
+            File toolkit = getMQSICreateBar();
+            File installation = toolkit.getParentFile();
+            try {
+                Fingerprint fingerprint = new Fingerprint().putString(toolkit.getName()).putFile(toolkit);
+                putInstalledBundles(fingerprint, new File(installation, BUNDLES_INFO));
+                putListing(fingerprint, new File(installation, "plugins"));
+                putListing(fingerprint, new File(installation, "features"));
+                _toolkitFingerprint = fingerprint.hash();
+            } catch (IOException e) {
+                throw propagateMojoExecutionException(e);
+            }
+        }
+        return _toolkitFingerprint;
+    }
+
+    /**
+     * Add the name and version of each bundle the toolkit installs, without their locations which depend upon where
+     * the toolkit and its shared resources are installed.
+     */
+    private static void putInstalledBundles(Fingerprint fingerprint, File bundlesInfo) throws IOException {
+        if (!bundlesInfo.isFile()) {
+            fingerprint.putString("<missing:" + bundlesInfo.getName() + ">");
+            return;
+        }
+        Set<String> bundles = Sets.newTreeSet();
+        for (String line : Files.readLines(bundlesInfo, Charsets.UTF_8)) {
+            if (line.startsWith("#")) {
+                continue;
+            }
+            List<String> fields = Lists.newArrayList(Splitter.on(',').limit(3).split(line));
+            if (fields.size() >= 2) {
+                bundles.add(fields.get(0) + "_" + fields.get(1));
+            }
+        }
+        for (String bundle : bundles) {
+            fingerprint.putString(bundle);
+        }
+    }
+
+    /**
+     * Add the names of the entries of a directory and the sizes of its files, plugins and features being named by
+     * their version.
+     */
+    private static void putListing(Fingerprint fingerprint, File directory) {
+        String[] names = directory.list();
+        if (names == null) {
+            fingerprint.putString("<missing:" + directory.getName() + ">");
+            return;
+        }
+        Arrays.sort(names);
+        for (String name : names) {
+            File file = new File(directory, name);
+            fingerprint.putString(file.isFile() ? name + ":" + file.length() : name);
+        }
+    }
+
+    /**
+     * @return Marker file recording the toolkit the shared class cache was trained with
+     */
+    protected File getTrainedMarker() {
+        return new File(toolkitClassCacheDirectory, toolkitClassCacheName + TRAINED_EXTENSION);
+    }
+
+    /**
+     * @return Whether the shared class cache has been trained with the toolkit currently configured
+     * @throws MojoExecutionException
+     */
+    protected boolean isTrained() throws MojoExecutionException {
+        File marker = getTrainedMarker();
+        try {
+            return marker.isFile() && Files.toString(marker, Charsets.UTF_8).equals(getToolkitFingerprint());
+        } catch (IOException e) {
+            throw propagateMojoExecutionException(e);
+        }
+    }
+
+    /**
+     * Obtain the governor limiting concurrent toolkit processes, sized from the configured slot count or else from
+     * the memory available on the machine.
+     */
+    protected ToolkitGovernor createGovernor() {
+        int slots = toolkitSlots;
+        if (slots <= 0) {
+            slots = ToolkitGovernor.slotsFromAvailableMemory(toolkitMemoryEstimate * 1024 * 1024);
+            if (slots <= 0) {
+                slots = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+                getLog().debug("Available memory unknown, allowing " + slots + " concurrent toolkit processes.");
+            }
+        }
+        ToolkitGovernor instance = ToolkitGovernor.getInstance(slots, toolkitSlotsMachineWide ? toolkitSlotDirectory : null);
+        getLog().debug("Allowing " + instance.getSlots() + " concurrent toolkit processes.");
+        return instance;
+    }
+
+    /**
+     * Build the toolkit command creating an archive, up to the options which differ between goals.
+     *
+     * @param archive         Broker archive
+     * @param workspace       Workspace containing the archive projects
+     * @param targetBarFile   Archive file to create
+     * @param deployableFiles Resolved deployable files, may be null
+     * @return Toolkit command
+     * @throws MojoExecutionException
+     */
+    protected List<String> buildToolkitCommand(BrokerArchive archive, File workspace, File targetBarFile,
+                                               String[] deployableFiles) throws MojoExecutionException {
+        List<String> cmdlist = Lists.newArrayList();
+        cmdlist.add(isPackageOnly() ? compilerId : getMQSICreateBar().getAbsolutePath());
+        cmdlist.add("-data");
+        cmdlist.add(workspace.getAbsolutePath());
+        cmdlist.add("-b");
+        cmdlist.add(targetBarFile.getAbsolutePath());
+
+        if (deployableFiles != null) {
+            cmdlist.add("-o");
+            Collections.addAll(cmdlist, deployableFiles);
+        }
+
+        if (archive.getProjects() != null && archive.getProjects().length > 0) {
+            cmdlist.add("-p");
+            Collections.addAll(cmdlist, archive.getProjects());
+        }
+
+        if (archive.getApplications() != null && archive.getApplications().length > 0) {
+            cmdlist.add("-a");
+            Collections.addAll(cmdlist, archive.getApplications());
+        }
+
+        if (archive.getLibraries() != null && archive.getLibraries().length > 0) {
+            cmdlist.add("-l");
+            Collections.addAll(cmdlist, archive.getLibraries());
+        }
+        return cmdlist;
+    }
+
+    /**
+     * Options for the toolkit JVM, to be appended to the toolkit command following {@value #VMARGS_ARGUMENT}.
+     *
+     * @param training Whether the run populates the shared class cache, which is then created if absent
+     * @return JVM options, empty if none are configured
+     */
+    protected List<String> getToolkitVmArguments(boolean training) {
+        List<String> arguments = Lists.newArrayList();
+        if (!Strings.isNullOrEmpty(toolkitInitialHeap)) {
+            arguments.add("-Xms" + toolkitInitialHeap);
+        }
+        if (!Strings.isNullOrEmpty(toolkitMaxHeap)) {
+            arguments.add("-Xmx" + toolkitMaxHeap);
+        }
+        if (!Strings.isNullOrEmpty(toolkitGcPolicy)) {
+            arguments.add("-Xgcpolicy:" + toolkitGcPolicy);
+        }
+
+        /* The toolkit ships an IBM J9 JVM, whose class cache is shared between processes and survives restarts */
+        if (training || toolkitClassSharing) {
+            arguments.add("-Xshareclasses:name=" + toolkitClassCacheName + ",cacheDir="
+                    + toolkitClassCacheDirectory.getAbsolutePath() + ",nonfatal");
+            if (training) {
+                arguments.add("-Xscmx" + toolkitClassCacheSize);
+            }
+        }
+
+        if (!Strings.isNullOrEmpty(toolkitVmArgs)) {
+            for (String argument : Splitter.on(CharMatcher.WHITESPACE).omitEmptyStrings().split(toolkitVmArgs)) {
+                arguments.add(argument);
+            }
+        }
+        return arguments;
+    }
+}
@@ -3,8 +3,12 @@ package com.pressassociation.maven.wmb.mojo;
 import com.google.common.base.Joiner;
 import com.google.common.base.Predicate;
 import com.google.common.base.Splitter;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Maps;
 import com.pressassociation.maven.wmb.Types;
 import com.pressassociation.maven.wmb.types.ArtifactItem;
 import com.pressassociation.maven.wmb.types.ConfiguredArtifact;
@@ -23,6 +27,7 @@ import org.jfrog.maven.annomojo.annotations.*;
 import java.io.File;
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 
@@ -67,6 +72,13 @@ public class ConfigureBarMojo extends AbstractConfigureBarMojo {
     @MojoParameter
     private Set<ConfiguredArtifact> configuredArtifacts = ImmutableSet.of();
 
+    /**
+     * Configure every artifact declared from the same source artifact in a single pass, reading the source once and
+     * copying its unchanged entries to all of them, rather than reading the source again for each artifact.
+     */
+    @MojoParameter(expression = "${wmb.configure.singlePass}", defaultValue = "true")
+    private boolean singlePass;
+
     private Artifact createAndResolveArtifact(ArtifactItem model) throws MojoExecutionException {
         Artifact artifact = artifactFactory.createArtifactWithClassifier(
                 model.getGroupId(), model.getArtifactId(), model.getVersion(), model.getType(), model.getClassifier());
@@ -87,43 +99,71 @@ public class ConfigureBarMojo extends AbstractConfigureBarMojo {
         if (barArtifacts.isEmpty()) {
             getLog().info("No broker artifact dependencies declared.");
         } else {
+            if (!outputDirectory.exists() && !outputDirectory.mkdirs()) {
+                throw new MojoExecutionException("Output directory does not exist and could not be created.");
+            }
+            if (!outputDirectory.isDirectory()) {
+                throw new MojoExecutionException("Output directory property should be a directory.");
+            }
+
+            Map<File, Artifact> sourceArtifacts = Maps.newLinkedHashMap();
+            ListMultimap<File, ConfiguredArtifact> configuredBySource = ArrayListMultimap.create();
             for (ConfiguredArtifact configuredArtifact : configuredArtifacts) {
                 Artifact sourceArtifact = createAndResolveArtifact(configuredArtifact.getArtifactItem());
+                if (singlePass) {
+                    File sourceFile = sourceArtifact.getFile().getAbsoluteFile();
+                    sourceArtifacts.put(sourceFile, sourceArtifact);
+                    configuredBySource.put(sourceFile, configuredArtifact);
+                } else {
+                    configure(sourceArtifact, ImmutableList.of(configuredArtifact));
+                }
+            }
 
-                try {
-                    if (!outputDirectory.exists() && !outputDirectory.mkdirs()) {
-                        throw new MojoExecutionException("Output directory does not exist and could not be created.");
-                    }
-                    if (!outputDirectory.isDirectory()) {
-                        throw new MojoExecutionException("Output directory property should be a directory.");
-                    }
+            for (Map.Entry<File, Artifact> entry : sourceArtifacts.entrySet()) {
+                configure(entry.getValue(), configuredBySource.get(entry.getKey()));
+            }
+        }
+    }
 
-                    File targetFile = artifactFileForClassifier(configuredArtifact.getClassifier());
-                    if (targetFile.exists() && !targetFile.delete()) {
-                        throw new MojoExecutionException("Failed to remove existing target file.");
-                    }
+    /**
+     * Configure artifacts from a single source artifact, which is read once however many are configured.
+     *
+     * @param sourceArtifact      Resolved source artifact
+     * @param configuredArtifacts Artifacts to configure from the source
+     * @throws MojoExecutionException
+     */
+    private void configure(Artifact sourceArtifact, List<ConfiguredArtifact> configuredArtifacts)
+            throws MojoExecutionException {
+        try {
+            Map<File, Properties> targets = Maps.newLinkedHashMap();
+            for (ConfiguredArtifact configuredArtifact : configuredArtifacts) {
+                File targetFile = artifactFileForClassifier(configuredArtifact.getClassifier());
+                if (targetFile.exists() && !targetFile.delete()) {
+                    throw new MojoExecutionException("Failed to remove existing target file.");
+                }
+                if (!targetFile.createNewFile()) {
+                    throw new MojoExecutionException("Failed to create target file.");
+                }
 
-                    if (targetFile.createNewFile()) {
-                        final Properties baseProperties = getProperties();
-                        baseProperties.putAll(configuredArtifact.getProperties());
-                        Properties props = applyPropertiesForClassifier(baseProperties, configuredArtifact.getClassifier());
-                        barConfigurator.configure(sourceArtifact, targetFile, props);
+                final Properties baseProperties = getProperties();
+                baseProperties.putAll(configuredArtifact.getProperties());
+                targets.put(targetFile, applyPropertiesForClassifier(baseProperties, configuredArtifact.getClassifier()));
+            }
 
-                        Artifact artifact = artifactFactory.createArtifactWithClassifier(
-                                project.getGroupId(), project.getArtifactId(), project.getVersion(), Types.BROKER_ARCHIVE_TYPE, configuredArtifact.getClassifier());
+            getBarConfigurator().configure(sourceArtifact, targets, normalize);
 
-                        getLog().info("Attaching configured " + sourceArtifact + " as " + artifact);
-                        projectHelper.attachArtifact(
-                                project, Types.BROKER_ARCHIVE_TYPE, configuredArtifact.getClassifier(), targetFile);
-                    } else {
-                        throw new MojoExecutionException("Failed to create target file.");
-                    }
-                } catch (ParsingException e) {
-                    throw propagateMojoExecutionException(e);
-                } catch (IOException e) {
-                    throw propagateMojoExecutionException(e);
-                }
+            for (ConfiguredArtifact configuredArtifact : configuredArtifacts) {
+                Artifact artifact = artifactFactory.createArtifactWithClassifier(
+                        project.getGroupId(), project.getArtifactId(), project.getVersion(), Types.BROKER_ARCHIVE_TYPE, configuredArtifact.getClassifier());
+
+                getLog().info("Attaching configured " + sourceArtifact + " as " + artifact);
+                projectHelper.attachArtifact(project, Types.BROKER_ARCHIVE_TYPE, configuredArtifact.getClassifier(),
+                        artifactFileForClassifier(configuredArtifact.getClassifier()));
             }
+        } catch (ParsingException e) {
+            throw propagateMojoExecutionException(e);
+        } catch (IOException e) {
+            throw propagateMojoExecutionException(e);
         }
     }
 
@@ -12,12 +12,14 @@ import org.apache.maven.artifact.resolver.ArtifactResolutionException;
 import org.apache.maven.artifact.resolver.ArtifactResolver;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugin.logging.Log;
 import org.apache.maven.project.MavenProject;
 import org.jfrog.maven.annomojo.annotations.MojoComponent;
 import org.jfrog.maven.annomojo.annotations.MojoGoal;
 import org.jfrog.maven.annomojo.annotations.MojoParameter;
 import org.jfrog.maven.annomojo.annotations.MojoRequiresDependencyResolution;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Enumeration;
@@ -78,20 +80,11 @@ public class ConfiguredDeployMojo extends AbstractDeployMojo {
     @MojoParameter(expression = "${project}", required = true, readonly = true)
     private MavenProject project;
 
-    private static void waitForProxyPopulation(BrokerProxy proxy) {
-        while(!proxy.hasBeenPopulatedByBroker()) {
-            try {
-                Thread.sleep(100);
-            } catch (InterruptedException ignored) {}
-        }
-    }
-
     @Override
     public void execute() throws MojoExecutionException, MojoFailureException {
         final BrokerProxy proxy;
         try {
-            proxy = BrokerProxy.getInstance(connectionParameters.get());
-            waitForProxyPopulation(proxy);
+            proxy = getConnection().connect();
         } catch (ConfigManagerProxyLoggedException e) {
             throw propagateMojoExecutionException(e);
         }
@@ -148,8 +141,7 @@ public class ConfiguredDeployMojo extends AbstractDeployMojo {
                 throw new MojoExecutionException("Missing required execution group value for artifact " + artifact);
             }
 
-            getLog().info("Deploying " + artifact + " to " + hostname + ":" + port + "/" + queueMgr + "/"
-                    + artifact.getExecutionGroup());
+            getLog().info("Deploying " + artifact + " to " + getConnection() + "/" + artifact.getExecutionGroup());
 
             try {
                 resolver.resolve(artifact, remoteRepositories, localRepository);
@@ -159,26 +151,39 @@ public class ConfiguredDeployMojo extends AbstractDeployMojo {
                 throw propagateMojoExecutionException(e);
             }
 
-            try {
-                ExecutionGroupProxy executionGroupProxy = proxy.getExecutionGroupByName(artifact.getExecutionGroup());
-                if(executionGroupProxy == null) {
-                    executionGroupProxy = proxy.createExecutionGroup(artifact.getExecutionGroup());
-                }
-                DeployResult deployResult = executionGroupProxy.deploy(artifact.getFile().getPath(), true, BROKER_TIMEOUT);
-                if (deployResult.getCompletionCode() != CompletionCodeType.success) {
-                    Enumeration<LogEntry> responses = deployResult.getDeployResponses();
-                    while (responses.hasMoreElements()) {
-                        getLog().error(responses.nextElement().getDetail());
-                    }
-                    throw new MojoExecutionException("Error deploying broker archive.");
+            deploy(proxy, artifact.getExecutionGroup(), artifact.getFile(), getLog());
+        }
+    }
+
+    /**
+     * Deploy a broker archive to an execution group, creating the execution group if need be.
+     *
+     * @param proxy          Populated broker proxy
+     * @param executionGroup Name of the execution group
+     * @param file           Broker archive file
+     * @param log            Log to write deployment errors to
+     * @throws MojoExecutionException
+     */
+    static void deploy(BrokerProxy proxy, String executionGroup, File file, Log log) throws MojoExecutionException {
+        try {
+            ExecutionGroupProxy executionGroupProxy = proxy.getExecutionGroupByName(executionGroup);
+            if(executionGroupProxy == null) {
+                executionGroupProxy = proxy.createExecutionGroup(executionGroup);
+            }
+            DeployResult deployResult = executionGroupProxy.deploy(file.getPath(), true, BROKER_TIMEOUT);
+            if (deployResult.getCompletionCode() != CompletionCodeType.success) {
+                Enumeration<LogEntry> responses = deployResult.getDeployResponses();
+                while (responses.hasMoreElements()) {
+                    log.error(responses.nextElement().getDetail());
                 }
-            } catch (ConfigManagerProxyPropertyNotInitializedException e) {
-                throw propagateMojoExecutionException(e);
-            } catch (ConfigManagerProxyLoggedException e) {
-                throw propagateMojoExecutionException(e);
-            } catch (IOException e) {
-                throw propagateMojoExecutionException(e);
+                throw new MojoExecutionException("Error deploying broker archive.");
             }
+        } catch (ConfigManagerProxyPropertyNotInitializedException e) {
+            throw propagateMojoExecutionException(e);
+        } catch (ConfigManagerProxyLoggedException e) {
+            throw propagateMojoExecutionException(e);
+        } catch (IOException e) {
+            throw propagateMojoExecutionException(e);
         }
     }
 
@@ -0,0 +1,170 @@
+package com.pressassociation.maven.wmb.mojo;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.pressassociation.maven.wmb.Types;
+import com.pressassociation.maven.wmb.types.BrokerArchive;
+import com.pressassociation.maven.wmb.utils.Shard;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.project.MavenProject;
+import org.apache.maven.project.MavenProjectHelper;
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.IOUtil;
+import org.jfrog.maven.annomojo.annotations.MojoComponent;
+import org.jfrog.maven.annomojo.annotations.MojoGoal;
+import org.jfrog.maven.annomojo.annotations.MojoParameter;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import static com.pressassociation.maven.wmb.utils.MojoUtils.propagateMojoExecutionException;
+
+/**
+ * Collects the broker archives built by each shard of a sharded package build and attaches them to the project, as
+ * if they had been built by a single package run. Fails unless every shard is present and every declared archive was
+ * built by exactly one of them. Artifacts are attached in the order their archives are declared.
+ *
+ * @author Bob Browning <bob.browning@pressassociation.com>
+ */
+@MojoGoal("gather")
+public class GatherMojo extends AbstractBarMojo {
+
+    @MojoParameter(expression = "${project}", required = true, readonly = true)
+    private MavenProject project;
+
+    @MojoComponent
+    private MavenProjectHelper projectHelper;
+
+    /**
+     * Directory holding the output directories of every shard.
+     */
+    @MojoParameter(expression = "${wmb.shardDirectory}", defaultValue = "${project.build.directory}/wmb-shards")
+    private File shardDirectory;
+
+    @Override
+    public void execute() throws MojoExecutionException, MojoFailureException {
+        if (brokerArchives == null || brokerArchives.length == 0) {
+            throw new MojoFailureException("Invalid configuration, no BAR artifacts found.");
+        }
+
+        File[] directories = shardDirectory.listFiles();
+        if (directories == null) {
+            throw new MojoFailureException("No shard output found in " + shardDirectory);
+        }
+
+        Integer count = null;
+        Map<Integer, File> shards = Maps.newTreeMap();
+        Map<String, Integer> archives = Maps.newHashMap();
+        Map<Integer, Properties> manifests = Maps.newHashMap();
+        for (File directory : directories) {
+            File manifestFile = new File(directory, Shard.MANIFEST);
+            if (!manifestFile.isFile()) {
+                continue;
+            }
+
+            Properties manifest = readManifest(manifestFile);
+            Shard shard;
+            try {
+                shard = Shard.parse(manifest.getProperty(Shard.SHARD_PROPERTY, ""));
+            } catch (IllegalArgumentException e) {
+                throw new MojoFailureException("Invalid manifest " + manifestFile + ": " + e.getMessage());
+            }
+
+            if (count == null) {
+                count = shard.getCount();
+            } else if (count != shard.getCount()) {
+                throw new MojoFailureException("Shard " + shard + " in " + directory + " does not belong to a build of "
+                        + count + " shards.");
+            }
+            if (shards.put(shard.getIndex(), directory) != null) {
+                throw new MojoFailureException("Shard " + shard + " found more than once in " + shardDirectory);
+            }
+
+            for (String classifier : Splitter.on(',').omitEmptyStrings().split(
+                    manifest.getProperty(Shard.ARCHIVES_PROPERTY, ""))) {
+                Integer previous = archives.put(classifier, shard.getIndex());
+                if (previous != null) {
+                    throw new MojoFailureException("Archive " + classifier + " built by shards " + previous + " and "
+                            + shard.getIndex() + ".");
+                }
+            }
+
+            manifests.put(shard.getIndex(), manifest);
+        }
+
+        if (count == null) {
+            throw new MojoFailureException("No shard output found in " + shardDirectory);
+        }
+        Set<Integer> missingShards = Sets.newTreeSet();
+        for (int i = 1; i <= count; i++) {
+            if (!shards.containsKey(i)) {
+                missingShards.add(i);
+            }
+        }
+        if (!missingShards.isEmpty()) {
+            throw new MojoFailureException("Output of shards " + Joiner.on(", ").join(missingShards) + " of " + count
+                    + " not found in " + shardDirectory);
+        }
+
+        Set<String> missingArchives = Sets.newTreeSet();
+        for (BrokerArchive archive : brokerArchives) {
+            if (!archives.containsKey(archive.getClassifier())) {
+                missingArchives.add(archive.getClassifier());
+            }
+        }
+        if (!missingArchives.isEmpty()) {
+            throw new MojoFailureException("Archives " + Joiner.on(", ").join(missingArchives)
+                    + " were not built by any shard.");
+        }
+
+        /* Attach in declaration order, as a single package run would */
+        Map<String, File> artifacts = Maps.newLinkedHashMap();
+        for (BrokerArchive archive : brokerArchives) {
+            int index = archives.get(archive.getClassifier());
+            Properties manifest = manifests.get(index);
+            for (String classifier : Splitter.on(',').omitEmptyStrings().split(manifest.getProperty(
+                    Shard.ARCHIVE_ARTIFACTS_PROPERTY_PREFIX + archive.getClassifier(), ""))) {
+                String name = manifest.getProperty(Shard.ARTIFACT_PROPERTY_PREFIX + classifier);
+                File file = name == null ? null : new File(shards.get(index), name);
+                if (file == null || !file.isFile()) {
+                    throw new MojoFailureException("Artifact " + classifier + " listed by shard " + index + "/"
+                            + count + " is missing.");
+                }
+                artifacts.put(classifier, file);
+            }
+        }
+
+        try {
+            for (Map.Entry<String, File> entry : artifacts.entrySet()) {
+                File target = new File(targetdir, entry.getValue().getName());
+                FileUtils.copyFile(entry.getValue(), target);
+                projectHelper.attachArtifact(project, Types.BROKER_ARCHIVE_TYPE, entry.getKey(), target);
+            }
+        } catch (IOException e) {
+            throw propagateMojoExecutionException(e);
+        }
+        getLog().info("Gathered " + artifacts.size() + " artifacts from " + count + " shards.");
+    }
+
+    private static Properties readManifest(File file) throws MojoExecutionException {
+        Properties properties = new Properties();
+        InputStream is = null;
+        try {
+            is = new FileInputStream(file);
+            properties.load(is);
+        } catch (IOException e) {
+            throw propagateMojoExecutionException(e);
+        } finally {
+            IOUtil.close(is);
+        }
+        return properties;
+    }
+}
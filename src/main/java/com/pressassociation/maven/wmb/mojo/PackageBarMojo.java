@@ -3,49 +3,110 @@
  */
 package com.pressassociation.maven.wmb.mojo;
 
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.pressassociation.maven.wmb.Types;
+import com.pressassociation.maven.wmb.packager.BarMerger;
+import com.pressassociation.maven.wmb.packager.BarNormalizer;
+import com.pressassociation.maven.wmb.packager.BarPackager;
+import com.pressassociation.maven.wmb.packager.BarSplitter;
 import com.pressassociation.maven.wmb.types.BrokerArchive;
-import org.apache.maven.execution.MavenSession;
+import com.pressassociation.maven.wmb.types.ToolkitDiagnostic;
+import com.pressassociation.maven.wmb.utils.ArchiveValidator;
+import com.pressassociation.maven.wmb.utils.BarUtils;
+import com.pressassociation.maven.wmb.utils.BuildCache;
+import com.pressassociation.maven.wmb.utils.DiagnosticParser;
+import com.pressassociation.maven.wmb.utils.Fingerprint;
+import com.pressassociation.maven.wmb.utils.FlowManifest;
+import com.pressassociation.maven.wmb.utils.GitChangeSet;
+import com.pressassociation.maven.wmb.utils.PrefixedLog;
+import com.pressassociation.maven.wmb.utils.ProcessSupervisor;
+import com.pressassociation.maven.wmb.utils.ProjectGraph;
+import com.pressassociation.maven.wmb.utils.Shard;
+import com.pressassociation.maven.wmb.utils.ToolkitGovernor;
+import com.pressassociation.maven.wmb.utils.WorkspacePool;
+import com.pressassociation.maven.wmb.utils.WorkspaceSync;
+import nu.xom.ParsingException;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugin.logging.Log;
 import org.apache.maven.project.MavenProject;
 import org.apache.maven.project.MavenProjectHelper;
-import org.apache.maven.shared.model.fileset.FileSet;
-import org.apache.maven.toolchain.Toolchain;
-import org.apache.maven.toolchain.ToolchainManager;
 import org.codehaus.plexus.util.FileUtils;
 import org.codehaus.plexus.util.IOUtil;
 import org.jfrog.maven.annomojo.annotations.MojoComponent;
 import org.jfrog.maven.annomojo.annotations.MojoGoal;
 import org.jfrog.maven.annomojo.annotations.MojoParameter;
 
-import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.util.ArrayList;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static com.pressassociation.maven.wmb.utils.MojoUtils.propagateMojoExecutionException;
 
 /**
  * Maven mojo class to create a Websphere Message Broker (WMB) BAR file.
+ * <p/>
+ * Extended by the watch goal, which rebuilds archives with the configuration of this goal as sources change.
  *
  * @author Bob Browning
  */
 @MojoGoal("package")
-public final class PackageBarMojo extends AbstractBarMojo {
+public class PackageBarMojo extends AbstractToolkitMojo {
 
     /**
-     * Maven Toolchain Manager
+     * Directory beneath the build directory holding the per-worker toolkit workspaces.
      */
-    @MojoComponent
-    private ToolchainManager toolchainManager;
+    private static final String WORKSPACES_DIRECTORY = "wmb-workspaces";
+
+    /**
+     * Directory beneath the build directory holding archives built in parts.
+     */
+    private static final String CHUNKS_DIRECTORY = "wmb-chunks";
+
+    /**
+     * Directory beneath the build directory holding the partial archives of incremental builds.
+     */
+    private static final String INCREMENTAL_DIRECTORY = "wmb-incremental";
 
     /**
-     * Maven Session
+     * Eclipse workspace metadata directory, never shared between workspaces.
      */
-    @MojoParameter(expression = "${session}", readonly = true, required = true)
-    private MavenSession session;
+    private static final String METADATA_DIRECTORY = ".metadata";
+
+    /**
+     * Extension of the file recording the build cache key of an archive in the build directory.
+     */
+    private static final String FINGERPRINT_EXTENSION = ".fingerprint";
+
+    /**
+     * Number of trailing lines of toolkit output included in failure reports.
+     */
+    private static final int CAPTURED_OUTPUT_LINES = 200;
+
+    private static final String EXT_MSGFLOW = ".msgflow";
 
     /**
      * Maven Project
@@ -65,47 +126,134 @@ public final class PackageBarMojo extends AbstractBarMojo {
     @MojoComponent
     private MavenProjectHelper projectHelper;
 
-    @MojoParameter(expression = "${wmb.compiler.compilerId}", defaultValue = "mqsicreatebar")
-    private String compilerId;
+    /**
+     * Number of broker archives to build concurrently. Each worker runs the toolkit against its own copy of the
+     * generated sources so that concurrent Eclipse instances do not contend for workspace locks.
+     */
+    @MojoParameter(expression = "${wmb.package.threads}", defaultValue = "1")
+    private int threads;
 
     /**
-     * Full path to mqsicreatebar command.
+     * Reuse previously built archives whose inputs (toolkit, command line and workspace content) are unchanged.
      */
-    @MojoParameter(defaultValue = "/opt/IBM/WMBT800", expression = "${wmb.toolkitDirectory}")
-    private File toolkitDirectory;
+    @MojoParameter(expression = "${wmb.buildCache}", defaultValue = "false")
+    private boolean buildCache;
 
-    private File _mqsicreatebar;
+    /**
+     * Directory holding previously built archives keyed by the fingerprint of their inputs, may be shared between
+     * modules, checkouts and concurrent builds on the same machine.
+     */
+    @MojoParameter(expression = "${wmb.buildCacheDirectory}", defaultValue = "${user.home}/.wmb/build-cache")
+    private File buildCacheDirectory;
 
-    private Toolchain getToolchain() {
-        if (toolchainManager != null) {
-            return toolchainManager.getToolchainFromBuildContext("mqsitoolkit", session);
-        }
-        return null;
-    }
+    /**
+     * Budget in bytes for the build cache directory, least recently used archives are evicted beyond this size.
+     */
+    @MojoParameter(expression = "${wmb.buildCacheMaxSize}", defaultValue = "2147483648")
+    private long buildCacheMaxSize;
 
-    private File getMQSICreateBar() throws MojoExecutionException {
-        if (_mqsicreatebar == null) {
-            Toolchain tc = getToolchain();
-            if (tc != null) {
-                getLog().info("Toolchain in wmb-maven-plugin: " + tc);
-                _mqsicreatebar = new File(tc.findTool(compilerId));
-            }
+    /**
+     * Terminate the toolkit as soon as it reports a fatal diagnostic rather than waiting for it to exit.
+     */
+    @MojoParameter(expression = "${wmb.failFast}", defaultValue = "false")
+    private boolean failFast;
 
-            if (_mqsicreatebar != null) {
-                toolkitDirectory = _mqsicreatebar.getParentFile();
-            } else {
-                _mqsicreatebar = new File(toolkitDirectory, compilerId);
-            }
+    /**
+     * Regular expressions identifying fatal diagnostics in toolkit output, defaults to BIP error codes and the
+     * toolkit's "Errors occurred" marker.
+     */
+    @MojoParameter
+    private String[] fatalDiagnosticPatterns;
 
-            if (!_mqsicreatebar.exists()) {
-                throw new MojoExecutionException(String.format("Invalid toolkit directory (%s), cannot locate mqsicreatebar.", toolkitDirectory));
-            }
-            if (!_mqsicreatebar.canExecute()) {
-                throw new MojoExecutionException("Permission denied, cannot execute mqsicreatebar.");
-            }
-        }
-        return _mqsicreatebar;
-    }
+    /**
+     * Build each archive in a workspace holding only the projects it requires, as determined from the project
+     * references, rather than every project of the module.
+     */
+    @MojoParameter(expression = "${wmb.minimalWorkspace}", defaultValue = "false")
+    private boolean minimalWorkspace;
+
+    /**
+     * Build archives in persistent workspaces which are reused between builds, keeping the Eclipse metadata warm
+     * and avoiding a clean build where it is safe to do so.
+     */
+    @MojoParameter(expression = "${wmb.workspacePool}", defaultValue = "false")
+    private boolean workspacePool;
+
+    /**
+     * Directory holding the pooled workspaces, may be shared between builds on the same machine.
+     */
+    @MojoParameter(expression = "${wmb.workspacePoolDirectory}", defaultValue = "${user.home}/.wmb/workspaces")
+    private File workspacePoolDirectory;
+
+    /**
+     * Build only the share of the broker archives assigned to this shard, of the form {@code i/N} numbered from one,
+     * writing them to {@link #shardDirectory} rather than attaching them. The gather goal attaches the output of
+     * every shard.
+     */
+    @MojoParameter(expression = "${wmb.shard}")
+    private String shard;
+
+    /**
+     * Directory to which each shard writes its output, in a sub-directory of its own.
+     */
+    @MojoParameter(expression = "${wmb.shardDirectory}", defaultValue = "${project.build.directory}/wmb-shards")
+    private File shardDirectory;
+
+    /**
+     * Build only the archives affected by changes made since this git revision, taking the others from
+     * {@link #previousBuildDirectory}.
+     */
+    @MojoParameter(expression = "${wmb.affectedSince}")
+    private String affectedSince;
+
+    /**
+     * Directory holding the archives of a previous build, from which archives unaffected by changes are taken.
+     */
+    @MojoParameter(expression = "${wmb.previousBuildDirectory}", defaultValue = "${project.build.directory}")
+    private File previousBuildDirectory;
+
+    /**
+     * Check the projects, deployable files and flow references of every archive before launching the toolkit.
+     */
+    @MojoParameter(expression = "${wmb.validate}", defaultValue = "true")
+    protected boolean validate;
+
+    /**
+     * Rewrite built archives into a reproducible form, with sorted entries, fixed timestamps and a canonical
+     * descriptor written first, so that identical inputs produce identical archives.
+     */
+    @MojoParameter(expression = "${wmb.normalize}", defaultValue = "false")
+    private boolean normalize;
+
+    /**
+     * Rebuild only the message flows which changed, along with their subflows and ESQL modules, since an archive was
+     * last built and splice them into the previous archive. Archives are rebuilt in full when any other input has
+     * changed, and always when they contain applications or libraries.
+     */
+    @MojoParameter(expression = "${wmb.incremental}", defaultValue = "false")
+    private boolean incremental;
+
+    /**
+     * Maximum number of deployable files built by a single toolkit run, larger archives are built in parts which are
+     * merged afterwards. Zero for no limit.
+     */
+    @MojoParameter(expression = "${wmb.chunkSize}", defaultValue = "0")
+    private int chunkSize;
+
+    /**
+     * Maximum length of a toolkit command line in characters, archives whose deployable files would exceed it are
+     * built in parts which are merged afterwards.
+     */
+    @MojoParameter(expression = "${wmb.maxCommandLength}", defaultValue = "32000")
+    private int maxCommandLength;
+
+    private BuildCache barBuildCache;
+
+    private ToolkitGovernor governor;
+
+    private WorkspacePool pool;
+
+    private ProjectGraph projectGraph;
 
     /**
      * Standard Maven mojo method for running plugin classes. This examines the
@@ -125,6 +273,48 @@ public final class PackageBarMojo extends AbstractBarMojo {
      * @throws MojoFailureException
      */
     public void processBarArtifacts() throws MojoExecutionException, MojoFailureException {
+        initialise();
+
+        Map<BrokerArchive, File> barFiles = Maps.newIdentityHashMap();
+        List<BrokerArchive> archives = Lists.newArrayList(brokerArchives);
+        Shard selectedShard = null;
+        if (!Strings.isNullOrEmpty(shard)) {
+            try {
+                selectedShard = Shard.parse(shard);
+            } catch (IllegalArgumentException e) {
+                throw new MojoFailureException(e.getMessage());
+            }
+            archives = selectShardArchives(archives, selectedShard);
+        }
+        if (!Strings.isNullOrEmpty(affectedSince)) {
+            archives = selectAffectedArchives(archives, barFiles);
+        }
+
+        Map<BrokerArchive, Map<String, File>> artifacts = buildArchiveArtifacts(archives, barFiles);
+
+        if (selectedShard != null) {
+            writeShard(selectedShard, artifacts);
+        } else {
+            for (Map<String, File> archiveArtifacts : artifacts.values()) {
+                for (Map.Entry<String, File> entry : archiveArtifacts.entrySet()) {
+                    projectHelper.attachArtifact(project, Types.BROKER_ARCHIVE_TYPE, entry.getKey(), entry.getValue());
+                }
+            }
+        }
+
+        if (barBuildCache != null) {
+            getLog().info("Build cache " + barBuildCache.getDirectory() + ": " + barBuildCache.getStatistics());
+        }
+    }
+
+    /**
+     * Check the configuration, validate the archives and prepare the toolkit, build cache and workspace pool shared
+     * by every build.
+     *
+     * @throws MojoExecutionException
+     * @throws MojoFailureException
+     */
+    protected void initialise() throws MojoExecutionException, MojoFailureException {
         if (brokerArchives == null || brokerArchives.length == 0) {
             throw new MojoFailureException("Invalid configuration, no BAR artifacts found.");
         }
@@ -133,20 +323,633 @@ public final class PackageBarMojo extends AbstractBarMojo {
             if (!archive.isFilenameProvided()) {
                 throw new MojoFailureException("Require archive filename");
             }
+        }
+
+        if (validate) {
+            validateArchives();
+        }
+
+        /* Resolve the toolkit up front rather than racing to do so from each worker */
+        if (!isPackageOnly()) {
+            getMQSICreateBar();
+            governor = createGovernor();
+            if (toolkitClassSharing && !isTrained()) {
+                getLog().info("Shared class cache " + toolkitClassCacheName + " has not been trained with this "
+                        + "toolkit, run the train-toolkit goal to populate it ahead of the build.");
+            }
+        }
+
+        if (buildCache) {
+            barBuildCache = new BuildCache(buildCacheDirectory, buildCacheMaxSize);
+        }
+
+        if (workspacePool) {
+            pool = new WorkspacePool(workspacePoolDirectory);
+        }
+    }
+
+    /**
+     * Build the given archives and split those of individual flows.
+     *
+     * @param archives Broker archives to build
+     * @param barFiles Archives mapped to their archive files, to which those built are added
+     * @return Classifiers mapped to the artifact files of every archive built or already present in {@code barFiles},
+     *         in declaration order
+     * @throws MojoExecutionException
+     */
+    protected Map<String, File> buildArchives(List<BrokerArchive> archives, Map<BrokerArchive, File> barFiles)
+            throws MojoExecutionException {
+        Map<String, File> artifacts = Maps.newLinkedHashMap();
+        for (Map<String, File> archiveArtifacts : buildArchiveArtifacts(archives, barFiles).values()) {
+            artifacts.putAll(archiveArtifacts);
+        }
+        return artifacts;
+    }
+
+    /**
+     * Build the given archives and split those of individual flows.
+     *
+     * @param archives Broker archives to build
+     * @param barFiles Archives mapped to their archive files, to which those built are added
+     * @return Every archive built or already present in {@code barFiles} mapped to the classifiers and files of its
+     *         artifacts, in declaration order
+     * @throws MojoExecutionException
+     */
+    private Map<BrokerArchive, Map<String, File>> buildArchiveArtifacts(List<BrokerArchive> archives,
+                                                                        Map<BrokerArchive, File> barFiles)
+            throws MojoExecutionException {
+        /* Project references are read afresh for each set of builds */
+        if (minimalWorkspace) {
+            projectGraph = new ProjectGraph(new File(generatedSourcesDir));
+        }
+
+        final int workers = Math.max(1, Math.min(threads, archives.size()));
+
+        if (archives.isEmpty()) {
+            getLog().info("No broker archives to build.");
+        } else if (workers == 1) {
+            try {
+                for (BrokerArchive archive : archives) {
+                    barFiles.put(archive, build(archive, null, getLog()));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new MojoExecutionException("Interrupted building broker archives.", e);
+            }
+        } else {
+            List<File> built = processConcurrently(archives, workers);
+            for (int i = 0; i < archives.size(); i++) {
+                barFiles.put(archives.get(i), built.get(i));
+            }
+        }
+
+        if (projectGraph != null) {
+            logProjectGraph(projectGraph);
+        }
+
+        /* Collect in declaration order regardless of the order in which builds completed */
+        Map<BrokerArchive, Map<String, File>> artifacts = Maps.newLinkedHashMap();
+        for (BrokerArchive archive : brokerArchives) {
+            if (!barFiles.containsKey(archive)) {
+                continue;
+            }
+            if (archive.isIndividual()) {
+                artifacts.put(archive, splitArchive(archive, barFiles.get(archive)));
+            } else {
+                artifacts.put(archive, Collections.singletonMap(archive.getClassifier(), barFiles.get(archive)));
+            }
+        }
+        return artifacts;
+    }
+
+    /**
+     * Validate every archive against the prepared sources, reporting all problems found at once.
+     *
+     * @throws MojoExecutionException
+     * @throws MojoFailureException
+     */
+    protected void validateArchives() throws MojoExecutionException, MojoFailureException {
+        long started = System.currentTimeMillis();
+        ArchiveValidator validator = new ArchiveValidator(new ProjectGraph(new File(generatedSourcesDir)));
+        List<String> problems = Lists.newArrayList();
+        try {
+            for (BrokerArchive archive : brokerArchives) {
+                String[] deployableFiles = archive.getDeployableFiles() == null
+                        ? null : resolveIncludedFiles(archive.getDeployableFiles());
+                problems.addAll(validator.validate(archive, deployableFiles));
+            }
+        } catch (IOException e) {
+            throw propagateMojoExecutionException(e);
+        }
+
+        for (String problem : problems) {
+            getLog().error(problem);
+        }
+        if (!problems.isEmpty()) {
+            throw new MojoFailureException(problems.size() + " problems found validating broker archives.");
+        }
+        getLog().debug("Validated " + brokerArchives.length + " broker archives in "
+                + (System.currentTimeMillis() - started) + "ms.");
+    }
+
+    /**
+     * Select the archives assigned to a shard, weighing each archive by the number of files in the projects it
+     * requires and its deployable files.
+     *
+     * @param archives Broker archives
+     * @param shard    Shard to build
+     * @return Broker archives of the shard, in declaration order
+     * @throws MojoExecutionException
+     */
+    private List<BrokerArchive> selectShardArchives(List<BrokerArchive> archives, Shard shard)
+            throws MojoExecutionException {
+        ProjectGraph graph = new ProjectGraph(new File(generatedSourcesDir));
+        Map<String, Long> weights = Maps.newHashMap();
+        try {
+            for (BrokerArchive archive : archives) {
+                long weight = 1;
+                for (String name : graph.closure(archive.getWorkspaceProjects())) {
+                    weight += countFiles(new File(generatedSourcesDir, name));
+                }
+                if (archive.getDeployableFiles() != null) {
+                    weight += resolveIncludedFiles(archive.getDeployableFiles()).length;
+                }
+                weights.put(archive.getClassifier(), weight);
+            }
+        } catch (ParsingException e) {
+            throw new MojoExecutionException("Invalid project description: " + e.getMessage(), e);
+        } catch (IOException e) {
+            throw propagateMojoExecutionException(e);
+        }
+
+        Set<String> selected = shard.select(weights);
+        List<BrokerArchive> shardArchives = Lists.newArrayList();
+        for (BrokerArchive archive : archives) {
+            if (selected.contains(archive.getClassifier())) {
+                shardArchives.add(archive);
+            }
+        }
+        getLog().info("Shard " + shard + " builds " + shardArchives.size() + " of " + archives.size()
+                + " broker archives: " + Joiner.on(", ").join(selected));
+        return shardArchives;
+    }
+
+    private static long countFiles(File directory) {
+        long count = 0;
+        File[] children = directory.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                if (child.isDirectory()) {
+                    count += METADATA_DIRECTORY.equals(child.getName()) ? 0 : countFiles(child);
+                } else {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Copy the artifacts built by a shard to its output directory along with a manifest from which the gather goal
+     * attaches them.
+     *
+     * @param shard     Shard built
+     * @param artifacts Archives of the shard mapped to the classifiers and files of their artifacts, in declaration
+     *                  order
+     * @throws MojoExecutionException
+     */
+    private void writeShard(Shard shard, Map<BrokerArchive, Map<String, File>> artifacts)
+            throws MojoExecutionException {
+        File directory = new File(shardDirectory, shard.getDirectoryName());
+        Properties manifest = new Properties();
+        manifest.setProperty(Shard.SHARD_PROPERTY, shard.toString());
+        List<String> classifiers = Lists.newArrayList();
+        for (BrokerArchive archive : artifacts.keySet()) {
+            classifiers.add(archive.getClassifier());
+        }
+        manifest.setProperty(Shard.ARCHIVES_PROPERTY, Joiner.on(',').join(classifiers));
+
+        int count = 0;
+        try {
+            FileUtils.deleteDirectory(directory);
+            if (!directory.mkdirs()) {
+                throw new IOException("Unable to create " + directory);
+            }
+            for (Map.Entry<BrokerArchive, Map<String, File>> archive : artifacts.entrySet()) {
+                /* Properties are unordered, so the artifacts of each archive are listed in order */
+                manifest.setProperty(Shard.ARCHIVE_ARTIFACTS_PROPERTY_PREFIX + archive.getKey().getClassifier(),
+                        Joiner.on(',').join(archive.getValue().keySet()));
+                for (Map.Entry<String, File> entry : archive.getValue().entrySet()) {
+                    FileUtils.copyFileToDirectory(entry.getValue(), directory);
+                    manifest.setProperty(Shard.ARTIFACT_PROPERTY_PREFIX + entry.getKey(), entry.getValue().getName());
+                    count++;
+                }
+            }
+
+            OutputStream os = new FileOutputStream(new File(directory, Shard.MANIFEST));
+            try {
+                manifest.store(os, "Broker archives built by shard " + shard);
+            } finally {
+                IOUtil.close(os);
+            }
+        } catch (IOException e) {
+            throw propagateMojoExecutionException(e);
+        }
+        getLog().info("Shard " + shard + " wrote " + count + " artifacts to " + directory
+                + ", run the gather goal once every shard has completed.");
+    }
+
+    /**
+     * Select the archives affected by changes made since {@link #affectedSince}, taking those unaffected from the
+     * output of a previous build. An archive is affected by a change to any project it requires, directly or through
+     * project references, or to any of its deployable files. A change outside of the workspace projects, whether
+     * beneath the base directory, such as to the POM, or elsewhere in the repository, such as to a parent POM, affects
+     * every archive.
+     *
+     * @param archives Broker archives
+     * @param barFiles Archives mapped to their previously built archive files, for those unaffected
+     * @return Broker archives to build
+     * @throws MojoExecutionException
+     */
+    private List<BrokerArchive> selectAffectedArchives(List<BrokerArchive> archives, Map<BrokerArchive, File> barFiles)
+            throws MojoExecutionException {
+        GitChangeSet changes;
+        File sourceDirectory;
+        try {
+            sourceDirectory = new File(basedir).getCanonicalFile();
+            changes = GitChangeSet.since(sourceDirectory, affectedSince);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Unable to determine changes since " + affectedSince + ": "
+                    + e.getMessage(), e);
+        }
+
+        List<String> paths = changes.getRelativePaths(sourceDirectory);
+        if (paths.size() < changes.getFiles().size()) {
+            getLog().info("Building every broker archive, files outside of " + sourceDirectory + " changed since "
+                    + affectedSince + ".");
+            return archives;
+        }
+
+        ProjectGraph sourceGraph = new ProjectGraph(sourceDirectory);
+        Set<String> changedProjects = Sets.newHashSet();
+        for (String path : paths) {
+            String name = path.indexOf('/') < 0 ? null : path.substring(0, path.indexOf('/'));
+            if (name == null || !isProject(sourceGraph, name)) {
+                getLog().info("Building every broker archive, " + path + " changed since " + affectedSince + ".");
+                return archives;
+            }
+            changedProjects.add(name);
+        }
+
+        return selectAffectedArchives(archives, barFiles, changedProjects, changes.getFiles(), previousBuildDirectory,
+                "changes since " + affectedSince);
+    }
+
+    /**
+     * Select the archives affected by changes to the given projects and files, taking those unaffected from the
+     * output of a previous build.
+     *
+     * @param archives          Broker archives
+     * @param barFiles          Archives mapped to their previously built archive files, for those unaffected
+     * @param changedProjects   Names of the changed projects
+     * @param changedFiles      Canonical changed files
+     * @param previousDirectory Directory holding the archives of the previous build
+     * @param description       Description of the changes for the log
+     * @return Broker archives to build
+     * @throws MojoExecutionException
+     */
+    protected List<BrokerArchive> selectAffectedArchives(List<BrokerArchive> archives,
+                                                         Map<BrokerArchive, File> barFiles,
+                                                         Set<String> changedProjects, Set<File> changedFiles,
+                                                         File previousDirectory, String description)
+            throws MojoExecutionException {
+        ProjectGraph sourceGraph = new ProjectGraph(new File(basedir));
+        List<BrokerArchive> affected = Lists.newArrayList();
+        for (BrokerArchive archive : archives) {
+            if (isAffected(archive, sourceGraph, changedProjects, changedFiles)) {
+                affected.add(archive);
+                continue;
+            }
+
+            File previous = new File(previousDirectory, getArtifactFile(archive).getName());
+            if (!previous.isFile()) {
+                getLog().info("No previous build of " + archive.getClassifier() + " found in "
+                        + previousDirectory + ", it will be built.");
+                affected.add(archive);
+                continue;
+            }
+
+            File target = getArtifactFile(archive);
+            try {
+                if (!previous.getCanonicalFile().equals(target.getCanonicalFile())) {
+                    FileUtils.copyFile(previous, target);
+                }
+            } catch (IOException e) {
+                throw propagateMojoExecutionException(e);
+            }
+            barFiles.put(archive, target);
+        }
+
+        getLog().info(affected.size() + " of " + archives.size() + " broker archives affected by " + description + ".");
+        return affected;
+    }
+
+    private static boolean isProject(ProjectGraph graph, String name) throws MojoExecutionException {
+        try {
+            return graph.getProject(name) != null;
+        } catch (ParsingException e) {
+            throw new MojoExecutionException("Invalid project description: " + e.getMessage(), e);
+        } catch (IOException e) {
+            throw propagateMojoExecutionException(e);
+        }
+    }
+
+    private boolean isAffected(BrokerArchive archive, ProjectGraph sourceGraph, Set<String> changedProjects,
+                               Set<File> changedFiles) throws MojoExecutionException {
+        try {
+            for (String name : sourceGraph.closure(archive.getWorkspaceProjects())) {
+                if (changedProjects.contains(name)) {
+                    return true;
+                }
+            }
+        } catch (ParsingException e) {
+            throw new MojoExecutionException("Invalid project description: " + e.getMessage(), e);
+        } catch (IOException e) {
+            throw propagateMojoExecutionException(e);
+        }
+
+        if (archive.getDeployableFiles() != null) {
+            for (String deployableFile : resolveIncludedFiles(archive.getDeployableFiles())) {
+                try {
+                    if (changedFiles.contains(new File(deployableFile).getCanonicalFile())) {
+                        return true;
+                    }
+                } catch (IOException e) {
+                    throw propagateMojoExecutionException(e);
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param archive Broker archive
+     * @return File the archive is built to
+     */
+    protected File getArtifactFile(BrokerArchive archive) {
+        return new File(targetdir, project.getArtifactId() + "-" + project.getVersion() + "-"
+                + archive.getClassifier() + Types.BROKER_ARCHIVE_EXTENSION);
+    }
+
+    /**
+     * Build all broker archives using a fixed pool of workers. Each build runs in a private workspace, either a
+     * pooled or minimal workspace of the archive or one leased from a set of full workspaces for the duration of the
+     * build. Output of each build is written to the log as it is produced, each line tagged with the classifier of
+     * the archive.
+     *
+     * @param archives Broker archives to build
+     * @param workers  Number of concurrent builds
+     * @return Built archive files in the same order as the given broker archives
+     * @throws MojoExecutionException
+     */
+    private List<File> processConcurrently(List<BrokerArchive> archives, int workers) throws MojoExecutionException {
+        final BlockingQueue<File> workspaces = new ArrayBlockingQueue<File>(workers);
+        if (!minimalWorkspace && !workspacePool) {
+            List<String> projects = listGeneratedProjects();
+            for (int i = 0; i < workers; i++) {
+                workspaces.add(syncWorkspace(new File(new File(targetdir, WORKSPACES_DIRECTORY), "worker-" + i), projects));
+            }
+        }
+
+        getLog().info("Building " + archives.size() + " broker archives using " + workers + " workers.");
+
+        ExecutorService executor = Executors.newFixedThreadPool(workers,
+                new ThreadFactoryBuilder().setNameFormat("wmb-package-%d").setDaemon(true).build());
+        try {
+            List<Future<File>> futures = Lists.newArrayList();
+            for (final BrokerArchive archive : archives) {
+                futures.add(executor.submit(new Callable<File>() {
+                    @Override public File call() throws Exception {
+                        return build(archive, workspaces, new PrefixedLog(getLog(), archive.getClassifier()));
+                    }
+                }));
+            }
+
+            List<File> barFiles = Lists.newArrayList();
+            for (Future<File> future : futures) {
+                barFiles.add(future.get());
+            }
+            return barFiles;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException("Interrupted waiting for broker archive builds.", e);
+        } catch (ExecutionException e) {
+            throw propagateMojoExecutionException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Build an archive in the workspace appropriate to the configuration.
+     *
+     * @param archive    Broker archive
+     * @param workspaces Full workspaces shared between workers, null when building serially
+     * @param log        Log to write to
+     * @return Built archive file
+     * @throws MojoExecutionException
+     * @throws InterruptedException
+     */
+    private File build(BrokerArchive archive, BlockingQueue<File> workspaces, Log log)
+            throws MojoExecutionException, InterruptedException {
+        if (workspacePool) {
+            return buildInPooledWorkspace(archive, log);
+        }
+        if (minimalWorkspace) {
+            return process(archive, createArchiveWorkspace(archive, log), cleanBuild, log);
+        }
+        if (workspaces == null) {
+            return process(archive, new File(generatedSourcesDir), cleanBuild, log);
+        }
+
+        File workspace = workspaces.take();
+        try {
+            return process(archive, workspace, cleanBuild, log);
+        } finally {
+            workspaces.add(workspace);
+        }
+    }
+
+    /**
+     * Build an archive in a workspace leased from the pool of persistent workspaces. Only changed sources are
+     * synchronised into the workspace, and the clean build is skipped when the workspace was last built successfully
+     * by the same toolkit and no files have been removed since.
+     *
+     * @param archive Broker archive
+     * @param log     Log to write to
+     * @return Built archive file
+     * @throws MojoExecutionException
+     */
+    private File buildInPooledWorkspace(BrokerArchive archive, Log log) throws MojoExecutionException {
+        Collection<String> projects = minimalWorkspace ? resolveWorkspaceProjects(archive, log) : listGeneratedProjects();
+        String toolkit = getToolkitFingerprint();
+
+        WorkspacePool.Lease lease;
+        try {
+            lease = pool.lease(projects);
+        } catch (IOException e) {
+            throw propagateMojoExecutionException(e);
+        }
+
+        boolean success = false;
+        try {
+            WorkspaceSync sync = new WorkspaceSync(Runtime.getRuntime().availableProcessors());
+            sync.sync(new File(generatedSourcesDir), projects, lease.getWorkspace());
+
+            boolean clean = cleanBuild && !(lease.isWarm(toolkit) && sync.getDeleted() == 0);
+            log.info("Leased " + (clean ? "" : "warm ") + "workspace " + lease.getWorkspace() + " (" + sync.getStatistics() + ")");
+
+            File barFile = process(archive, lease.getWorkspace(), clean, log);
+            success = true;
+            return barFile;
+        } catch (IOException e) {
+            throw propagateMojoExecutionException(e);
+        } finally {
+            lease.release(success ? toolkit : null);
+        }
+    }
+
+    /**
+     * Determine the projects an archive requires: its own projects, applications and libraries and every project
+     * they reference, directly or otherwise.
+     *
+     * @param archive Broker archive
+     * @param log     Log to write to
+     * @return Project names
+     * @throws MojoExecutionException
+     */
+    private Set<String> resolveWorkspaceProjects(BrokerArchive archive, Log log) throws MojoExecutionException {
+        Set<String> projects;
+        try {
+            projects = projectGraph.closure(archive.getWorkspaceProjects());
+        } catch (ParsingException e) {
+            throw new MojoExecutionException("Invalid project description: " + e.getMessage(), e);
+        } catch (IOException e) {
+            throw propagateMojoExecutionException(e);
+        }
+
+        String summary = "Workspace for " + archive.getClassifier() + ": " + Joiner.on(", ").join(projects);
+        if (printProjectGraph) {
+            log.info(summary);
+        } else {
+            log.debug(summary);
+        }
+        return projects;
+    }
+
+    /**
+     * @return Names of every project in the generated sources
+     */
+    private List<String> listGeneratedProjects() {
+        List<String> projects = Lists.newArrayList();
+        File[] children = new File(generatedSourcesDir).listFiles();
+        if (children != null) {
+            for (File child : children) {
+                if (child.isDirectory() && !METADATA_DIRECTORY.equals(child.getName())) {
+                    projects.add(child.getName());
+                }
+            }
+        }
+        return projects;
+    }
 
-            process(archive);
+    /**
+     * Create (or refresh) the workspace of an archive holding only the projects it requires.
+     *
+     * @param archive Broker archive
+     * @param log     Log to write to
+     * @return Workspace directory
+     * @throws MojoExecutionException
+     */
+    private File createArchiveWorkspace(BrokerArchive archive, Log log) throws MojoExecutionException {
+        return syncWorkspace(new File(new File(targetdir, WORKSPACES_DIRECTORY), archive.getClassifier()),
+                resolveWorkspaceProjects(archive, log));
+    }
+
+    /**
+     * Bring a workspace up to date with the given projects of the generated sources, removing any other projects.
+     * Eclipse metadata is left in place and remains private to each workspace.
+     *
+     * @param workspace Workspace directory
+     * @param projects  Names of the projects the workspace should contain
+     * @return Workspace directory
+     * @throws MojoExecutionException
+     */
+    private File syncWorkspace(File workspace, Collection<String> projects) throws MojoExecutionException {
+        try {
+            new WorkspaceSync(Runtime.getRuntime().availableProcessors())
+                    .sync(new File(generatedSourcesDir), projects, workspace);
+        } catch (IOException e) {
+            throw propagateMojoExecutionException(e);
         }
+        return workspace;
     }
 
-    private String[] resolveIncludedFiles(FileSet flowFileSet) {
-        if (flowFileSet.getDirectory() == null) {
-            flowFileSet.setDirectory(basedir);
+    /**
+     * Split an archive built from a single toolkit run into one archive per deployable message flow, each classified
+     * as per {@link BarUtils#createIndividualBarClassifier(BrokerArchive, String)}. Flows of the same name in different
+     * folders or projects would share a classifier, and so fail the build rather than overwrite one another.
+     *
+     * @param archive Broker archive
+     * @param barFile Archive built for all of the flows
+     * @return Classifiers mapped to the archive built for each flow, in the order of the deployable files
+     * @throws MojoExecutionException
+     */
+    private Map<String, File> splitArchive(BrokerArchive archive, File barFile) throws MojoExecutionException {
+        if (archive.getDeployableFiles() == null) {
+            throw new MojoExecutionException("Individual archive " + archive.getClassifier() + " requires deployable files.");
         }
-        String[] includedFiles = fileSetManager.getIncludedFiles(flowFileSet);
-        for (int i = 0; i < includedFiles.length; i++) {
-            includedFiles[i] = FileUtils.catPath(flowFileSet.getDirectory(), includedFiles[i]);
+
+        Map<String, File> classified = Maps.newLinkedHashMap();
+        try {
+            BarSplitter splitter = new BarSplitter(barFile);
+            Map<String, String> flows = splitter.getFlows();
+            Map<String, File> targets = Maps.newLinkedHashMap();
+            Map<String, String> classifiedFiles = Maps.newHashMap();
+            for (String deployableFile : resolveIncludedFiles(archive.getDeployableFiles())) {
+                if (!deployableFile.endsWith(EXT_MSGFLOW)) {
+                    continue;
+                }
+                String flow = BarSplitter.findFlow(flows, deployableFile);
+                if (flow == null) {
+                    throw new MojoExecutionException("Compiled flow for " + deployableFile + " not found in " + barFile);
+                }
+                String classifier = BarUtils.createIndividualBarClassifier(archive, new File(deployableFile).getName());
+                String previous = classifiedFiles.put(classifier, deployableFile);
+                if (previous != null) {
+                    throw new MojoExecutionException("Deployable files " + previous + " and " + deployableFile
+                            + " of " + archive.getClassifier() + " would both be split into classifier " + classifier
+                            + ", rename one of the flows.");
+                }
+                File target = new File(targetdir, project.getArtifactId() + "-" + project.getVersion() + "-"
+                        + classifier + Types.BROKER_ARCHIVE_EXTENSION);
+                targets.put(flow, target);
+                classified.put(classifier, target);
+            }
+
+            getLog().info("Splitting " + barFile.getName() + " into " + targets.size() + " individual archives.");
+            splitter.split(targets);
+            if (normalize) {
+                for (File target : targets.values()) {
+                    normalizeArchive(target);
+                }
+            }
+        } catch (ParsingException e) {
+            throw propagateMojoExecutionException(e);
+        } catch (IOException e) {
+            throw propagateMojoExecutionException(e);
         }
-        return includedFiles;
+        return classified;
     }
 
     /**
@@ -160,81 +963,541 @@ public final class PackageBarMojo extends AbstractBarMojo {
      * best practice for using mqsicreatebar, which runs a headless instance
      * of Eclipse each time it is invoked.
      *
-     * @param archive
+     * @param archive   Broker archive to build
+     * @param workspace Toolkit workspace to build within
+     * @param clean     Whether the toolkit should perform a clean build
+     * @param log       Log to write build output to
+     * @return Built archive file
      * @throws MojoExecutionException
      */
-    private void process(BrokerArchive archive) throws MojoExecutionException {
-        final String artifactFilename = project.getArtifactId() +
-                "-" + project.getVersion() + "-" + archive.getClassifier()+ Types.BROKER_ARCHIVE_EXTENSION;
+    private File process(BrokerArchive archive, File workspace, boolean clean, Log log) throws MojoExecutionException {
+        File targetBarFile = getArtifactFile(archive);
+        final String artifactFilename = targetBarFile.getName();
 
-        File targetBarFile = new File(targetdir, artifactFilename);
+        String[] deployableFiles = archive.getDeployableFiles() == null
+                ? null : resolveIncludedFiles(archive.getDeployableFiles());
+        List<String> command = buildCommand(archive, workspace, targetBarFile, deployableFiles, clean);
 
-        ProcessBuilder pb = new ProcessBuilder(buildCommand(archive, targetBarFile));
-        pb.directory(new File(generatedSourcesDir));
+        String cacheKey = null;
+        File fingerprintFile = new File(targetdir, artifactFilename + FINGERPRINT_EXTENSION);
+        if (barBuildCache != null) {
+            try {
+                cacheKey = createCacheKey(archive, command, workspace, targetBarFile, deployableFiles);
+                if (targetBarFile.isFile() && fingerprintFile.isFile()
+                        && cacheKey.equals(Files.toString(fingerprintFile, Charsets.UTF_8))) {
+                    log.info("Artifact " + artifactFilename + " is up to date.");
+                    return targetBarFile;
+                }
+                fingerprintFile.delete();
+                if (barBuildCache.restore(cacheKey, targetBarFile)) {
+                    Files.write(cacheKey, fingerprintFile, Charsets.UTF_8);
+                    log.info("Artifact " + artifactFilename + " restored from build cache.");
+                    return targetBarFile;
+                }
+            } catch (IOException e) {
+                throw propagateMojoExecutionException(e);
+            }
+        }
 
-        // Run the build command.
-        try {
-            getLog().info("Building artifact " + artifactFilename + ", this may take a few moments.");
-            getLog().debug(pb.toString());
+        FlowManifest flowManifest = null;
+        FlowManifest previousFlowManifest = null;
+        File flowManifestFile = new File(targetdir, artifactFilename + FlowManifest.EXTENSION);
+        if (incremental && !isPackageOnly() && deployableFiles != null) {
+            flowManifest = createFlowManifest(archive, deployableFiles);
+            try {
+                previousFlowManifest = FlowManifest.load(flowManifestFile);
+            } catch (IOException e) {
+                log.warn("Unable to read flow hashes of " + artifactFilename + ": " + e.getMessage());
+            }
+        }
+        /* The archive no longer matches its manifest from here on, until rebuilt */
+        flowManifestFile.delete();
+        boolean patched = previousFlowManifest != null && patchArchive(archive, workspace, targetBarFile,
+                flowManifest, previousFlowManifest, clean, log);
+
+        if (patched) {
+            log.debug("Artifact " + artifactFilename + " patched incrementally.");
+        } else if (isPackageOnly()) {
+            log.info("Packaging artifact " + artifactFilename + " without the toolkit.");
+            packageArchive(archive, workspace, deployableFiles, targetBarFile, log);
+        } else {
+            List<String[]> chunks = partitionDeployableFiles(archive, workspace, targetBarFile, deployableFiles);
+            if (chunks.size() > 1) {
+                buildInChunks(archive, workspace, chunks, targetBarFile, clean, log);
+            } else {
+                log.info("Building artifact " + artifactFilename + ", this may take a few moments.");
+                runGovernedToolkit(command, workspace, artifactFilename, log);
+            }
+        }
 
-            Process proc = pb.start();
+        if (normalize) {
+            normalizeArchive(targetBarFile);
+        }
+
+        if (flowManifest != null) {
             try {
-                proc.waitFor();
-                try {
-                    BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(proc.getInputStream()));
-                    String s;
-                    while ((s = bufferedReader.readLine()) != null) {
-                        getLog().info(s.trim());
+                flowManifest.store(flowManifestFile);
+            } catch (IOException e) {
+                log.warn("Unable to record flow hashes of " + artifactFilename + ": " + e.getMessage());
+            }
+        }
+
+        if (cacheKey != null) {
+            try {
+                barBuildCache.store(cacheKey, targetBarFile);
+                Files.write(cacheKey, fingerprintFile, Charsets.UTF_8);
+            } catch (IOException e) {
+                log.warn("Unable to store " + artifactFilename + " in build cache: " + e.getMessage());
+            }
+        }
+
+        return targetBarFile;
+    }
+
+    /**
+     * Hash the inputs of an archive, each deployable message flow together with the subflows and ESQL files it
+     * depends upon and everything else as a whole.
+     *
+     * @param archive         Broker archive
+     * @param deployableFiles Resolved deployable files
+     * @return Manifest of the archive inputs
+     * @throws MojoExecutionException
+     */
+    private FlowManifest createFlowManifest(BrokerArchive archive, String[] deployableFiles)
+            throws MojoExecutionException {
+        ProjectGraph graph = new ProjectGraph(new File(generatedSourcesDir));
+        ArchiveValidator validator = new ArchiveValidator(graph);
+        FlowManifest.Builder builder = new FlowManifest.Builder(new Fingerprint().putString(getToolkitFingerprint()));
+        if (normalize) {
+            builder.putShared(BarNormalizer.class.getName());
+        }
+
+        try {
+            /* Flows are hashed as synchronised to the generated sources, the same tree as the shared inputs */
+            for (String deployableFile : deployableFiles) {
+                File file = toGeneratedSource(new File(deployableFile));
+                if (!deployableFile.endsWith(EXT_MSGFLOW) || !file.isFile()) {
+                    builder.putShared(deployableFile);
+                    if (file.isFile()) {
+                        builder.putSharedFile(file);
                     }
+                    continue;
+                }
+                builder.putFlow(deployableFile, file, validator.getDependencies(file));
+            }
 
-                    getLog().debug("mqsicreatebar returned exit code " + proc.exitValue());
-                    if (proc.exitValue() > 0) {
-                        throw new MojoExecutionException(IOUtil.toString(proc.getErrorStream()));
+            for (String name : archive.getWorkspaceProjects()) {
+                builder.putShared(name);
+            }
+            for (String name : graph.closure(archive.getWorkspaceProjects())) {
+                builder.putShared(name).putSharedTree(new File(generatedSourcesDir, name));
+            }
+            return builder.build();
+        } catch (ParsingException e) {
+            throw new MojoExecutionException("Invalid project description: " + e.getMessage(), e);
+        } catch (IOException e) {
+            throw propagateMojoExecutionException(e);
+        }
+    }
+
+    /**
+     * Locate the copy of a file beneath the base directory within the generated sources.
+     *
+     * @param file File beneath the base directory
+     * @return Synchronised copy of the file, or the file itself if it lies elsewhere or has no copy
+     * @throws IOException
+     */
+    private File toGeneratedSource(File file) throws IOException {
+        String base = new File(basedir).getCanonicalPath() + File.separator;
+        String path = file.getCanonicalPath();
+        if (path.startsWith(base)) {
+            File generated = new File(generatedSourcesDir, path.substring(base.length()));
+            if (generated.isFile()) {
+                return generated;
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Bring the previously built archive up to date by rebuilding only the flows which have changed since and
+     * merging the partial archive built for them over the previous one.
+     *
+     * @param archive       Broker archive
+     * @param workspace     Toolkit workspace
+     * @param targetBarFile Previously built archive, replaced by the patched archive
+     * @param manifest      Manifest of the current inputs
+     * @param previous      Manifest of the previous build
+     * @param clean         Whether the toolkit should perform a clean build
+     * @param log           Log to write to
+     * @return true if the archive was patched, false if it must be rebuilt in full
+     * @throws MojoExecutionException
+     */
+    private boolean patchArchive(BrokerArchive archive, File workspace, File targetBarFile, FlowManifest manifest,
+                                 FlowManifest previous, boolean clean, Log log) throws MojoExecutionException {
+        String artifactFilename = targetBarFile.getName();
+        if (!targetBarFile.isFile() || archive.getApplications() != null && archive.getApplications().length > 0
+                || archive.getLibraries() != null && archive.getLibraries().length > 0) {
+            return false;
+        }
+
+        Set<String> changed = manifest.getChangedFlows(previous);
+        if (changed == null || changed.size() == manifest.getFlows().size()) {
+            return false;
+        }
+        if (changed.isEmpty()) {
+            log.info("Artifact " + artifactFilename + " is up to date.");
+            return true;
+        }
+
+        String[] changedFiles = changed.toArray(new String[changed.size()]);
+        if (partitionDeployableFiles(archive, workspace, targetBarFile, changedFiles).size() > 1) {
+            return false;
+        }
+
+        File directory = new File(new File(targetdir, INCREMENTAL_DIRECTORY), archive.getClassifier());
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new MojoExecutionException("Unable to create " + directory);
+        }
+        File partial = new File(directory, "partial" + Types.BROKER_ARCHIVE_EXTENSION);
+        File previousBarFile = new File(directory, "previous" + Types.BROKER_ARCHIVE_EXTENSION);
+
+        log.info("Rebuilding " + changed.size() + " of " + manifest.getFlows().size() + " flows of artifact "
+                + artifactFilename + ".");
+        runGovernedToolkit(buildCommand(archive, workspace, partial, changedFiles, clean), workspace,
+                artifactFilename + " (incremental)", log);
+
+        /* Entries and declarations of the rebuilt flows take precedence over those of the previous archive */
+        try {
+            FileUtils.copyFile(targetBarFile, previousBarFile);
+            new BarMerger().merge(Arrays.asList(partial, previousBarFile), targetBarFile);
+        } catch (ParsingException e) {
+            throw propagateMojoExecutionException(e);
+        } catch (IOException e) {
+            throw propagateMojoExecutionException(e);
+        } finally {
+            partial.delete();
+            previousBarFile.delete();
+        }
+        return true;
+    }
+
+    private void normalizeArchive(File barFile) throws MojoExecutionException {
+        try {
+            new BarNormalizer().normalize(barFile);
+        } catch (ParsingException e) {
+            throw propagateMojoExecutionException(e);
+        } catch (IOException e) {
+            throw propagateMojoExecutionException(e);
+        }
+    }
+
+    /**
+     * Run the toolkit once a toolkit slot is free.
+     *
+     * @param command     Toolkit command
+     * @param workspace   Toolkit workspace
+     * @param description Description of the run for the log
+     * @param log         Log to write process output to
+     * @throws MojoExecutionException
+     */
+    private void runGovernedToolkit(List<String> command, File workspace, String description, Log log)
+            throws MojoExecutionException {
+        ProcessBuilder pb = new ProcessBuilder(command);
+        pb.directory(workspace);
+
+        ToolkitGovernor.Permit permit;
+        try {
+            permit = governor.acquire(log, description);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException("Interrupted waiting for a toolkit slot.", e);
+        } catch (IOException e) {
+            throw propagateMojoExecutionException(e);
+        }
+
+        try {
+            runToolkit(pb, log);
+        } finally {
+            permit.release();
+        }
+    }
+
+    /**
+     * Divide the deployable files of an archive into chunks, each small enough to be built by a single toolkit run
+     * within the configured limits on chunk size and command line length.
+     *
+     * @return Chunks of deployable files, a single chunk if the archive need not be divided
+     * @throws MojoExecutionException
+     */
+    private List<String[]> partitionDeployableFiles(BrokerArchive archive, File workspace, File targetBarFile,
+                                                    String[] deployableFiles) throws MojoExecutionException {
+        List<String[]> chunks = Lists.newArrayList();
+        if (deployableFiles == null || deployableFiles.length <= 1) {
+            chunks.add(deployableFiles);
+            return chunks;
+        }
+
+        int baseLength = 0;
+        for (String argument : buildCommand(archive, workspace, targetBarFile, new String[0], true)) {
+            baseLength += argument.length() + 1;
+        }
+
+        List<String> chunk = Lists.newArrayList();
+        int length = baseLength;
+        for (String deployableFile : deployableFiles) {
+            boolean full = (chunkSize > 0 && chunk.size() >= chunkSize)
+                    || length + deployableFile.length() + 1 > maxCommandLength;
+            if (full && !chunk.isEmpty()) {
+                chunks.add(chunk.toArray(new String[chunk.size()]));
+                chunk.clear();
+                length = baseLength;
+            }
+            chunk.add(deployableFile);
+            length += deployableFile.length() + 1;
+        }
+        chunks.add(chunk.toArray(new String[chunk.size()]));
+        return chunks;
+    }
+
+    /**
+     * Build an archive in parts, each from a chunk of its deployable files, and merge the parts. Parts are built
+     * concurrently in workspaces of their own where toolkit slots allow, otherwise one after another in the archive
+     * workspace.
+     *
+     * @throws MojoExecutionException
+     */
+    private void buildInChunks(final BrokerArchive archive, File workspace, List<String[]> chunks, File targetBarFile,
+                               boolean clean, final Log log) throws MojoExecutionException {
+        File chunkDirectory = new File(new File(targetdir, CHUNKS_DIRECTORY), archive.getClassifier());
+        if (!chunkDirectory.isDirectory() && !chunkDirectory.mkdirs()) {
+            throw new MojoExecutionException("Unable to create " + chunkDirectory);
+        }
+
+        int workers = Math.min(chunks.size(), governor.getSlots());
+        Collection<String> projects = null;
+        if (workers > 1) {
+            projects = projectGraph != null ? resolveWorkspaceProjects(archive, log) : listGeneratedProjects();
+        }
+        log.info("Building artifact " + targetBarFile.getName() + " in " + chunks.size() + " parts using "
+                + workers + " workers, this may take a few moments.");
+
+        final List<File> parts = Lists.newArrayList();
+        List<Callable<Void>> tasks = Lists.newArrayList();
+        for (int i = 0; i < chunks.size(); i++) {
+            File part = new File(chunkDirectory, "part-" + i + Types.BROKER_ARCHIVE_EXTENSION);
+            parts.add(part);
+
+            final File chunkWorkspace = workers > 1 ? syncWorkspace(new File(new File(targetdir, WORKSPACES_DIRECTORY),
+                    archive.getClassifier() + "-part-" + i), projects) : workspace;
+            /* Parts built one after another share the workspace, which needs cleaning once at most */
+            final List<String> command = buildCommand(archive, chunkWorkspace, part, chunks.get(i),
+                    clean && (workers > 1 || i == 0));
+            final String description = targetBarFile.getName() + " (part " + (i + 1) + " of " + chunks.size() + ")";
+            tasks.add(new Callable<Void>() {
+                @Override public Void call() throws Exception {
+                    runGovernedToolkit(command, chunkWorkspace, description, log);
+                    return null;
+                }
+            });
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(workers,
+                new ThreadFactoryBuilder().setNameFormat("wmb-part-%d").setDaemon(true).build());
+        try {
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+            new BarMerger().merge(parts, targetBarFile);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException("Interrupted building " + targetBarFile.getName(), e);
+        } catch (ExecutionException e) {
+            throw propagateMojoExecutionException(e.getCause());
+        } catch (ParsingException e) {
+            throw propagateMojoExecutionException(e);
+        } catch (IOException e) {
+            throw propagateMojoExecutionException(e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Package the archive in-process from the prebuilt resources of its projects.
+     *
+     * @param archive         Broker archive to package
+     * @param workspace       Workspace containing the archive projects
+     * @param deployableFiles Resolved deployable files, may be null
+     * @param targetBarFile   Archive file to create
+     * @param log             Log to write progress to
+     * @throws MojoExecutionException
+     */
+    private void packageArchive(BrokerArchive archive, File workspace, String[] deployableFiles, File targetBarFile,
+                                Log log) throws MojoExecutionException {
+        List<File> files = Lists.newArrayList();
+        if (deployableFiles != null) {
+            for (String deployableFile : deployableFiles) {
+                files.add(new File(deployableFile));
+            }
+        }
+
+        try {
+            new BarPackager(workspace, log).createArchive(archive, files, targetBarFile);
+        } catch (ParsingException e) {
+            throw propagateMojoExecutionException(e);
+        } catch (IOException e) {
+            throw propagateMojoExecutionException(e);
+        }
+    }
+
+    /**
+     * Run the toolkit command, streaming its output to the given log.
+     *
+     * @param pb  Process to run
+     * @param log Log to write process output to
+     * @throws MojoExecutionException
+     */
+    private void runToolkit(ProcessBuilder pb, final Log log) throws MojoExecutionException {
+        log.debug(pb.command().toString());
+
+        final DiagnosticParser parser = new DiagnosticParser(fatalDiagnosticPatterns);
+        final List<ToolkitDiagnostic> diagnostics = Collections.synchronizedList(Lists.<ToolkitDiagnostic>newArrayList());
+
+        ProcessSupervisor supervisor = new ProcessSupervisor(log, TimeUnit.SECONDS.toMillis(toolkitTimeout),
+                TimeUnit.SECONDS.toMillis(toolkitInactivityTimeout), CAPTURED_OUTPUT_LINES) {
+            @Override protected void onLine(String line, boolean error) {
+                ToolkitDiagnostic diagnostic = parser.parse(line);
+                if (diagnostic != null) {
+                    diagnostics.add(diagnostic);
+                    /* Workspace errors are tolerated by the toolkit when asked to skip them */
+                    if (failFast && diagnostic.isFatal() && !skipWSErrorCheck) {
+                        abort("Fatal diagnostic reported: " + diagnostic);
                     }
-                } catch (IOException e) {
-                    throw new MojoExecutionException("Error trying to output process input stream", e);
                 }
-            } catch (InterruptedException e) {
-                throw new MojoExecutionException("Error waiting for mqsicreatebar.", e);
-            } finally {
-                IOUtil.close(proc.getInputStream());
-                IOUtil.close(proc.getOutputStream());
-                IOUtil.close(proc.getErrorStream());
             }
+        };
+
+        try {
+            int exitCode = supervisor.run(pb);
+            log.debug("mqsicreatebar returned exit code " + exitCode);
+            if (exitCode != 0) {
+                logDiagnostics(diagnostics, log);
+                throw new MojoExecutionException("mqsicreatebar returned exit code " + exitCode + ":\n"
+                        + Joiner.on('\n').join(supervisor.getOutput()));
+            }
+            logDiagnostics(diagnostics, log);
+        } catch (ProcessSupervisor.AbortedException e) {
+            logDiagnostics(diagnostics, log);
+            throw new MojoExecutionException("mqsicreatebar was terminated. " + e.getMessage() + ":\n"
+                    + Joiner.on('\n').join(supervisor.getOutput()), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException("Error waiting for mqsicreatebar.", e);
         } catch (IOException e) {
             throw new MojoExecutionException("Error running mqsicreatebar command.", e);
         }
+    }
 
-        projectHelper.attachArtifact(project, Types.BROKER_ARCHIVE_TYPE, archive.getClassifier(), targetBarFile);
+    /**
+     * Write a summary of the diagnostics reported by a toolkit run.
+     *
+     * @param diagnostics Diagnostics in the order reported
+     * @param log         Log to write to
+     */
+    private void logDiagnostics(List<ToolkitDiagnostic> diagnostics, Log log) {
+        synchronized (diagnostics) {
+            if (diagnostics.isEmpty()) {
+                return;
+            }
+            log.info("----- mqsicreatebar diagnostics (" + diagnostics.size() + ") -----");
+            for (ToolkitDiagnostic diagnostic : diagnostics) {
+                String summary = String.format("%-9s %-30s %-40s %6s  %s",
+                        Strings.nullToEmpty(diagnostic.getCode()),
+                        Strings.nullToEmpty(diagnostic.getProject()),
+                        Strings.nullToEmpty(diagnostic.getResource()),
+                        diagnostic.getLine() == null ? "" : diagnostic.getLine(),
+                        diagnostic.getMessage());
+                if (diagnostic.isFatal()) {
+                    log.error(summary);
+                } else {
+                    log.warn(summary);
+                }
+            }
+        }
     }
 
-    private List<String> buildCommand(BrokerArchive archive, File targetBarFile) throws MojoExecutionException {
-        List<String> cmdlist = new ArrayList<String>();
-        cmdlist.add(getMQSICreateBar().getAbsolutePath());
-        cmdlist.add("-data");
-        cmdlist.add(generatedSourcesDir);
-        cmdlist.add("-b");
-        cmdlist.add(targetBarFile.getAbsolutePath());
+    /**
+     * Compute the build cache key of an archive from the toolkit, the toolkit command line (with build specific
+     * paths normalised) and the content of every deployable file and every project which makes up the archive,
+     * including the projects it references. The same key decides whether the archive already built is up to date.
+     *
+     * @param archive         Broker archive being built
+     * @param command         Toolkit command line
+     * @param workspace       Toolkit workspace
+     * @param targetBarFile   Archive file being built
+     * @param deployableFiles Resolved deployable files, may be null
+     * @return Cache key
+     * @throws IOException
+     * @throws MojoExecutionException
+     */
+    private String createCacheKey(BrokerArchive archive, List<String> command, File workspace, File targetBarFile,
+                                  String[] deployableFiles) throws IOException, MojoExecutionException {
+        Fingerprint fingerprint = new Fingerprint().putString(getToolkitFingerprint());
+        if (normalize) {
+            fingerprint.putString(BarNormalizer.class.getName());
+        }
 
-        if (archive.getDeployableFiles() != null) {
-            cmdlist.add("-o");
-            Collections.addAll(cmdlist, resolveIncludedFiles(archive.getDeployableFiles()));
+        /* Neither JVM tuning nor whether or not the build is clean affect its output */
+        int end = command.indexOf(VMARGS_ARGUMENT);
+        for (String argument : command.subList(1, end < 0 ? command.size() : end)) {
+            if (!CLEAN_BUILD_ARGUMENT.equals(argument)) {
+                fingerprint.putString(normaliseArgument(argument, workspace, targetBarFile));
+            }
         }
 
-        if (archive.getProjects() != null && archive.getProjects().length > 0) {
-            cmdlist.add("-p");
-            Collections.addAll(cmdlist, archive.getProjects());
+        /* Referenced projects contribute shared libraries, subflows and ESQL to the archive just as its own do */
+        ProjectGraph graph = projectGraph != null ? projectGraph : new ProjectGraph(new File(generatedSourcesDir));
+        for (String name : archive.getWorkspaceProjects()) {
+            fingerprint.putString(name);
+        }
+        try {
+            for (String name : graph.closure(archive.getWorkspaceProjects())) {
+                fingerprint.putString(name).putTree(new File(workspace, name));
+            }
+        } catch (ParsingException e) {
+            throw new MojoExecutionException("Invalid project description: " + e.getMessage(), e);
         }
 
-        if (archive.getApplications() != null && archive.getApplications().length > 0) {
-            cmdlist.add("-a");
-            Collections.addAll(cmdlist, archive.getApplications());
+        if (deployableFiles != null) {
+            for (String deployableFile : deployableFiles) {
+                File file = new File(deployableFile);
+                if (file.isFile()) {
+                    fingerprint.putFile(file);
+                }
+            }
         }
 
-        if (archive.getLibraries() != null && archive.getLibraries().length > 0) {
-            cmdlist.add("-l");
-            Collections.addAll(cmdlist, archive.getLibraries());
+        return fingerprint.hash();
+    }
+
+    private String normaliseArgument(String argument, File workspace, File targetBarFile) {
+        if (argument.equals(workspace.getAbsolutePath())) {
+            return "${workspace}";
         }
+        if (argument.equals(targetBarFile.getAbsolutePath())) {
+            return "${target}";
+        }
+        String base = new File(basedir).getAbsolutePath() + File.separator;
+        if (argument.startsWith(base)) {
+            return argument.substring(base.length()).replace(File.separatorChar, '/');
+        }
+        return argument;
+    }
+
+    private List<String> buildCommand(BrokerArchive archive, File workspace, File targetBarFile,
+                                      String[] deployableFiles, boolean clean) throws MojoExecutionException {
+        List<String> cmdlist = buildToolkitCommand(archive, workspace, targetBarFile, deployableFiles);
 
         cmdlist.add("-version");
         cmdlist.add(project.getVersion());
@@ -243,8 +1506,16 @@ public final class PackageBarMojo extends AbstractBarMojo {
             cmdlist.add("-skipWSErrorCheck");
         }
 
-        if (cleanBuild) {
-            cmdlist.add("-cleanBuild");
+        if (clean) {
+            cmdlist.add(CLEAN_BUILD_ARGUMENT);
+        }
+
+        if (!isPackageOnly()) {
+            List<String> vmArguments = getToolkitVmArguments(false);
+            if (!vmArguments.isEmpty()) {
+                cmdlist.add(VMARGS_ARGUMENT);
+                cmdlist.addAll(vmArguments);
+            }
         }
 
         return cmdlist;
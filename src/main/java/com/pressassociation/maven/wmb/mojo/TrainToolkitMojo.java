@@ -0,0 +1,128 @@
+package com.pressassociation.maven.wmb.mojo;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.io.Files;
+import com.pressassociation.maven.wmb.types.BrokerArchive;
+import com.pressassociation.maven.wmb.utils.ProcessSupervisor;
+import com.pressassociation.maven.wmb.utils.ProjectGraph;
+import com.pressassociation.maven.wmb.utils.ToolkitGovernor;
+import com.pressassociation.maven.wmb.utils.WorkspaceSync;
+import nu.xom.ParsingException;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.jfrog.maven.annomojo.annotations.MojoGoal;
+import org.jfrog.maven.annomojo.annotations.MojoParameter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static com.pressassociation.maven.wmb.utils.MojoUtils.propagateMojoExecutionException;
+
+/**
+ * Runs the toolkit once against the first declared broker archive with class sharing enabled, populating the shared
+ * class cache which later toolkit runs reuse when {@code wmb.toolkitClassSharing} is set. The archive built is
+ * discarded, only the warmed cache is of interest.
+ * <p/>
+ * The cache is trained again whenever the toolkit differs from the one recorded when it was last trained.
+ *
+ * @author Bob Browning <bob.browning@pressassociation.com>
+ */
+@MojoGoal("train-toolkit")
+public class TrainToolkitMojo extends AbstractToolkitMojo {
+
+    private static final String TRAINING_DIRECTORY = "wmb-training";
+
+    private static final int CAPTURED_OUTPUT_LINES = 50;
+
+    /**
+     * Train the shared class cache even if it was last trained with the toolkit currently configured.
+     */
+    @MojoParameter(expression = "${wmb.forceTraining}", defaultValue = "false")
+    private boolean forceTraining;
+
+    @Override
+    public void execute() throws MojoExecutionException, MojoFailureException {
+        if (isPackageOnly()) {
+            throw new MojoFailureException("Compiler " + compilerId + " does not launch the toolkit, nothing to train.");
+        }
+        if (brokerArchives == null || brokerArchives.length == 0) {
+            throw new MojoFailureException("Invalid configuration, no BAR artifacts found.");
+        }
+
+        if (!forceTraining && isTrained()) {
+            getLog().info("Shared class cache " + toolkitClassCacheName + " in " + toolkitClassCacheDirectory
+                    + " is already trained with this toolkit.");
+            return;
+        }
+
+        BrokerArchive archive = brokerArchives[0];
+        File trainingDirectory = new File(targetdir, TRAINING_DIRECTORY);
+        File workspace = new File(trainingDirectory, "workspace");
+
+        try {
+            Set<String> projects = new ProjectGraph(new File(generatedSourcesDir)).closure(archive.getWorkspaceProjects());
+            new WorkspaceSync(Runtime.getRuntime().availableProcessors())
+                    .sync(new File(generatedSourcesDir), projects, workspace);
+        } catch (ParsingException e) {
+            throw new MojoExecutionException("Invalid project description: " + e.getMessage(), e);
+        } catch (IOException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        }
+
+        if (!toolkitClassCacheDirectory.isDirectory() && !toolkitClassCacheDirectory.mkdirs()) {
+            throw new MojoExecutionException("Unable to create " + toolkitClassCacheDirectory);
+        }
+
+        String[] deployableFiles = archive.getDeployableFiles() != null
+                ? resolveIncludedFiles(archive.getDeployableFiles()) : null;
+        List<String> command = buildToolkitCommand(archive, workspace, new File(trainingDirectory, "training.bar"),
+                deployableFiles);
+        command.add("-skipWSErrorCheck");
+        command.add(CLEAN_BUILD_ARGUMENT);
+        command.add(VMARGS_ARGUMENT);
+        command.addAll(getToolkitVmArguments(true));
+
+        ProcessBuilder pb = new ProcessBuilder(command);
+        pb.directory(workspace);
+        getLog().info("Training shared class cache " + toolkitClassCacheName + " in " + toolkitClassCacheDirectory
+                + " by building " + archive.getClassifier() + ".");
+        getLog().debug(command.toString());
+
+        ToolkitGovernor.Permit permit;
+        try {
+            permit = createGovernor().acquire(getLog(), archive.getClassifier());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException("Interrupted waiting for a toolkit slot.", e);
+        } catch (IOException e) {
+            throw propagateMojoExecutionException(e);
+        }
+
+        long started = System.currentTimeMillis();
+        ProcessSupervisor supervisor = new ProcessSupervisor(getLog(), TimeUnit.SECONDS.toMillis(toolkitTimeout),
+                TimeUnit.SECONDS.toMillis(toolkitInactivityTimeout), CAPTURED_OUTPUT_LINES);
+        try {
+            int exitCode = supervisor.run(pb);
+            if (exitCode != 0) {
+                /* The cache holds every class loaded regardless of whether the build itself succeeded */
+                getLog().warn("mqsicreatebar returned exit code " + exitCode + " whilst training:\n"
+                        + Joiner.on('\n').join(supervisor.getOutput()));
+            }
+            Files.write(getToolkitFingerprint(), getTrainedMarker(), Charsets.UTF_8);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException("Error waiting for mqsicreatebar.", e);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Error running mqsicreatebar command.", e);
+        } finally {
+            permit.release();
+        }
+
+        getLog().info(String.format("Trained shared class cache %s in %.1fs.", toolkitClassCacheName,
+                (System.currentTimeMillis() - started) / 1000.0));
+    }
+}
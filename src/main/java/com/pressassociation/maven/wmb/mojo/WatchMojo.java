@@ -0,0 +1,192 @@
+package com.pressassociation.maven.wmb.mojo;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.ibm.broker.config.proxy.BrokerProxy;
+import com.ibm.broker.config.proxy.ConfigManagerProxyLoggedException;
+import com.pressassociation.maven.wmb.types.BrokerArchive;
+import com.pressassociation.maven.wmb.utils.BrokerConnection;
+import com.pressassociation.maven.wmb.utils.DirectoryWatcher;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.jfrog.maven.annomojo.annotations.MojoGoal;
+import org.jfrog.maven.annomojo.annotations.MojoParameter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.pressassociation.maven.wmb.utils.MojoUtils.propagateMojoExecutionException;
+
+/**
+ * Builds the broker archives and then watches the projects they require, rebuilding the archives affected by each
+ * change and optionally deploying them to a development broker. Runs until interrupted, so that Maven starts once
+ * for any number of iterations.
+ * <p/>
+ * Changes are found by polling the projects, a burst of changes being handled once the projects have been quiet for
+ * {@link #quietPeriod}. Sources are synchronised as by the {@code process-resources} goal and archives built as by
+ * the {@code package} goal, whose configuration applies. A failed build is reported and the watch continues.
+ *
+ * @author Bob Browning <bob.browning@pressassociation.com>
+ */
+@MojoGoal("watch")
+public class WatchMojo extends PackageBarMojo {
+
+    /**
+     * Milliseconds between checks of the projects for changes.
+     */
+    @MojoParameter(expression = "${wmb.watch.interval}", defaultValue = "1000")
+    private long interval;
+
+    /**
+     * Milliseconds without further changes before rebuilding.
+     */
+    @MojoParameter(expression = "${wmb.watch.quietPeriod}", defaultValue = "2000")
+    private long quietPeriod;
+
+    /**
+     * Deploy each rebuilt archive to {@link #executionGroup}.
+     */
+    @MojoParameter(expression = "${wmb.watch.deploy}", defaultValue = "false")
+    private boolean deploy;
+
+    /*
+     * Maven injects parameters only into fields of the mojo class hierarchy, so the connection parameters of
+     * AbstractDeployMojo are declared again here, with the same expressions, and connect through the same
+     * BrokerConnection.
+     */
+
+    /**
+     * Hostname of server to which BAR files will be deployed.
+     */
+    @MojoParameter(expression = "${wmb.host}", defaultValue = "localhost")
+    private String hostname;
+
+    /**
+     * Port on which to connect to server.
+     */
+    @MojoParameter(expression = "${wmb.port}", defaultValue = "1414")
+    private int port;
+
+    /**
+     * Queue Manager to use when connecting to Message Broker.
+     */
+    @MojoParameter(expression = "${wmb.queueMgr}")
+    private String queueMgr;
+
+    /**
+     * Execution group to deploy rebuilt archives to.
+     */
+    @MojoParameter(expression = "${wmb.executionGroup}")
+    private String executionGroup;
+
+    private BrokerConnection connection;
+
+    private BrokerProxy proxy;
+
+    @Override
+    public void execute() throws MojoExecutionException, MojoFailureException {
+        if (deploy && (queueMgr == null || executionGroup == null)) {
+            throw new MojoFailureException("Deploying rebuilt archives requires a queue manager and execution group.");
+        }
+        connection = new BrokerConnection(hostname, port, queueMgr);
+
+        Set<String> projects = prepareSources();
+        initialise();
+        buildArchives(Lists.newArrayList(brokerArchives), Maps.<BrokerArchive, File>newIdentityHashMap());
+
+        DirectoryWatcher watcher = createWatcher(projects);
+        while (true) {
+            Set<File> changed;
+            try {
+                changed = watcher.awaitChanges(interval, quietPeriod);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            try {
+                Set<String> current = rebuild(changed);
+                if (!current.equals(projects)) {
+                    projects = current;
+                    watcher = createWatcher(projects);
+                }
+            } catch (MojoExecutionException e) {
+                getLog().error(e.getMessage());
+            } catch (MojoFailureException e) {
+                getLog().error(e.getMessage());
+            }
+        }
+    }
+
+    private DirectoryWatcher createWatcher(Set<String> projects) {
+        List<File> directories = Lists.newArrayList();
+        for (String name : projects) {
+            directories.add(new File(basedir, name));
+        }
+        getLog().info("Watching " + directories.size() + " projects for changes.");
+        return new DirectoryWatcher(directories);
+    }
+
+    /**
+     * Synchronise the sources and rebuild the archives affected by changed files, deploying them if requested.
+     *
+     * @param changed Files added, modified or removed
+     * @return Names of the projects now required by the archives
+     * @throws MojoExecutionException
+     * @throws MojoFailureException
+     */
+    private Set<String> rebuild(Set<File> changed) throws MojoExecutionException, MojoFailureException {
+        Set<String> changedProjects = Sets.newTreeSet();
+        Set<File> changedFiles = Sets.newHashSet();
+        try {
+            String base = new File(basedir).getCanonicalPath() + File.separator;
+            for (File file : changed) {
+                File canonical = file.getCanonicalFile();
+                changedFiles.add(canonical);
+                if (canonical.getPath().startsWith(base)) {
+                    String path = canonical.getPath().substring(base.length());
+                    int separator = path.indexOf(File.separatorChar);
+                    changedProjects.add(separator < 0 ? path : path.substring(0, separator));
+                }
+            }
+        } catch (IOException e) {
+            throw propagateMojoExecutionException(e);
+        }
+        getLog().info(changed.size() + " files changed in " + Joiner.on(", ").join(changedProjects) + ".");
+
+        Set<String> projects = prepareSources();
+        resetFileSetIndex();
+        if (validate) {
+            validateArchives();
+        }
+
+        List<BrokerArchive> archives = selectAffectedArchives(Lists.newArrayList(brokerArchives),
+                Maps.<BrokerArchive, File>newIdentityHashMap(), changedProjects, changedFiles, new File(targetdir),
+                "changes to " + Joiner.on(", ").join(changedProjects));
+        Map<String, File> artifacts = buildArchives(archives, Maps.<BrokerArchive, File>newIdentityHashMap());
+
+        if (deploy) {
+            for (File file : artifacts.values()) {
+                getLog().info("Deploying " + file.getName() + " to " + connection + "/" + executionGroup);
+                ConfiguredDeployMojo.deploy(getProxy(), executionGroup, file, getLog());
+            }
+        }
+        return projects;
+    }
+
+    private BrokerProxy getProxy() throws MojoExecutionException {
+        if (proxy == null) {
+            try {
+                proxy = connection.connect();
+            } catch (ConfigManagerProxyLoggedException e) {
+                throw propagateMojoExecutionException(e);
+            }
+        }
+        return proxy;
+    }
+}
@@ -0,0 +1,127 @@
+package com.pressassociation.maven.wmb.packager;
+
+import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
+import com.pressassociation.maven.wmb.types.BarFile;
+import com.pressassociation.maven.wmb.utils.ElementIterable;
+import nu.xom.Builder;
+import nu.xom.Document;
+import nu.xom.Element;
+import nu.xom.ParsingException;
+import nu.xom.Serializer;
+import org.codehaus.plexus.util.IOUtil;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static com.pressassociation.maven.wmb.utils.TypeSafetyHelper.typeSafeCaptureOfIterable;
+
+/**
+ * Merges broker archives built separately from parts of the same configuration into a single archive.
+ * <p/>
+ * Entries are taken from the first archive holding them, resources common to several parts (message sets, jars and
+ * the like) being identical in each. The {@code META-INF/broker.xml} descriptors are combined, each element declared
+ * by a part being added to the merged descriptor unless an element of the same name and type is already present.
+ *
+ * @author Bob Browning <bob.browning@pressassociation.com>
+ */
+public class BarMerger {
+
+    private static final String BROKER_XML_ENTRY = BarPackager.BROKER_XML_ENTRY;
+
+    /**
+     * Elements directly beneath the root of a descriptor.
+     */
+    private static final String DECLARATIONS = "/*/*";
+
+    /**
+     * Merge the archives.
+     *
+     * @param parts  Archives to merge, in order of precedence
+     * @param target Archive file to create
+     * @throws IOException
+     * @throws ParsingException
+     */
+    public void merge(List<File> parts, File target) throws IOException, ParsingException {
+        Set<String> written = Sets.newHashSet();
+        Document merged = null;
+        Set<String> declared = Sets.newHashSet();
+
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(target));
+        try {
+            for (File part : parts) {
+                BarFile file = new BarFile(part);
+                try {
+                    for (ZipEntry entry : typeSafeCaptureOfIterable(file.entries())) {
+                        if (entry.isDirectory()) {
+                            continue;
+                        }
+                        if (BROKER_XML_ENTRY.equals(entry.getName())) {
+                            Document document = readDocument(file, entry);
+                            if (merged == null) {
+                                merged = document;
+                                for (Element element : new ElementIterable(merged.query(DECLARATIONS))) {
+                                    declared.add(key(element));
+                                }
+                            } else {
+                                for (Element element : new ElementIterable(document.query(DECLARATIONS))) {
+                                    if (declared.add(key(element))) {
+                                        merged.getRootElement().appendChild(element.copy());
+                                    }
+                                }
+                            }
+                        } else if (written.add(entry.getName())) {
+                            copy(file, entry, zos);
+                        }
+                    }
+                } finally {
+                    file.close();
+                }
+            }
+
+            if (merged != null) {
+                zos.putNextEntry(new ZipEntry(BROKER_XML_ENTRY));
+                Serializer serializer = new Serializer(zos, "UTF-8");
+                serializer.write(merged);
+                serializer.flush();
+                zos.closeEntry();
+            }
+        } finally {
+            IOUtil.close(zos);
+        }
+    }
+
+    /**
+     * Identify a descriptor element by its type and name, unnamed elements by their content.
+     */
+    private static String key(Element element) {
+        String name = element.getAttributeValue("name");
+        return element.getQualifiedName() + "#" + (name != null ? name : element.toXML());
+    }
+
+    private static Document readDocument(BarFile file, ZipEntry entry) throws IOException, ParsingException {
+        InputStream is = file.getInputStream(entry);
+        try {
+            return new Builder().build(is);
+        } finally {
+            IOUtil.close(is);
+        }
+    }
+
+    private static void copy(BarFile file, ZipEntry entry, ZipOutputStream zos) throws IOException {
+        InputStream is = file.getInputStream(entry);
+        try {
+            zos.putNextEntry(new ZipEntry(entry.getName()));
+            ByteStreams.copy(is, zos);
+            zos.closeEntry();
+        } finally {
+            IOUtil.close(is);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.pressassociation.maven.wmb.packager;
+
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import com.pressassociation.maven.wmb.utils.RawZipFile;
+import com.pressassociation.maven.wmb.utils.RawZipOutputStream;
+import com.pressassociation.maven.wmb.utils.ScratchSpace;
+import nu.xom.Builder;
+import nu.xom.ParsingException;
+import nu.xom.canonical.Canonicalizer;
+import org.codehaus.plexus.util.IOUtil;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.SortedMap;
+
+/**
+ * Rewrites broker archives into a reproducible form, so that archives built from identical inputs are identical byte
+ * for byte.
+ * <p/>
+ * {@code META-INF/broker.xml} is written first, allowing readers to stop once they have the descriptor, followed by
+ * every other entry sorted by name. Entries carry a fixed timestamp and no comments or extra fields, descriptors are
+ * written in canonical XML form and nested {@code .appzip} and {@code .libzip} containers are normalised likewise.
+ * <p/>
+ * Entries are sorted by the names in the central directory and streamed one at a time from the archive, so that only
+ * nested containers are held, in memory or in a scratch file, whilst being normalised.
+ *
+ * @author Bob Browning <bob.browning@pressassociation.com>
+ */
+public class BarNormalizer {
+
+    private static final String BROKER_XML_ENTRY = BarPackager.BROKER_XML_ENTRY;
+
+    /**
+     * Timestamp of every entry, a fixed date near the start of the range a zip entry can hold. Zip timestamps are
+     * stored in local time, so this is stored identically whatever the time zone.
+     */
+    private static final long ENTRY_TIME = new GregorianCalendar(1980, Calendar.FEBRUARY, 1).getTimeInMillis();
+
+    /**
+     * Size in bytes up to which a nested container is read into memory to be normalised, larger containers are
+     * spilled to a file alongside the archive.
+     */
+    private static final long NESTED_MEMORY_THRESHOLD = 32 * 1024 * 1024;
+
+    /**
+     * Normalise an archive in place.
+     *
+     * @param file Archive file
+     * @throws IOException
+     * @throws ParsingException
+     */
+    public void normalize(File file) throws IOException, ParsingException {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        ScratchSpace scratch = new ScratchSpace(file.getAbsoluteFile().getParentFile(), NESTED_MEMORY_THRESHOLD);
+        try {
+            RawZipFile source = RawZipFile.open(file);
+            try {
+                RawZipOutputStream target = new RawZipOutputStream(new FileOutputStream(tmpFile));
+                try {
+                    normalize(source, target, scratch);
+                } finally {
+                    IOUtil.close(target);
+                }
+            } finally {
+                source.close();
+            }
+        } catch (IOException e) {
+            tmpFile.delete();
+            throw e;
+        } catch (ParsingException e) {
+            tmpFile.delete();
+            throw e;
+        } finally {
+            scratch.close();
+        }
+
+        if (!file.delete() || !tmpFile.renameTo(file)) {
+            tmpFile.delete();
+            throw new IOException("Unable to replace " + file);
+        }
+    }
+
+    /**
+     * Normalise an archive, reading the entries in the order they are written and holding only their names in memory.
+     *
+     * @param source  Archive to read
+     * @param target  Archive to write the normalised entries to, left unfinished
+     * @param scratch Scratch space holding nested containers while they are normalised
+     * @throws IOException
+     * @throws ParsingException
+     */
+    private void normalize(RawZipFile source, RawZipOutputStream target, ScratchSpace scratch)
+            throws IOException, ParsingException {
+        SortedMap<String, RawZipFile.Entry> entries = Maps.newTreeMap();
+        for (RawZipFile.Entry entry : source.getEntries()) {
+            entries.put(entry.getName(), entry);
+        }
+
+        RawZipFile.Entry descriptor = entries.remove(BROKER_XML_ENTRY);
+        if (descriptor != null) {
+            writeEntry(source, descriptor, target, scratch);
+        }
+        for (RawZipFile.Entry entry : entries.values()) {
+            writeEntry(source, entry, target, scratch);
+        }
+        target.finish();
+    }
+
+    private void writeEntry(RawZipFile source, RawZipFile.Entry entry, RawZipOutputStream target,
+                            ScratchSpace scratch) throws IOException, ParsingException {
+        String name = entry.getName();
+        target.putNextEntry(name, ENTRY_TIME);
+        if (entry.isDirectory()) {
+            return;
+        }
+
+        InputStream is = source.getInputStream(entry);
+        try {
+            if (name.endsWith(BarPackager.EXT_APPLICATION) || name.endsWith(BarPackager.EXT_LIBRARY)) {
+                /* Nested containers are read from their central directory, so are held whilst being normalised */
+                ScratchSpace.Content content = scratch.store(name, is);
+                try {
+                    RawZipFile nested = content.isInMemory()
+                            ? RawZipFile.open(content.getBytes()) : RawZipFile.open(content.getFile());
+                    try {
+                        normalize(nested, new RawZipOutputStream(new UnclosableOutputStream(target)), scratch);
+                    } finally {
+                        nested.close();
+                    }
+                } finally {
+                    content.release();
+                }
+            } else if (BROKER_XML_ENTRY.equals(name)) {
+                new Canonicalizer(target).write(new Builder().build(is));
+            } else {
+                ByteStreams.copy(is, target);
+            }
+        } finally {
+            IOUtil.close(is);
+        }
+    }
+
+    /**
+     * Stream writing to the entry of an enclosing archive, which remains open when a nested archive is complete.
+     */
+    private static final class UnclosableOutputStream extends FilterOutputStream {
+
+        UnclosableOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,407 @@
+package com.pressassociation.maven.wmb.packager;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import com.pressassociation.maven.wmb.types.BrokerArchive;
+import com.pressassociation.maven.wmb.types.EclipseProject;
+import nu.xom.Attribute;
+import nu.xom.Document;
+import nu.xom.Element;
+import nu.xom.ParsingException;
+import nu.xom.Serializer;
+import org.apache.maven.plugin.logging.Log;
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.IOUtil;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Assembles broker archives directly from workspace projects without launching the toolkit, in the same manner as
+ * mqsipackagebar.
+ * <p/>
+ * Applications and libraries are packaged as {@code .appzip} and {@code .libzip} containers holding their deployable
+ * source resources, with libraries referenced by an application nested within its container. Deployable files are
+ * added to the root of the archive. Each archive and container receives a {@code META-INF/broker.xml} declaring the
+ * standard configurable properties of its message flows and any promoted user defined properties.
+ * <p/>
+ * Resources requiring compilation, such as message sets or Java sources without a prebuilt jar, are not supported and
+ * require the toolkit. Nor are flows containing nodes which may have configurable properties of their own, such as the
+ * queue name of an MQInput node or the data source of a Compute node: the toolkit alone knows which properties of a
+ * node are configurable, and an archive whose descriptor omitted them could not be configured as one built by the
+ * toolkit can. Packaging such a flow fails rather than producing a narrower descriptor.
+ *
+ * @author Bob Browning <bob.browning@pressassociation.com>
+ */
+public class BarPackager {
+
+    /**
+     * Identifies archives built by this engine, included in build cache keys.
+     */
+    public static final String VERSION = "java-packager-1";
+
+    public static final String BROKER_XML_ENTRY = "META-INF/broker.xml";
+    public static final String EXT_APPLICATION = ".appzip";
+    public static final String EXT_LIBRARY = ".libzip";
+
+    private static final String EXT_MSGFLOW = ".msgflow";
+
+    private static final Set<String> DEPLOYABLE_EXTENSIONS = ImmutableSet.of(
+            "msgflow", "subflow", "esql", "map", "xsd", "xsdzip", "dictionary", "xsl", "xslt", "wsdl", "xml",
+            "jar", "descriptor", "idl", "php", "inadapter", "outadapter", "policyxml");
+
+    /**
+     * Configurable properties common to every deployed message flow.
+     */
+    private static final List<String> FLOW_PROPERTIES = Arrays.asList(
+            "additionalInstances", "commitCount", "commitInterval", "coordinatedTransaction",
+            "consumerPolicySet", "providerPolicySet", "consumerPolicySetBindings", "providerPolicySetBindings",
+            "securityProfileName", "monitoringProfile", "startMode");
+
+    /**
+     * Built-in nodes without configurable properties, the only nodes a packaged flow may contain.
+     */
+    private static final Set<String> NODES_WITHOUT_CONFIGURABLE_PROPERTIES = ImmutableSet.of(
+            "ComIbmPassthru", "ComIbmLabel", "ComIbmRouteToLabel", "ComIbmFlowOrder", "ComIbmTryCatch", "ComIbmThrow");
+
+    private static final String EXT_MSGNODE = ".msgnode";
+
+    private static final String XMI_NAMESPACE = "http://www.omg.org/XMI";
+
+    private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+
+    /**
+     * Raised when a resource cannot be packaged faithfully without the toolkit.
+     */
+    public static class UnsupportedResourceException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public UnsupportedResourceException(String message) {
+            super(message);
+        }
+    }
+
+    private final File workspace;
+    private final Log log;
+
+    /**
+     * @param workspace Workspace containing the projects to package
+     * @param log       Log to report progress to
+     */
+    public BarPackager(File workspace, Log log) {
+        this.workspace = checkNotNull(workspace);
+        this.log = checkNotNull(log);
+    }
+
+    /**
+     * Package a broker archive.
+     *
+     * @param archive         Archive definition
+     * @param deployableFiles Files to deploy at the root of the archive
+     * @param target          Archive file to create
+     * @throws IOException
+     * @throws ParsingException
+     */
+    public void createArchive(BrokerArchive archive, List<File> deployableFiles, File target)
+            throws IOException, ParsingException {
+        Element broker = new Element("Broker");
+
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(target));
+        try {
+            Set<String> written = Sets.newHashSet();
+
+            if (archive.getApplications() != null) {
+                for (String application : archive.getApplications()) {
+                    writeEntry(zos, written, application + EXT_APPLICATION, createContainer(project(application), true));
+                }
+            }
+
+            if (archive.getLibraries() != null) {
+                for (String library : archive.getLibraries()) {
+                    writeEntry(zos, written, library + EXT_LIBRARY, createContainer(project(library), false));
+                }
+            }
+
+            for (File file : deployableFiles) {
+                String name = entryName(file);
+                writeEntry(zos, written, name, Files.toByteArray(file));
+                describe(broker, name, file);
+            }
+
+            /* Supporting resources of the flows deployed at the root of the archive */
+            if (archive.getProjects() != null && !deployableFiles.isEmpty()) {
+                for (String name : archive.getProjects()) {
+                    File directory = new File(workspace, name);
+                    for (String path : resources(directory)) {
+                        if (!path.endsWith(EXT_MSGFLOW) && !written.contains(path)) {
+                            writeEntry(zos, written, path, Files.toByteArray(new File(directory, path)));
+                        }
+                    }
+                }
+            }
+
+            writeEntry(zos, written, BROKER_XML_ENTRY, serialize(broker));
+        } finally {
+            IOUtil.close(zos);
+        }
+    }
+
+    /**
+     * Create the content of an application or library container.
+     *
+     * @param project     Project to package
+     * @param application true to nest referenced libraries within the container
+     * @return Container bytes
+     * @throws IOException
+     * @throws ParsingException
+     */
+    private byte[] createContainer(EclipseProject project, boolean application) throws IOException, ParsingException {
+        log.info("Packaging " + (application ? "application " : "library ") + project.getName());
+
+        Element broker = new Element("Broker");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream zos = new ZipOutputStream(bytes);
+        try {
+            Set<String> written = Sets.newHashSet();
+
+            for (String path : resources(project.getDirectory())) {
+                File file = new File(project.getDirectory(), path);
+                writeEntry(zos, written, path, Files.toByteArray(file));
+                describe(broker, path, file);
+            }
+
+            if (application) {
+                for (String reference : project.getReferences()) {
+                    File directory = new File(workspace, reference);
+                    if (directory.isDirectory()) {
+                        EclipseProject referenced = EclipseProject.read(directory);
+                        if (referenced.isLibrary()) {
+                            writeEntry(zos, written, referenced.getName() + EXT_LIBRARY, createContainer(referenced, false));
+                        }
+                    }
+                }
+            }
+
+            if (!FileUtils.getFileNames(project.getDirectory(), "**/*.java", null, false).isEmpty()) {
+                log.warn("Project " + project.getName() + " contains Java sources which are not compiled when " +
+                        "packaging without the toolkit, only prebuilt jars are included.");
+            }
+
+            writeEntry(zos, written, BROKER_XML_ENTRY, serialize(broker));
+        } finally {
+            IOUtil.close(zos);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Add the broker descriptor entry for a resource, only message flows are described.
+     *
+     * @param broker Broker descriptor root
+     * @param path   Archive path of the resource
+     * @param file   Resource file
+     * @throws IOException
+     * @throws ParsingException
+     */
+    private void describe(Element broker, String path, File file) throws IOException, ParsingException {
+        if (!path.endsWith(EXT_MSGFLOW)) {
+            return;
+        }
+
+        String flowName = path.substring(0, path.length() - EXT_MSGFLOW.length()).replace('/', '.');
+        Element flow = new Element("CompiledMessageFlow");
+        flow.addAttribute(new Attribute("name", flowName));
+
+        for (String property : FLOW_PROPERTIES) {
+            flow.appendChild(configurableProperty(flowName + "#" + property));
+        }
+
+        Set<String> nodeTypes = Sets.newTreeSet();
+        List<String> promoted = Lists.newArrayList();
+        readFlow(file, nodeTypes, promoted);
+        checkNodes(path, nodeTypes);
+
+        /* User defined properties promoted to the flow */
+        for (String name : promoted) {
+            flow.appendChild(configurableProperty(flowName + "#" + name));
+        }
+
+        broker.appendChild(flow);
+    }
+
+    /**
+     * Read the node types and promoted user defined properties of a message flow. Flows declare the namespaces of
+     * their nodes with relative URIs, which XOM rejects, so they are read with StAX.
+     *
+     * @param file      Message flow
+     * @param nodeTypes Set to add the type of each node to, e.g. {@code ComIbmMQInput.msgnode}
+     * @param promoted  List to add the name of each promoted property to
+     * @throws IOException
+     * @throws ParsingException
+     */
+    private static void readFlow(File file, Set<String> nodeTypes, List<String> promoted)
+            throws IOException, ParsingException {
+        InputStream is = new FileInputStream(file);
+        try {
+            XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(is);
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                        continue;
+                    }
+                    String type = reader.getAttributeValue(XMI_NAMESPACE, "type");
+                    if (type == null) {
+                        continue;
+                    }
+                    if ("nodes".equals(reader.getLocalName())) {
+                        nodeTypes.add(type.indexOf(':') < 0 ? type : type.substring(0, type.indexOf(':')));
+                    } else if ("eStructuralFeatures".equals(reader.getLocalName()) && "ecore:EAttribute".equals(type)) {
+                        String name = reader.getAttributeValue(null, "name");
+                        if (name != null) {
+                            promoted.add(name);
+                        }
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new ParsingException(e.getMessage(), e);
+        } finally {
+            IOUtil.close(is);
+        }
+    }
+
+    /**
+     * Ensure that a message flow contains no node which may have configurable properties.
+     *
+     * @param path      Archive path of the flow
+     * @param nodeTypes Types of the nodes of the flow
+     * @throws UnsupportedResourceException If the flow contains such a node
+     */
+    private static void checkNodes(String path, Set<String> nodeTypes) throws UnsupportedResourceException {
+        Set<String> unsupported = Sets.newTreeSet();
+        for (String type : nodeTypes) {
+            /* Subflow nodes are typed by their flow file, the properties of their own nodes being configured through
+               the enclosing flow, so they are no more supported than any other node */
+            String builtIn = type.endsWith(EXT_MSGNODE) ? type.substring(0, type.length() - EXT_MSGNODE.length()) : null;
+            if (!NODES_WITHOUT_CONFIGURABLE_PROPERTIES.contains(builtIn)) {
+                unsupported.add(type);
+            }
+        }
+        if (!unsupported.isEmpty()) {
+            throw new UnsupportedResourceException("Message flow " + path + " contains nodes whose configurable "
+                    + "properties cannot be described without the toolkit: " + Joiner.on(", ").join(unsupported)
+                    + ". Build the archive with mqsicreatebar instead.");
+        }
+    }
+
+    private static Element configurableProperty(String uri) {
+        Element property = new Element("ConfigurableProperty");
+        property.addAttribute(new Attribute("uri", uri));
+        return property;
+    }
+
+    /**
+     * List the deployable resources of a project, relative to the project directory.
+     *
+     * @param directory Project directory
+     * @return Relative paths using forward slashes, in a stable order
+     * @throws IOException
+     */
+    private List<String> resources(File directory) throws IOException {
+        List<String> resources = Lists.newArrayList();
+        collect(directory, "", resources);
+        return resources;
+    }
+
+    private void collect(File directory, String prefix, List<String> resources) throws IOException {
+        File[] children = directory.listFiles();
+        if (children == null) {
+            throw new IOException("Unable to list " + directory);
+        }
+        Arrays.sort(children);
+        for (File child : children) {
+            String name = child.getName();
+            if (name.startsWith(".") || (prefix.length() == 0 && "bin".equals(name))) {
+                continue;
+            }
+            if (child.isDirectory()) {
+                collect(child, prefix + name + "/", resources);
+            } else if (DEPLOYABLE_EXTENSIONS.contains(FileUtils.getExtension(name))) {
+                resources.add(prefix + name);
+            }
+        }
+    }
+
+    /**
+     * Determine the archive path of a deployable file, relative to the workspace project which contains it.
+     *
+     * @param file Deployable file
+     * @return Project relative path
+     */
+    private String entryName(File file) {
+        String path = file.getAbsolutePath().replace(File.separatorChar, '/');
+        String[] segments = path.split("/");
+        for (int i = 0; i < segments.length - 1; i++) {
+            if (segments[i].length() > 0 && new File(workspace, segments[i]).isDirectory()) {
+                StringBuilder sb = new StringBuilder();
+                for (int j = i + 1; j < segments.length; j++) {
+                    sb.append(j > i + 1 ? "/" : "").append(segments[j]);
+                }
+                if (new File(new File(workspace, segments[i]), sb.toString()).isFile()) {
+                    return sb.toString();
+                }
+            }
+        }
+        return file.getName();
+    }
+
+    private EclipseProject project(String name) throws IOException, ParsingException {
+        File directory = new File(workspace, name);
+        if (!directory.isDirectory()) {
+            throw new IOException("Project " + name + " not found in workspace " + workspace);
+        }
+        return EclipseProject.read(directory);
+    }
+
+    private static void writeEntry(ZipOutputStream zos, Set<String> written, String name, byte[] content)
+            throws IOException {
+        if (written.add(name)) {
+            zos.putNextEntry(new ZipEntry(name));
+            zos.write(content);
+            zos.closeEntry();
+        }
+    }
+
+    private static byte[] serialize(Element broker) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        serialize(broker, bytes);
+        return bytes.toByteArray();
+    }
+
+    private static void serialize(Element broker, OutputStream os) throws IOException {
+        Serializer serializer = new Serializer(os, "UTF-8");
+        serializer.setIndent(2);
+        serializer.write(new Document(broker));
+    }
+}
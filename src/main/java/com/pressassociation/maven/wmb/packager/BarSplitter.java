@@ -0,0 +1,180 @@
+package com.pressassociation.maven.wmb.packager;
+
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import com.pressassociation.maven.wmb.types.BarFile;
+import com.pressassociation.maven.wmb.utils.ElementIterable;
+import nu.xom.Builder;
+import nu.xom.Document;
+import nu.xom.Element;
+import nu.xom.Nodes;
+import nu.xom.ParsingException;
+import nu.xom.Serializer;
+import org.codehaus.plexus.util.IOUtil;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static com.pressassociation.maven.wmb.utils.TypeSafetyHelper.typeSafeCaptureOfIterable;
+
+/**
+ * Splits a compiled broker archive holding many message flows into one archive per flow.
+ * <p/>
+ * Each resulting archive holds the compiled flow, every resource of the source archive which is not itself a compiled
+ * flow (message sets, jars and other dependencies) and a {@code META-INF/broker.xml} from which the descriptors of the
+ * other flows have been removed. The source archive is read once regardless of the number of flows.
+ *
+ * @author Bob Browning <bob.browning@pressassociation.com>
+ */
+public class BarSplitter {
+
+    public static final String EXT_COMPILED_FLOW = ".cmf";
+
+    private static final String BROKER_XML_ENTRY = BarPackager.BROKER_XML_ENTRY;
+    private static final String COMPILED_MESSAGE_FLOW = "CompiledMessageFlow";
+
+    private final File source;
+
+    public BarSplitter(File source) {
+        this.source = source;
+    }
+
+    /**
+     * @return Qualified names of the compiled flows in the archive mapped to their entry names
+     * @throws IOException
+     */
+    public Map<String, String> getFlows() throws IOException {
+        Map<String, String> flows = Maps.newTreeMap();
+        BarFile file = new BarFile(source);
+        try {
+            for (ZipEntry entry : typeSafeCaptureOfIterable(file.entries())) {
+                if (entry.getName().endsWith(EXT_COMPILED_FLOW)) {
+                    flows.put(flowName(entry.getName()), entry.getName());
+                }
+            }
+        } finally {
+            file.close();
+        }
+        return flows;
+    }
+
+    /**
+     * Find the compiled flow built from a message flow source file.
+     *
+     * @param flows      Compiled flows as returned by {@link #getFlows()}
+     * @param sourcePath Path of the message flow source file
+     * @return Qualified flow name, or null if the flow was not compiled into the archive
+     */
+    public static String findFlow(Map<String, String> flows, String sourcePath) {
+        String path = sourcePath.replace(File.separatorChar, '/');
+        if (path.endsWith(".msgflow")) {
+            path = path.substring(0, path.length() - ".msgflow".length());
+        }
+        String match = null;
+        for (String flow : flows.keySet()) {
+            String flowPath = flow.replace('.', '/');
+            if ((path.equals(flowPath) || path.endsWith("/" + flowPath))
+                    && (match == null || flow.length() > match.length())) {
+                match = flow;
+            }
+        }
+        return match;
+    }
+
+    /**
+     * Write one archive per flow.
+     *
+     * @param targets Qualified flow names mapped to the archive file to create for each
+     * @throws IOException
+     * @throws ParsingException
+     */
+    public void split(Map<String, File> targets) throws IOException, ParsingException {
+        Map<String, String> flows = getFlows();
+        Map<String, ZipOutputStream> outputs = Maps.newLinkedHashMap();
+        BarFile file = new BarFile(source);
+        try {
+            for (Map.Entry<String, File> target : targets.entrySet()) {
+                if (!flows.containsKey(target.getKey())) {
+                    throw new IOException("Flow " + target.getKey() + " not found in " + source);
+                }
+                outputs.put(target.getKey(), new ZipOutputStream(new FileOutputStream(target.getValue())));
+            }
+
+            for (ZipEntry entry : typeSafeCaptureOfIterable(file.entries())) {
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                String name = entry.getName();
+                if (BROKER_XML_ENTRY.equals(name)) {
+                    Document document = readDocument(file, entry);
+                    for (Map.Entry<String, ZipOutputStream> output : outputs.entrySet()) {
+                        output.getValue().putNextEntry(new ZipEntry(name));
+                        Serializer serializer = new Serializer(output.getValue(), "UTF-8");
+                        serializer.write(filter(document, output.getKey()));
+                        serializer.flush();
+                    }
+                } else if (name.endsWith(EXT_COMPILED_FLOW)) {
+                    ZipOutputStream zos = outputs.get(flowName(name));
+                    if (zos != null) {
+                        copy(file, entry, Collections.singleton(zos));
+                    }
+                } else {
+                    copy(file, entry, outputs.values());
+                }
+            }
+        } finally {
+            for (ZipOutputStream zos : outputs.values()) {
+                IOUtil.close(zos);
+            }
+            file.close();
+        }
+    }
+
+    /**
+     * Copy the descriptor retaining only the given flow amongst the compiled message flows.
+     */
+    private static Document filter(Document document, String flow) {
+        Document copy = (Document) document.copy();
+        Nodes nodes = copy.query("//" + COMPILED_MESSAGE_FLOW);
+        for (Element element : new ElementIterable(nodes)) {
+            if (!flow.equals(element.getAttributeValue("name"))) {
+                element.getParent().removeChild(element);
+            }
+        }
+        return copy;
+    }
+
+    private static Document readDocument(BarFile file, ZipEntry entry) throws IOException, ParsingException {
+        InputStream is = file.getInputStream(entry);
+        try {
+            return new Builder().build(is);
+        } finally {
+            IOUtil.close(is);
+        }
+    }
+
+    private static void copy(BarFile file, ZipEntry entry, Iterable<ZipOutputStream> outputs) throws IOException {
+        byte[] content;
+        InputStream is = file.getInputStream(entry);
+        try {
+            content = ByteStreams.toByteArray(is);
+        } finally {
+            IOUtil.close(is);
+        }
+        for (ZipOutputStream zos : outputs) {
+            zos.putNextEntry(new ZipEntry(entry.getName()));
+            zos.write(content);
+            zos.closeEntry();
+        }
+    }
+
+    private static String flowName(String entryName) {
+        return entryName.substring(0, entryName.length() - EXT_COMPILED_FLOW.length()).replace('/', '.');
+    }
+}
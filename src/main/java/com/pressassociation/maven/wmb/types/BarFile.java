@@ -3,11 +3,13 @@ package com.pressassociation.maven.wmb.types;
 import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
-import com.pressassociation.maven.wmb.utils.ElementIterable;
-import nu.xom.*;
+import com.pressassociation.maven.wmb.utils.ConfigurablePropertyReader;
+import nu.xom.ParsingException;
+import org.codehaus.plexus.util.IOUtil;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.zip.ZipEntry;
@@ -40,14 +42,14 @@ public class BarFile extends ZipFile {
         if (properties == null) {
             HashMap<String, String> ourProperties = Maps.newHashMap();
 
-            Builder builder = new Builder();
-            Document document = builder.build(
-                    super.getInputStream(checkNotNull(getBrokerXmlEntry())));
-            Nodes nodes = document.query("//ConfigurableProperty");
-            for (Element e : new ElementIterable(nodes)) {
-                String uri = e.getAttributeValue("uri");
-                Optional<String> override = Optional.fromNullable(e.getAttributeValue("override"));
-                ourProperties.put(uri, override.isPresent() ? override.get() : "");
+            InputStream is = super.getInputStream(checkNotNull(getBrokerXmlEntry()));
+            try {
+                for (Map.Entry<String, String> entry : ConfigurablePropertyReader.read(is).entrySet()) {
+                    Optional<String> override = Optional.fromNullable(entry.getValue());
+                    ourProperties.put(entry.getKey(), override.isPresent() ? override.get() : "");
+                }
+            } finally {
+                IOUtil.close(is);
             }
             properties = ImmutableMap.copyOf(ourProperties);
         }
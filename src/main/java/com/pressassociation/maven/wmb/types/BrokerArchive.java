@@ -3,8 +3,12 @@
  */
 package com.pressassociation.maven.wmb.types;
 
+import com.google.common.collect.Sets;
 import org.apache.maven.shared.model.fileset.FileSet;
 
+import java.util.Collections;
+import java.util.Set;
+
 /**
  * Data object holding parameters needed to create a BAR file.
  *
@@ -22,6 +26,11 @@ public class BrokerArchive {
      */
     private String prefix = "";
 
+    /**
+     * Split the archive into one archive per deployable message flow, classified using the prefix.
+     */
+    private boolean individual;
+
     /**
      * List of dependent projects for the artifacts.
      */
@@ -108,6 +117,14 @@ public class BrokerArchive {
         this.prefix = prefix;
     }
 
+    public boolean isIndividual() {
+        return individual;
+    }
+
+    public void setIndividual(boolean individual) {
+        this.individual = individual;
+    }
+
     public FileSet getDeployableFiles() {
         return deployableFiles;
     }
@@ -131,4 +148,21 @@ public class BrokerArchive {
     public void setLibraries(String[] libraries) {
         this.libraries = libraries;
     }
+
+    /**
+     * @return Distinct names of all projects, applications and libraries that make up this archive
+     */
+    public Set<String> getWorkspaceProjects() {
+        Set<String> names = Sets.newLinkedHashSet();
+        if (projects != null) {
+            Collections.addAll(names, projects);
+        }
+        if (applications != null) {
+            Collections.addAll(names, applications);
+        }
+        if (libraries != null) {
+            Collections.addAll(names, libraries);
+        }
+        return names;
+    }
 }
@@ -0,0 +1,108 @@
+package com.pressassociation.maven.wmb.types;
+
+import com.google.common.collect.ImmutableList;
+import com.pressassociation.maven.wmb.utils.ElementIterable;
+import nu.xom.Builder;
+import nu.xom.Element;
+import nu.xom.ParsingException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Eclipse project description as read from a project's {@code .project} file.
+ *
+ * @author Bob Browning <bob.browning@pressassociation.com>
+ */
+public class EclipseProject {
+
+    public static final String PROJECT_DESCRIPTION = ".project";
+
+    private static final String APPLICATION_NATURE = "com.ibm.etools.msgbroker.tooling.applicationNature";
+    private static final String LIBRARY_NATURE = "com.ibm.etools.msgbroker.tooling.libraryNature";
+
+    private final String name;
+    private final File directory;
+    private final List<String> references;
+    private final List<String> natures;
+
+    public EclipseProject(String name, File directory, List<String> references, List<String> natures) {
+        this.name = checkNotNull(name);
+        this.directory = checkNotNull(directory);
+        this.references = ImmutableList.copyOf(references);
+        this.natures = ImmutableList.copyOf(natures);
+    }
+
+    /**
+     * Read the project description from a project directory, a directory without a description is treated as a
+     * project named after the directory with no references.
+     *
+     * @param directory Project directory
+     * @return Project description
+     * @throws IOException
+     * @throws ParsingException
+     */
+    public static EclipseProject read(File directory) throws IOException, ParsingException {
+        File description = new File(directory, PROJECT_DESCRIPTION);
+        if (!description.isFile()) {
+            return new EclipseProject(directory.getName(), directory, ImmutableList.<String>of(), ImmutableList.<String>of());
+        }
+
+        Element root = new Builder().build(description).getRootElement();
+
+        String name = root.getFirstChildElement("name") == null
+                ? directory.getName() : root.getFirstChildElement("name").getValue().trim();
+
+        return new EclipseProject(name, directory, childValues(root, "projects", "project"),
+                childValues(root, "natures", "nature"));
+    }
+
+    private static List<String> childValues(Element root, String container, String child) {
+        ImmutableList.Builder<String> builder = ImmutableList.builder();
+        Element parent = root.getFirstChildElement(container);
+        if (parent != null) {
+            for (Element element : new ElementIterable(parent.query(child))) {
+                String value = element.getValue().trim();
+                if (value.length() > 0) {
+                    builder.add(value);
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return Names of the projects this project references
+     */
+    public List<String> getReferences() {
+        return references;
+    }
+
+    public List<String> getNatures() {
+        return natures;
+    }
+
+    public boolean isApplication() {
+        return natures.contains(APPLICATION_NATURE);
+    }
+
+    public boolean isLibrary() {
+        return natures.contains(LIBRARY_NATURE);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,104 @@
+package com.pressassociation.maven.wmb.types;
+
+import com.google.common.base.Objects;
+
+/**
+ * Diagnostic reported by the toolkit whilst building a broker archive.
+ *
+ * @author Bob Browning <bob.browning@pressassociation.com>
+ */
+public class ToolkitDiagnostic {
+
+    private final boolean fatal;
+    private final String code;
+    private final String project;
+    private final String resource;
+    private final Integer line;
+    private final String message;
+
+    public ToolkitDiagnostic(boolean fatal, String code, String project, String resource, Integer line, String message) {
+        this.fatal = fatal;
+        this.code = code;
+        this.project = project;
+        this.resource = resource;
+        this.line = line;
+        this.message = message;
+    }
+
+    /**
+     * @return True if the diagnostic means the build cannot succeed
+     */
+    public boolean isFatal() {
+        return fatal;
+    }
+
+    /**
+     * @return BIP message code, may be null
+     */
+    public String getCode() {
+        return code;
+    }
+
+    /**
+     * @return Workspace project the diagnostic refers to, may be null
+     */
+    public String getProject() {
+        return project;
+    }
+
+    /**
+     * @return Project relative resource path the diagnostic refers to, may be null
+     */
+    public String getResource() {
+        return resource;
+    }
+
+    /**
+     * @return Line number within the resource, may be null
+     */
+    public Integer getLine() {
+        return line;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        if (code != null) {
+            sb.append(code).append(' ');
+        }
+        if (project != null) {
+            sb.append(project);
+            if (resource != null) {
+                sb.append('/').append(resource);
+            }
+            if (line != null) {
+                sb.append(':').append(line);
+            }
+            sb.append(' ');
+        }
+        return sb.append("- ").append(message).toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ToolkitDiagnostic)) {
+            return false;
+        }
+        ToolkitDiagnostic that = (ToolkitDiagnostic) o;
+        return fatal == that.fatal && Objects.equal(code, that.code) && Objects.equal(project, that.project)
+                && Objects.equal(resource, that.resource) && Objects.equal(line, that.line)
+                && Objects.equal(message, that.message);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(fatal, code, project, resource, line, message);
+    }
+}
@@ -0,0 +1,317 @@
+package com.pressassociation.maven.wmb.utils;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import com.pressassociation.maven.wmb.types.BrokerArchive;
+import com.pressassociation.maven.wmb.types.EclipseProject;
+import nu.xom.ParsingException;
+import org.codehaus.plexus.util.IOUtil;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Checks the configuration of broker archives against the prepared sources before the toolkit is launched, so that
+ * mistakes which would otherwise only be reported by a full toolkit run are found in milliseconds.
+ * <p/>
+ * Every project, application and library of an archive must exist, the deployable files must match at least one file
+ * and each message flow must parse. Subflows and ESQL modules referenced by a flow must be found within its project
+ * or the projects it references.
+ *
+ * @author Bob Browning <bob.browning@pressassociation.com>
+ */
+public class ArchiveValidator {
+
+    private static final String EXT_MSGFLOW = ".msgflow";
+    private static final String EXT_SUBFLOW = ".subflow";
+    private static final String EXT_ESQL = ".esql";
+    private static final String ESQL_ROUTINE = "esql://routine/";
+
+    private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+
+    private static final Pattern BROKER_SCHEMA = Pattern.compile("(?im)^\\s*BROKER\\s+SCHEMA\\s+([\\w.]+)");
+    private static final Pattern MODULE = Pattern.compile(
+            "(?i)\\bCREATE\\s+(?:COMPUTE\\s+|DATABASE\\s+|FILTER\\s+)?MODULE\\s+\"?(\\w+)\"?");
+
+    private final ProjectGraph graph;
+
+    /**
+     * Qualified ESQL module names mapped to the files defining them by project, computed on demand.
+     */
+    private final Map<String, Map<String, File>> modules = Maps.newHashMap();
+
+    /**
+     * @param graph Graph of the prepared projects
+     */
+    public ArchiveValidator(ProjectGraph graph) {
+        this.graph = checkNotNull(graph);
+    }
+
+    /**
+     * Validate an archive.
+     *
+     * @param archive         Broker archive
+     * @param deployableFiles Resolved deployable files, or null if the archive has none
+     * @return Description of each problem found, empty if the archive is valid
+     * @throws IOException
+     */
+    public List<String> validate(BrokerArchive archive, String[] deployableFiles) throws IOException {
+        List<String> problems = Lists.newArrayList();
+        String classifier = archive.getClassifier();
+
+        for (String name : archive.getWorkspaceProjects()) {
+            if (getProject(name, problems) == null) {
+                problems.add(classifier + ": project " + name + " not found.");
+            }
+        }
+
+        if (deployableFiles != null) {
+            if (deployableFiles.length == 0) {
+                problems.add(classifier + ": deployable files " + archive.getDeployableFiles().getIncludes()
+                        + " match nothing in " + archive.getDeployableFiles().getDirectory() + ".");
+            }
+            Set<String> visited = Sets.newHashSet();
+            for (String deployableFile : deployableFiles) {
+                File file = new File(deployableFile);
+                if (!file.isFile()) {
+                    problems.add(classifier + ": deployable file " + deployableFile + " not found.");
+                } else if (isFlow(file.getName())) {
+                    validateFlow(classifier, file, visited, problems, Sets.<File>newHashSet());
+                }
+            }
+        }
+        return problems;
+    }
+
+    /**
+     * Find the resources a message flow depends upon, the subflows it references directly or otherwise and the ESQL
+     * files defining the modules they use. Unresolved references are ignored.
+     *
+     * @param flow Message flow file
+     * @return Resources the flow depends upon
+     * @throws IOException
+     */
+    public Set<File> getDependencies(File flow) throws IOException {
+        Set<File> dependencies = Sets.newTreeSet();
+        validateFlow(flow.getName(), flow, Sets.<String>newHashSet(), Lists.<String>newArrayList(), dependencies);
+        return dependencies;
+    }
+
+    private void validateFlow(String classifier, File flow, Set<String> visited, List<String> problems,
+                              Set<File> dependencies) throws IOException {
+        if (!visited.add(flow.getCanonicalPath())) {
+            return;
+        }
+
+        File projectDirectory = findProjectDirectory(flow);
+        if (projectDirectory == null) {
+            problems.add(classifier + ": " + flow + " is not within a project.");
+            return;
+        }
+
+        List<String> subflows = Lists.newArrayList();
+        List<String> routines = Lists.newArrayList();
+        try {
+            readReferences(flow, subflows, routines);
+        } catch (XMLStreamException e) {
+            problems.add(classifier + ": " + flow + " is not a valid message flow, " + e.getMessage());
+            return;
+        }
+
+        Set<String> path = getReferencePath(projectDirectory.getName(), problems);
+
+        for (String uri : subflows) {
+            File subflow = findResource(path, uri, problems);
+            if (subflow == null) {
+                problems.add(classifier + ": subflow " + uri + " referenced by " + flow.getName()
+                        + " not found in projects " + path + ".");
+            } else {
+                dependencies.add(subflow);
+                validateFlow(classifier, subflow, visited, problems, dependencies);
+            }
+        }
+
+        for (String routine : routines) {
+            String module = qualifiedModule(routine);
+            if (module == null) {
+                continue;
+            }
+            File definition = findModule(path, module, problems);
+            if (definition == null) {
+                problems.add(classifier + ": ESQL module " + module + " referenced by " + flow.getName()
+                        + " not found in projects " + path + ".");
+            } else {
+                dependencies.add(definition);
+            }
+        }
+    }
+
+    /**
+     * Read the subflows and ESQL routines a message flow references. Flows declare the namespaces of their nodes and
+     * subflows with relative URIs, which XOM rejects, so they are read with StAX.
+     *
+     * @param flow     Message flow
+     * @param subflows List to add subflow paths, relative to a project, to
+     * @param routines List to add routine references, without their prefix, to
+     * @throws IOException
+     * @throws XMLStreamException
+     */
+    private static void readReferences(File flow, List<String> subflows, List<String> routines)
+            throws IOException, XMLStreamException {
+        InputStream is = new FileInputStream(flow);
+        try {
+            XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(is);
+            try {
+                boolean root = true;
+                while (reader.hasNext()) {
+                    if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                        continue;
+                    }
+                    /* Subflows are declared as namespaces of the flow whose URIs are paths relative to a project */
+                    if (root) {
+                        for (int i = 0; i < reader.getNamespaceCount(); i++) {
+                            String uri = reader.getNamespaceURI(i);
+                            if (uri != null && isFlow(uri)) {
+                                subflows.add(uri);
+                            }
+                        }
+                        root = false;
+                    }
+                    for (int i = 0; i < reader.getAttributeCount(); i++) {
+                        String value = reader.getAttributeValue(i);
+                        if (value.startsWith(ESQL_ROUTINE)) {
+                            routines.add(value.substring(ESQL_ROUTINE.length()));
+                        }
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } finally {
+            IOUtil.close(is);
+        }
+    }
+
+    /**
+     * @param routine Routine reference of the form {@code schema#Module.Main}
+     * @return Schema qualified module name, or null if the reference is not understood
+     */
+    private static String qualifiedModule(String routine) {
+        int hash = routine.indexOf('#');
+        if (hash < 0) {
+            return null;
+        }
+        String schema = routine.substring(0, hash);
+        String name = routine.substring(hash + 1);
+        if (name.lastIndexOf('.') > 0) {
+            name = name.substring(0, name.lastIndexOf('.'));
+        }
+        return schema.length() == 0 ? name : schema + "." + name;
+    }
+
+    private File findModule(Set<String> path, String module, List<String> problems) throws IOException {
+        for (String name : path) {
+            File definition = getModules(name, problems).get(module);
+            if (definition != null) {
+                return definition;
+            }
+        }
+        return null;
+    }
+
+    private Map<String, File> getModules(String name, List<String> problems) throws IOException {
+        Map<String, File> names = modules.get(name);
+        if (names == null) {
+            names = Maps.newHashMap();
+            EclipseProject project = getProject(name, problems);
+            if (project != null) {
+                indexModules(project.getDirectory(), names);
+            }
+            modules.put(name, names);
+        }
+        return names;
+    }
+
+    private static void indexModules(File directory, Map<String, File> names) throws IOException {
+        File[] children = directory.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            if (child.isDirectory()) {
+                indexModules(child, names);
+            } else if (child.getName().endsWith(EXT_ESQL)) {
+                String content = Files.toString(child, Charsets.UTF_8);
+                Matcher schema = BROKER_SCHEMA.matcher(content);
+                String prefix = schema.find() ? schema.group(1) + "." : "";
+                Matcher module = MODULE.matcher(content);
+                while (module.find()) {
+                    names.put(prefix + module.group(1), child);
+                }
+            }
+        }
+    }
+
+    private File findResource(Set<String> path, String relativePath, List<String> problems) throws IOException {
+        for (String name : path) {
+            EclipseProject project = getProject(name, problems);
+            if (project != null) {
+                File file = new File(project.getDirectory(), relativePath);
+                if (file.isFile()) {
+                    return file;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The project itself followed by every project it references, directly or otherwise
+     */
+    private Set<String> getReferencePath(String name, List<String> problems) throws IOException {
+        try {
+            return graph.closure(Collections.singleton(name));
+        } catch (ParsingException e) {
+            problems.add("Invalid project description in " + name + ", " + e.getMessage());
+            return Collections.singleton(name);
+        }
+    }
+
+    private EclipseProject getProject(String name, List<String> problems) throws IOException {
+        try {
+            return graph.getProject(name);
+        } catch (ParsingException e) {
+            problems.add("Invalid project description in " + name + ", " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static File findProjectDirectory(File file) {
+        File directory = file.getAbsoluteFile().getParentFile();
+        while (directory != null && !new File(directory, EclipseProject.PROJECT_DESCRIPTION).isFile()) {
+            directory = directory.getParentFile();
+        }
+        return directory;
+    }
+
+    private static boolean isFlow(String name) {
+        return name.endsWith(EXT_MSGFLOW) || name.endsWith(EXT_SUBFLOW);
+    }
+}
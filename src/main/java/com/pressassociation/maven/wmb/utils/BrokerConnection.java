@@ -0,0 +1,64 @@
+package com.pressassociation.maven.wmb.utils;
+
+import com.ibm.broker.config.proxy.BrokerProxy;
+import com.ibm.broker.config.proxy.ConfigManagerProxyLoggedException;
+import com.ibm.broker.config.proxy.MQBrokerConnectionParameters;
+
+import javax.inject.Provider;
+
+/**
+ * Connection to a broker through its queue manager, shared by every goal which deploys to a broker.
+ *
+ * @author Bob Browning <bob.browning@pressassociation.com>
+ */
+public class BrokerConnection implements Provider<MQBrokerConnectionParameters> {
+
+    private static final long POPULATION_POLL_MILLIS = 100;
+
+    private final String hostname;
+    private final int port;
+    private final String queueMgr;
+
+    private MQBrokerConnectionParameters parameters;
+
+    /**
+     * @param hostname Hostname of the queue manager
+     * @param port     Port of the queue manager listener
+     * @param queueMgr Name of the queue manager
+     */
+    public BrokerConnection(String hostname, int port, String queueMgr) {
+        this.hostname = hostname;
+        this.port = port;
+        this.queueMgr = queueMgr;
+    }
+
+    @Override
+    public synchronized MQBrokerConnectionParameters get() {
+        if (parameters == null) {
+            parameters = new MQBrokerConnectionParameters(hostname, port, queueMgr);
+        }
+        return parameters;
+    }
+
+    /**
+     * Connect to the broker, waiting until the broker has populated the proxy.
+     *
+     * @return Populated broker proxy
+     * @throws ConfigManagerProxyLoggedException
+     */
+    public BrokerProxy connect() throws ConfigManagerProxyLoggedException {
+        BrokerProxy proxy = BrokerProxy.getInstance(get());
+        while (!proxy.hasBeenPopulatedByBroker()) {
+            try {
+                Thread.sleep(POPULATION_POLL_MILLIS);
+            } catch (InterruptedException ignored) {
+            }
+        }
+        return proxy;
+    }
+
+    @Override
+    public String toString() {
+        return hostname + ":" + port + "/" + queueMgr;
+    }
+}
@@ -0,0 +1,188 @@
+package com.pressassociation.maven.wmb.utils;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import com.google.common.primitives.Longs;
+import com.pressassociation.maven.wmb.Types;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Content addressable directory of previously built broker archives keyed by the fingerprint of their build inputs.
+ * <p/>
+ * The directory may be shared between modules, checkouts and concurrent builds: entries are published by writing to a
+ * temporary file and renaming it into place, and the least recently used entries are evicted once the total size of
+ * the cache exceeds its budget. Hits touch the entry so that its modification time records its last use.
+ *
+ * @author Bob Browning <bob.browning@pressassociation.com>
+ */
+public class BuildCache {
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * Age after which abandoned temporary files from interrupted publishes are removed.
+     */
+    private static final long STALE_TEMP_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private final File directory;
+    private final long maxSize;
+
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+    private final AtomicInteger stores = new AtomicInteger();
+    private final AtomicInteger evictions = new AtomicInteger();
+    private final AtomicLong evictedBytes = new AtomicLong();
+
+    /**
+     * @param directory Cache directory
+     * @param maxSize   Budget in bytes for the total size of cached archives, zero or less for unbounded
+     */
+    public BuildCache(File directory, long maxSize) {
+        this.directory = checkNotNull(directory);
+        this.maxSize = maxSize;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Restore a cached archive.
+     *
+     * @param key    Fingerprint of the build inputs
+     * @param target File to restore the archive to
+     * @return true if a cached archive was found and restored
+     * @throws IOException
+     */
+    public boolean restore(String key, File target) throws IOException {
+        File entry = entryFile(key);
+        if (entry.isFile()) {
+            File tmpFile = new File(target.getPath() + TEMP_SUFFIX);
+            try {
+                Files.copy(entry, tmpFile);
+                replace(tmpFile, target);
+                entry.setLastModified(System.currentTimeMillis());
+                hits.incrementAndGet();
+                return true;
+            } catch (IOException e) {
+                /* Entry evicted by a concurrent build whilst being copied */
+                if (entry.exists()) {
+                    throw e;
+                }
+            } finally {
+                tmpFile.delete();
+            }
+        }
+        misses.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Publish a freshly built archive and evict least recently used entries if the cache exceeds its budget.
+     *
+     * @param key    Fingerprint of the build inputs
+     * @param source Built archive
+     * @throws IOException
+     */
+    public void store(String key, File source) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException("Unable to create build cache directory " + directory);
+        }
+
+        File tmpFile = File.createTempFile(key + "-", TEMP_SUFFIX, directory);
+        try {
+            Files.copy(source, tmpFile);
+            File entry = entryFile(key);
+            if (!tmpFile.renameTo(entry) && !entry.isFile()) {
+                throw new IOException("Unable to publish " + entry);
+            }
+            stores.incrementAndGet();
+        } finally {
+            tmpFile.delete();
+        }
+
+        evict();
+    }
+
+    /**
+     * Remove least recently used entries until the cache fits within its budget.
+     */
+    private synchronized void evict() {
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override public boolean accept(File file) {
+                return file.isFile();
+            }
+        });
+        if (files == null) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        long size = 0;
+        List<File> entries = Lists.newArrayList();
+        for (File file : files) {
+            if (file.getName().endsWith(Types.BROKER_ARCHIVE_EXTENSION)) {
+                entries.add(file);
+                size += file.length();
+            } else if (file.getName().endsWith(TEMP_SUFFIX) && now - file.lastModified() > STALE_TEMP_MILLIS) {
+                file.delete();
+            }
+        }
+
+        if (maxSize <= 0 || size <= maxSize) {
+            return;
+        }
+
+        Collections.sort(entries, new Comparator<File>() {
+            @Override public int compare(File o1, File o2) {
+                return Longs.compare(o1.lastModified(), o2.lastModified());
+            }
+        });
+
+        for (File entry : entries) {
+            if (size <= maxSize) {
+                break;
+            }
+            long length = entry.length();
+            if (entry.delete()) {
+                size -= length;
+                evictions.incrementAndGet();
+                evictedBytes.addAndGet(length);
+            }
+        }
+    }
+
+    /**
+     * @return Summary of cache activity since this instance was created
+     */
+    public String getStatistics() {
+        return String.format("%d hits, %d misses, %d stored, %d evicted (%d bytes)",
+                hits.get(), misses.get(), stores.get(), evictions.get(), evictedBytes.get());
+    }
+
+    private static void replace(File source, File target) throws IOException {
+        if (!source.renameTo(target)) {
+            if (target.exists() && !target.delete()) {
+                throw new IOException("Unable to replace " + target);
+            }
+            if (!source.renameTo(target)) {
+                throw new IOException("Unable to move " + source + " to " + target);
+            }
+        }
+    }
+
+    private File entryFile(String key) {
+        return new File(directory, key + Types.BROKER_ARCHIVE_EXTENSION);
+    }
+}
@@ -0,0 +1,83 @@
+package com.pressassociation.maven.wmb.utils;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.common.collect.Maps;
+import nu.xom.ParsingException;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.InputStream;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Reads the configurable properties declared by a broker archive descriptor, {@code META-INF/broker.xml}, without
+ * building a document. Only the start tags of the descriptor are examined and reading stops at the end of its root
+ * element.
+ * <p/>
+ * The same properties are declared by every archive built from a flow, so property URIs and overrides are interned
+ * to be shared between the archives read. Whole values are interned rather than their common flow and node prefixes,
+ * since a string cannot share the characters of another and every URI is needed whole as a map key.
+ *
+ * @author Bob Browning <bob.browning@pressassociation.com>
+ */
+public final class ConfigurablePropertyReader {
+
+    private static final String CONFIGURABLE_PROPERTY = "ConfigurableProperty";
+    private static final String ATTR_URI = "uri";
+    private static final String ATTR_OVERRIDE = "override";
+
+    private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+
+    private static final Interner<String> STRINGS = Interners.newWeakInterner();
+
+    private ConfigurablePropertyReader() {
+    }
+
+    /**
+     * Read the configurable properties of a descriptor.
+     *
+     * @param inputStream Input stream of the descriptor, left open
+     * @return Property URIs mapped to their overrides, null for those without, in order of declaration
+     * @throws ParsingException
+     */
+    public static Map<String, String> read(InputStream inputStream) throws ParsingException {
+        Map<String, String> properties = Maps.newLinkedHashMap();
+        try {
+            XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(checkNotNull(inputStream));
+            try {
+                int depth = 0;
+                while (reader.hasNext()) {
+                    int event = reader.next();
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        depth++;
+                        if (CONFIGURABLE_PROPERTY.equals(reader.getLocalName())
+                                && isEmpty(reader.getNamespaceURI())) {
+                            properties.put(intern(reader.getAttributeValue(null, ATTR_URI)),
+                                    intern(reader.getAttributeValue(null, ATTR_OVERRIDE)));
+                        }
+                    } else if (event == XMLStreamConstants.END_ELEMENT && --depth == 0) {
+                        break;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new ParsingException(e.getMessage(), e);
+        }
+        return properties;
+    }
+
+    private static boolean isEmpty(String namespace) {
+        return namespace == null || namespace.length() == 0;
+    }
+
+    private static String intern(String value) {
+        return value == null ? null : STRINGS.intern(value);
+    }
+}
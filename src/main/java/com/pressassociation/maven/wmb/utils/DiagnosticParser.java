@@ -0,0 +1,82 @@
+package com.pressassociation.maven.wmb.utils;
+
+import com.google.common.collect.ImmutableList;
+import com.pressassociation.maven.wmb.types.ToolkitDiagnostic;
+
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Recognises diagnostics in toolkit output, extracting the message code and the project, resource and line they
+ * refer to where present.
+ *
+ * @author Bob Browning <bob.browning@pressassociation.com>
+ */
+public class DiagnosticParser {
+
+    /**
+     * Patterns identifying fatal diagnostics when none are configured: BIP error codes and the toolkit's workspace
+     * error marker.
+     */
+    public static final String[] DEFAULT_FATAL_PATTERNS = {"\\bBIP\\d{4}E\\b", "Errors? occurred"};
+
+    private static final Pattern CODE = Pattern.compile("\\b(BIP\\d{4})([EWI])\\b");
+    private static final Pattern RESOURCE = Pattern.compile("/?([\\w.\\-]+)/([\\w.\\-/]+\\.\\w+)");
+    private static final Pattern LINE = Pattern.compile("(?i)\\bline[:\\s]+(\\d+)|:(\\d+)\\b");
+
+    private final List<Pattern> fatalPatterns;
+
+    /**
+     * @param fatalPatterns Regular expressions identifying fatal diagnostics, defaults used if null or empty
+     */
+    public DiagnosticParser(String[] fatalPatterns) {
+        String[] patterns = fatalPatterns == null || fatalPatterns.length == 0 ? DEFAULT_FATAL_PATTERNS : fatalPatterns;
+        ImmutableList.Builder<Pattern> builder = ImmutableList.builder();
+        for (String pattern : patterns) {
+            builder.add(Pattern.compile(pattern));
+        }
+        this.fatalPatterns = builder.build();
+    }
+
+    /**
+     * Parse a line of toolkit output.
+     *
+     * @param line Line of output
+     * @return Diagnostic, or null if the line is not a diagnostic
+     */
+    public ToolkitDiagnostic parse(String line) {
+        boolean fatal = false;
+        for (Pattern pattern : fatalPatterns) {
+            if (pattern.matcher(line).find()) {
+                fatal = true;
+                break;
+            }
+        }
+
+        Matcher code = CODE.matcher(line);
+        boolean hasCode = code.find();
+        if (!fatal && !(hasCode && !"I".equals(code.group(2)))) {
+            return null;
+        }
+
+        String project = null;
+        String resource = null;
+        Integer lineNumber = null;
+
+        Matcher location = RESOURCE.matcher(line);
+        if (location.find()) {
+            project = location.group(1);
+            resource = location.group(2);
+
+            Matcher number = LINE.matcher(line.substring(location.end()));
+            if (number.find()) {
+                lineNumber = Integer.valueOf(number.group(1) != null ? number.group(1) : number.group(2));
+            }
+        }
+
+        String message = hasCode ? line.substring(code.end()).replaceFirst("^[:\\s]+", "") : line;
+        return new ToolkitDiagnostic(fatal, hasCode ? code.group(1) + code.group(2) : null,
+                project, resource, lineNumber, message);
+    }
+}
@@ -0,0 +1,100 @@
+package com.pressassociation.maven.wmb.utils;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Watches directory trees for files being added, modified or removed by periodically comparing the size and
+ * modification time of every file. Bursts of changes, such as an editor saving several files or a version control
+ * update, are reported together once the trees have been quiet for a while.
+ * <p/>
+ * Eclipse workspace metadata is ignored.
+ *
+ * @author Bob Browning <bob.browning@pressassociation.com>
+ */
+public class DirectoryWatcher {
+
+    private static final String METADATA_DIRECTORY = ".metadata";
+
+    private final List<File> directories;
+
+    private Map<File, String> snapshot;
+
+    /**
+     * @param directories Directories to watch, their state on construction being the baseline for changes
+     */
+    public DirectoryWatcher(Collection<File> directories) {
+        this.directories = ImmutableList.copyOf(directories);
+        this.snapshot = scan();
+    }
+
+    /**
+     * Wait for changes to the watched directories.
+     *
+     * @param interval    Milliseconds between scans
+     * @param quietPeriod Milliseconds without further changes before the changes are reported
+     * @return Files added, modified or removed since the previous changes were reported
+     * @throws InterruptedException
+     */
+    public Set<File> awaitChanges(long interval, long quietPeriod) throws InterruptedException {
+        Set<File> changed = Sets.newTreeSet();
+        long lastChange = 0;
+        while (changed.isEmpty() || System.currentTimeMillis() - lastChange < quietPeriod) {
+            Thread.sleep(interval);
+            Map<File, String> current = scan();
+            if (diff(snapshot, current, changed)) {
+                lastChange = System.currentTimeMillis();
+            }
+            snapshot = current;
+        }
+        return changed;
+    }
+
+    private static boolean diff(Map<File, String> previous, Map<File, String> current, Set<File> changed) {
+        boolean found = false;
+        for (Map.Entry<File, String> entry : current.entrySet()) {
+            if (!entry.getValue().equals(previous.get(entry.getKey()))) {
+                changed.add(entry.getKey());
+                found = true;
+            }
+        }
+        for (File file : previous.keySet()) {
+            if (!current.containsKey(file)) {
+                changed.add(file);
+                found = true;
+            }
+        }
+        return found;
+    }
+
+    private Map<File, String> scan() {
+        Map<File, String> files = Maps.newHashMap();
+        for (File directory : directories) {
+            scan(directory, files);
+        }
+        return files;
+    }
+
+    private static void scan(File directory, Map<File, String> files) {
+        File[] children = directory.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            if (child.isDirectory()) {
+                if (!METADATA_DIRECTORY.equals(child.getName())) {
+                    scan(child, files);
+                }
+            } else {
+                files.put(child, child.lastModified() + ":" + child.length());
+            }
+        }
+    }
+}
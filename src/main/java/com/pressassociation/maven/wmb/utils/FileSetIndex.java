@@ -0,0 +1,217 @@
+package com.pressassociation.maven.wmb.utils;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.maven.shared.model.fileset.FileSet;
+import org.codehaus.plexus.util.DirectoryScanner;
+import org.codehaus.plexus.util.SelectorUtils;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Resolves the files included by many file sets from a single walk of each base directory.
+ * <p/>
+ * The file sets of a build are known up front, so each base directory is walked once to build an index of the files
+ * beneath it. Directories which none of the file sets rooted there could include from are not descended into. The
+ * include and exclude patterns of each file set are compiled once and matched against the index.
+ *
+ * @author Bob Browning <bob.browning@pressassociation.com>
+ */
+public class FileSetIndex {
+
+    private static final List<String> DEFAULT_INCLUDES = ImmutableList.of("**");
+
+    /**
+     * Include and exclude patterns of a file set, compiled.
+     */
+    private static final class CompiledFileSet {
+        private final List<String> includes;
+        private final List<Pattern> includePatterns;
+        private final List<String> excludes;
+        private final List<Pattern> excludePatterns;
+
+        private CompiledFileSet(FileSet fileSet) {
+            List<String> includes = normalise(fileSet.getIncludes());
+            this.includes = includes.isEmpty() ? DEFAULT_INCLUDES : includes;
+            this.excludes = normalise(fileSet.getExcludes());
+            if (fileSet.isUseDefaultExcludes()) {
+                this.excludes.addAll(normalise(ImmutableList.copyOf(DirectoryScanner.DEFAULTEXCLUDES)));
+            }
+            this.includePatterns = compilePatterns(this.includes);
+            this.excludePatterns = compilePatterns(this.excludes);
+        }
+
+        private boolean matches(String path) {
+            return matchesAny(includePatterns, path) && !matchesAny(excludePatterns, path);
+        }
+
+        /**
+         * @return true if the directory or anything beneath it may be included
+         */
+        private boolean mayInclude(String directory) {
+            for (int i = 0; i < excludes.size(); i++) {
+                if (excludes.get(i).endsWith("**") && excludePatterns.get(i).matcher(directory).matches()) {
+                    return false;
+                }
+            }
+            String path = directory.replace('/', File.separatorChar);
+            for (String include : includes) {
+                if (SelectorUtils.matchPatternStart(include.replace('/', File.separatorChar), path, true)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private final ListMultimap<String, CompiledFileSet> matchers = ArrayListMultimap.create();
+    private final Map<FileSet, CompiledFileSet> compiled = Maps.newIdentityHashMap();
+    private final Map<String, List<String>> index = Maps.newHashMap();
+
+    /**
+     * @param fileSets Every file set which will be resolved against the index, each with its directory set
+     */
+    public FileSetIndex(Iterable<FileSet> fileSets) {
+        for (FileSet fileSet : fileSets) {
+            compile(fileSet);
+        }
+    }
+
+    /**
+     * Resolve the files included by a file set. A file set the index was not created with is compiled on first use,
+     * but a directory already walked is not walked again to suit it.
+     *
+     * @param fileSet File set with its directory set
+     * @return Paths of the included files relative to the file set directory
+     */
+    public synchronized String[] getIncludedFiles(FileSet fileSet) {
+        CompiledFileSet matcher = compile(fileSet);
+        String key = key(fileSet);
+        List<String> files = index.get(key);
+        if (files == null) {
+            files = Lists.newArrayList();
+            walk(new File(key), "", matchers.get(key), files);
+            index.put(key, files);
+        }
+
+        List<String> included = Lists.newArrayList();
+        for (String file : files) {
+            if (matcher.matches(file)) {
+                included.add(file.replace('/', File.separatorChar));
+            }
+        }
+        return included.toArray(new String[included.size()]);
+    }
+
+    private static void walk(File directory, String prefix, List<CompiledFileSet> matchers, List<String> files) {
+        File[] children = directory.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            String path = prefix + child.getName();
+            if (child.isDirectory()) {
+                for (CompiledFileSet matcher : matchers) {
+                    if (matcher.mayInclude(path)) {
+                        walk(child, path + "/", matchers, files);
+                        break;
+                    }
+                }
+            } else {
+                files.add(path);
+            }
+        }
+    }
+
+    private CompiledFileSet compile(FileSet fileSet) {
+        CompiledFileSet matcher = compiled.get(fileSet);
+        if (matcher == null) {
+            matcher = new CompiledFileSet(fileSet);
+            compiled.put(fileSet, matcher);
+            matchers.put(key(fileSet), matcher);
+        }
+        return matcher;
+    }
+
+    private static String key(FileSet fileSet) {
+        return new File(fileSet.getDirectory()).getAbsolutePath();
+    }
+
+    private static boolean matchesAny(List<Pattern> patterns, String path) {
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(path).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Normalise patterns to use forward slashes, a trailing slash matching everything beneath the directory as per
+     * the Ant convention.
+     */
+    private static List<String> normalise(List<?> patterns) {
+        List<String> normalised = Lists.newArrayList();
+        if (patterns != null) {
+            for (Object pattern : patterns) {
+                String value = pattern.toString().trim().replace('\\', '/');
+                if (value.endsWith("/")) {
+                    value += "**";
+                }
+                normalised.add(value);
+            }
+        }
+        return normalised;
+    }
+
+    private static List<Pattern> compilePatterns(List<String> patterns) {
+        List<Pattern> compiled = Lists.newArrayList();
+        for (String pattern : patterns) {
+            compiled.add(Pattern.compile(toRegex(pattern)));
+        }
+        return compiled;
+    }
+
+    /**
+     * Translate an Ant style path pattern into a regular expression, {@code **} matching any number of directories,
+     * {@code *} any characters within a path segment and {@code ?} a single character.
+     */
+    static String toRegex(String pattern) {
+        String[] segments = pattern.split("/");
+        StringBuilder regex = new StringBuilder();
+        boolean separated = true;
+        for (int i = 0; i < segments.length; i++) {
+            String segment = segments[i];
+            boolean last = i == segments.length - 1;
+            if ("**".equals(segment)) {
+                if (last) {
+                    regex.append(i == 0 ? ".*" : "(?:/.*)?");
+                } else {
+                    regex.append(i == 0 ? "(?:.*/)?" : "/(?:.*/)?");
+                    separated = true;
+                }
+                continue;
+            }
+            if (i > 0 && !separated) {
+                regex.append('/');
+            }
+            separated = false;
+            for (char c : segment.toCharArray()) {
+                if (c == '*') {
+                    regex.append("[^/]*");
+                } else if (c == '?') {
+                    regex.append("[^/]");
+                } else {
+                    regex.append(Pattern.quote(String.valueOf(c)));
+                }
+            }
+        }
+        return regex.toString();
+    }
+}
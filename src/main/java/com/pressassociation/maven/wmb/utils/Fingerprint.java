@@ -0,0 +1,131 @@
+package com.pressassociation.maven.wmb.utils;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+import com.google.common.io.Closeables;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Accumulates a SHA-1 digest over strings, files and directory trees, used to key build outputs by the content of
+ * their inputs.
+ *
+ * @author Bob Browning <bob.browning@pressassociation.com>
+ */
+public final class Fingerprint {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final MessageDigest digest;
+    private final byte[] buffer = new byte[8192];
+
+    public Fingerprint() {
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Add a delimited string to the fingerprint.
+     *
+     * @param value String to add
+     * @return this fingerprint
+     */
+    public Fingerprint putString(String value) {
+        digest.update(String.valueOf(value).getBytes(Charsets.UTF_8));
+        digest.update((byte) 0);
+        return this;
+    }
+
+    /**
+     * Add the content of a file to the fingerprint.
+     *
+     * @param file File to add
+     * @return this fingerprint
+     * @throws IOException
+     */
+    public Fingerprint putFile(File file) throws IOException {
+        InputStream is = new FileInputStream(file);
+        try {
+            int n;
+            while ((n = is.read(buffer)) != -1) {
+                digest.update(buffer, 0, n);
+            }
+        } finally {
+            Closeables.closeQuietly(is);
+        }
+        digest.update((byte) 0);
+        return this;
+    }
+
+    /**
+     * Add the relative path and content of every file beneath a directory to the fingerprint, in a stable order.
+     * Eclipse workspace metadata is ignored.
+     *
+     * @param directory Directory to add, missing directories are recorded as such
+     * @return this fingerprint
+     * @throws IOException
+     */
+    public Fingerprint putTree(File directory) throws IOException {
+        return putTree(directory, Predicates.<File>alwaysTrue());
+    }
+
+    /**
+     * Add the relative path and content of the files beneath a directory accepted by a filter to the fingerprint, in
+     * a stable order. Eclipse workspace metadata is ignored.
+     *
+     * @param directory Directory to add, missing directories are recorded as such
+     * @param filter    Filter of the files to add
+     * @return this fingerprint
+     * @throws IOException
+     */
+    public Fingerprint putTree(File directory, Predicate<? super File> filter) throws IOException {
+        if (!directory.isDirectory()) {
+            return putString("<missing:" + directory.getName() + ">");
+        }
+        putTree(directory, "", filter);
+        return this;
+    }
+
+    private void putTree(File directory, String prefix, Predicate<? super File> filter) throws IOException {
+        File[] children = directory.listFiles();
+        if (children == null) {
+            throw new IOException("Unable to list " + directory);
+        }
+        Arrays.sort(children);
+        for (File child : children) {
+            if (".metadata".equals(child.getName())) {
+                continue;
+            }
+            String path = prefix + child.getName();
+            if (child.isDirectory()) {
+                putTree(child, path + "/", filter);
+            } else if (filter.apply(child)) {
+                putString(path);
+                putFile(child);
+            }
+        }
+    }
+
+    /**
+     * @return Hexadecimal representation of the accumulated digest, the fingerprint should not be reused afterwards
+     */
+    public String hash() {
+        byte[] bytes = digest.digest();
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+}
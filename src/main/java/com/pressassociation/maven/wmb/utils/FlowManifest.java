@@ -0,0 +1,214 @@
+package com.pressassociation.maven.wmb.utils;
+
+import com.google.common.base.Predicate;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.codehaus.plexus.util.IOUtil;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.SortedMap;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Records the content hashes of the inputs of a built broker archive, so that a later build can tell which message
+ * flows have changed since.
+ * <p/>
+ * Each deployable message flow is hashed together with the subflows and ESQL modules it depends upon. Every other
+ * input of the archive, from the toolkit to the resources of its projects, is covered by a single shared hash; when
+ * that changes no flow can be rebuilt on its own.
+ *
+ * @author Bob Browning <bob.browning@pressassociation.com>
+ */
+public class FlowManifest {
+
+    /**
+     * Extension of the manifest written beside each archive.
+     */
+    public static final String EXTENSION = ".flows";
+
+    private static final String SHARED_PROPERTY = "shared";
+    private static final String FLOW_PROPERTY_PREFIX = "flow.";
+
+    private final String shared;
+    private final SortedMap<String, String> flows;
+
+    /**
+     * @param shared Hash of the inputs shared by every flow
+     * @param flows  Deployable message flows mapped to the hash of each flow and its dependencies
+     */
+    public FlowManifest(String shared, Map<String, String> flows) {
+        this.shared = checkNotNull(shared);
+        this.flows = Maps.newTreeMap();
+        this.flows.putAll(flows);
+    }
+
+    /**
+     * Read a manifest.
+     *
+     * @param file Manifest file
+     * @return Manifest, or null if there is none or it is incomplete
+     * @throws IOException
+     */
+    public static FlowManifest load(File file) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+
+        Properties properties = new Properties();
+        InputStream is = new FileInputStream(file);
+        try {
+            properties.load(is);
+        } finally {
+            IOUtil.close(is);
+        }
+
+        String shared = properties.getProperty(SHARED_PROPERTY);
+        if (shared == null) {
+            return null;
+        }
+        Map<String, String> flows = Maps.newHashMap();
+        for (String key : properties.stringPropertyNames()) {
+            if (key.startsWith(FLOW_PROPERTY_PREFIX)) {
+                flows.put(key.substring(FLOW_PROPERTY_PREFIX.length()), properties.getProperty(key));
+            }
+        }
+        return new FlowManifest(shared, flows);
+    }
+
+    /**
+     * Write the manifest.
+     *
+     * @param file Manifest file
+     * @throws IOException
+     */
+    public void store(File file) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(SHARED_PROPERTY, shared);
+        for (Map.Entry<String, String> entry : flows.entrySet()) {
+            properties.setProperty(FLOW_PROPERTY_PREFIX + entry.getKey(), entry.getValue());
+        }
+
+        OutputStream os = new FileOutputStream(file);
+        try {
+            properties.store(os, "Broker archive flow hashes");
+        } finally {
+            IOUtil.close(os);
+        }
+    }
+
+    /**
+     * @return Deployable message flows, in order
+     */
+    public Set<String> getFlows() {
+        return Collections.unmodifiableSet(flows.keySet());
+    }
+
+    /**
+     * Determine the flows which have changed since a previous build.
+     *
+     * @param previous Manifest of the previous build
+     * @return Flows whose hash differs, in order, or null if the shared inputs or the set of flows differ and the
+     *         archive must be rebuilt in full
+     */
+    public Set<String> getChangedFlows(FlowManifest previous) {
+        if (!shared.equals(previous.shared) || !flows.keySet().equals(previous.flows.keySet())) {
+            return null;
+        }
+        Set<String> changed = Sets.newTreeSet();
+        for (Map.Entry<String, String> entry : flows.entrySet()) {
+            if (!entry.getValue().equals(previous.flows.get(entry.getKey()))) {
+                changed.add(entry.getKey());
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Accumulates the hashes of a manifest. The files of each flow are excluded from the shared directory trees, so
+     * that editing a flow changes its own hash alone; flows must therefore be given as files within those trees, and
+     * before the trees are added.
+     */
+    public static final class Builder {
+
+        private final Fingerprint shared;
+        private final Map<String, String> flows = Maps.newHashMap();
+        private final Set<File> flowSources = Sets.newHashSet();
+
+        /**
+         * @param shared Fingerprint of the shared inputs, to which the builder adds
+         */
+        public Builder(Fingerprint shared) {
+            this.shared = checkNotNull(shared);
+        }
+
+        /**
+         * Hash a deployable message flow together with the files it depends upon.
+         *
+         * @param name         Name of the flow within the manifest
+         * @param flow         Flow file
+         * @param dependencies Subflows and ESQL modules the flow depends upon
+         * @return this builder
+         * @throws IOException
+         */
+        public Builder putFlow(String name, File flow, Collection<File> dependencies) throws IOException {
+            Fingerprint fingerprint = new Fingerprint().putFile(flow);
+            for (File dependency : dependencies) {
+                fingerprint.putString(dependency.getPath()).putFile(dependency);
+                flowSources.add(dependency.getAbsoluteFile());
+            }
+            flows.put(name, fingerprint.hash());
+            flowSources.add(flow.getAbsoluteFile());
+            return this;
+        }
+
+        /**
+         * @param value String to add to the shared hash
+         * @return this builder
+         */
+        public Builder putShared(String value) {
+            shared.putString(value);
+            return this;
+        }
+
+        /**
+         * @param file File whose content is added to the shared hash
+         * @return this builder
+         * @throws IOException
+         */
+        public Builder putSharedFile(File file) throws IOException {
+            shared.putFile(file);
+            return this;
+        }
+
+        /**
+         * Add the files beneath a directory to the shared hash, other than those of the flows added so far.
+         *
+         * @param directory Directory to add
+         * @return this builder
+         * @throws IOException
+         */
+        public Builder putSharedTree(File directory) throws IOException {
+            shared.putTree(directory, new Predicate<File>() {
+                @Override public boolean apply(File file) {
+                    return !flowSources.contains(file.getAbsoluteFile());
+                }
+            });
+            return this;
+        }
+
+        public FlowManifest build() {
+            return new FlowManifest(shared.hash(), flows);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.pressassociation.maven.wmb.utils;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import org.codehaus.plexus.util.IOUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Files of a git working tree which differ from a given revision, including uncommitted and untracked files, as
+ * reported by the local {@code git} command.
+ *
+ * @author Bob Browning <bob.browning@pressassociation.com>
+ */
+public class GitChangeSet {
+
+    private static final Splitter PATHS = Splitter.on('\0').omitEmptyStrings();
+
+    private final Set<File> files;
+
+    private GitChangeSet(Set<File> files) {
+        this.files = files;
+    }
+
+    /**
+     * Determine the files changed since a revision.
+     *
+     * @param directory Directory within the working tree
+     * @param revision  Revision to compare the working tree with, e.g. a branch, tag or commit
+     * @return Changed files
+     * @throws IOException If git fails or the revision is unknown
+     */
+    public static GitChangeSet since(File directory, String revision) throws IOException {
+        File root = new File(git(directory, "rev-parse", "--show-toplevel").trim()).getCanonicalFile();
+
+        /* Paths are NUL terminated so that git neither quotes nor escapes them, renames are listed as a deletion and
+           an addition so that both sides are reported */
+        ImmutableSet.Builder<File> files = ImmutableSet.builder();
+        for (String path : PATHS.split(git(directory, "diff", "--name-only", "-z", "--no-renames", revision, "--"))) {
+            files.add(new File(root, path).getAbsoluteFile());
+        }
+        for (String path : PATHS.split(git(root, "ls-files", "-z", "--others", "--exclude-standard"))) {
+            files.add(new File(root, path).getAbsoluteFile());
+        }
+        return new GitChangeSet(files.build());
+    }
+
+    /**
+     * @return Absolute paths of the changed files, including deleted files
+     */
+    public Set<File> getFiles() {
+        return files;
+    }
+
+    /**
+     * @param directory Directory
+     * @return Paths of the changed files within the directory relative to it, using forward slashes
+     */
+    public List<String> getRelativePaths(File directory) {
+        String prefix = directory.getAbsolutePath() + File.separator;
+        List<String> paths = Lists.newArrayList();
+        for (File file : files) {
+            if (file.getPath().startsWith(prefix)) {
+                paths.add(file.getPath().substring(prefix.length()).replace(File.separatorChar, '/'));
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * Run git, draining its error stream separately so that warnings are not mistaken for output.
+     *
+     * @return Standard output of git
+     */
+    private static String git(File directory, String... arguments) throws IOException {
+        List<String> command = Lists.newArrayList("git");
+        command.addAll(Lists.newArrayList(arguments));
+
+        ProcessBuilder pb = new ProcessBuilder(command);
+        pb.directory(directory);
+        Process process = pb.start();
+        IOUtil.close(process.getOutputStream());
+
+        final InputStream es = process.getErrorStream();
+        final ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        Thread stderr = new Thread(new Runnable() {
+            @Override public void run() {
+                try {
+                    ByteStreams.copy(es, errors);
+                } catch (IOException ignored) {
+                    /* The process has gone, whatever it wrote is reported */
+                } finally {
+                    IOUtil.close(es);
+                }
+            }
+        }, "git stderr");
+        stderr.setDaemon(true);
+        stderr.start();
+
+        String output;
+        InputStream is = process.getInputStream();
+        try {
+            output = new String(ByteStreams.toByteArray(is), Charsets.UTF_8);
+        } finally {
+            IOUtil.close(is);
+        }
+
+        try {
+            int exitCode = process.waitFor();
+            stderr.join();
+            if (exitCode != 0) {
+                throw new IOException(Joiner.on(' ').join(command) + " returned exit code " + exitCode + ": "
+                        + new String(errors.toByteArray(), Charsets.UTF_8).trim());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted running " + Joiner.on(' ').join(command));
+        }
+        return output;
+    }
+}
@@ -0,0 +1,113 @@
+package com.pressassociation.maven.wmb.utils;
+
+import com.google.common.base.Splitter;
+import org.apache.maven.plugin.logging.Log;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Log which tags every line with the name of the work producing it, so that the output of work running concurrently
+ * on worker threads may be written as it is produced and remains attributable when interleaved.
+ *
+ * @author Bob Browning <bob.browning@pressassociation.com>
+ */
+public class PrefixedLog implements Log {
+
+    private static final Splitter LINES = Splitter.on('\n');
+
+    private final Log delegate;
+    private final String tag;
+
+    /**
+     * @param delegate Log to which messages are written, also consulted for enabled levels
+     * @param name     Name of the work producing the messages, e.g. an archive classifier
+     */
+    public PrefixedLog(Log delegate, String name) {
+        this.delegate = checkNotNull(delegate);
+        this.tag = "[" + checkNotNull(name) + "]";
+    }
+
+    private CharSequence prefix(CharSequence content) {
+        if (content == null) {
+            return tag;
+        }
+        StringBuilder builder = new StringBuilder(content.length() + tag.length() + 1);
+        for (String line : LINES.split(content)) {
+            if (builder.length() > 0) {
+                builder.append('\n');
+            }
+            builder.append(tag).append(' ').append(line);
+        }
+        return builder;
+    }
+
+    @Override public boolean isDebugEnabled() {
+        return delegate.isDebugEnabled();
+    }
+
+    @Override public void debug(CharSequence content) {
+        if (isDebugEnabled()) {
+            delegate.debug(prefix(content));
+        }
+    }
+
+    @Override public void debug(CharSequence content, Throwable error) {
+        if (isDebugEnabled()) {
+            delegate.debug(prefix(content), error);
+        }
+    }
+
+    @Override public void debug(Throwable error) {
+        if (isDebugEnabled()) {
+            delegate.debug(prefix(null), error);
+        }
+    }
+
+    @Override public boolean isInfoEnabled() {
+        return delegate.isInfoEnabled();
+    }
+
+    @Override public void info(CharSequence content) {
+        delegate.info(prefix(content));
+    }
+
+    @Override public void info(CharSequence content, Throwable error) {
+        delegate.info(prefix(content), error);
+    }
+
+    @Override public void info(Throwable error) {
+        delegate.info(prefix(null), error);
+    }
+
+    @Override public boolean isWarnEnabled() {
+        return delegate.isWarnEnabled();
+    }
+
+    @Override public void warn(CharSequence content) {
+        delegate.warn(prefix(content));
+    }
+
+    @Override public void warn(CharSequence content, Throwable error) {
+        delegate.warn(prefix(content), error);
+    }
+
+    @Override public void warn(Throwable error) {
+        delegate.warn(prefix(null), error);
+    }
+
+    @Override public boolean isErrorEnabled() {
+        return delegate.isErrorEnabled();
+    }
+
+    @Override public void error(CharSequence content) {
+        delegate.error(prefix(content));
+    }
+
+    @Override public void error(CharSequence content, Throwable error) {
+        delegate.error(prefix(content), error);
+    }
+
+    @Override public void error(Throwable error) {
+        delegate.error(prefix(null), error);
+    }
+}
@@ -0,0 +1,286 @@
+package com.pressassociation.maven.wmb.utils;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
+import org.apache.maven.plugin.logging.Log;
+import org.codehaus.plexus.util.IOUtil;
+import org.codehaus.plexus.util.Os;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Runs an external process whilst draining its standard output and error streams on dedicated threads, so that a
+ * chatty process can never block on a full pipe buffer.
+ * <p/>
+ * Output lines are streamed to the log as they arrive and the most recent lines are retained in a bounded buffer for
+ * failure reports. The process is killed, along with any processes it spawned, if it exceeds its overall timeout,
+ * produces no output for longer than its inactivity timeout, or is explicitly aborted.
+ *
+ * @author Bob Browning <bob.browning@pressassociation.com>
+ */
+public class ProcessSupervisor {
+
+    private static final long POLL_MILLIS = 100;
+
+    /**
+     * Maximum time to wait for output to drain once the process has exited, descendants may hold the pipes open.
+     */
+    private static final long DRAIN_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    /**
+     * Raised when the supervised process is killed before it exits of its own accord.
+     */
+    public static class AbortedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public AbortedException(String message) {
+            super(message);
+        }
+    }
+
+    private final Log log;
+    private final long timeoutMillis;
+    private final long inactivityTimeoutMillis;
+    private final int capacity;
+
+    private final Deque<String> output;
+    private volatile long lastActivity;
+    private volatile String abortReason;
+
+    /**
+     * @param log                     Log to stream output to
+     * @param timeoutMillis           Maximum run time, zero or less for no limit
+     * @param inactivityTimeoutMillis Maximum time without output, zero or less for no limit
+     * @param capacity                Number of most recent output lines to retain
+     */
+    public ProcessSupervisor(Log log, long timeoutMillis, long inactivityTimeoutMillis, int capacity) {
+        this.log = checkNotNull(log);
+        this.timeoutMillis = timeoutMillis;
+        this.inactivityTimeoutMillis = inactivityTimeoutMillis;
+        this.capacity = capacity;
+        this.output = new ArrayDeque<String>(capacity);
+    }
+
+    /**
+     * Run the process to completion.
+     *
+     * @param pb Process to start
+     * @return Exit code of the process
+     * @throws AbortedException     if the process was killed due to a timeout or an abort request
+     * @throws IOException          if the process could not be started
+     * @throws InterruptedException if interrupted whilst waiting, the process is killed
+     */
+    public int run(ProcessBuilder pb) throws IOException, InterruptedException {
+        final long started = System.currentTimeMillis();
+        lastActivity = started;
+
+        Process process = pb.start();
+        try {
+            IOUtil.close(process.getOutputStream());
+            Thread stdout = drain(process.getInputStream(), false, pb.command().get(0) + " stdout");
+            Thread stderr = drain(process.getErrorStream(), true, pb.command().get(0) + " stderr");
+
+            Integer exitCode;
+            while ((exitCode = exitValue(process)) == null) {
+                long now = System.currentTimeMillis();
+                if (timeoutMillis > 0 && now - started > timeoutMillis) {
+                    abort("Process exceeded timeout of " + TimeUnit.MILLISECONDS.toSeconds(timeoutMillis) + "s");
+                } else if (inactivityTimeoutMillis > 0 && now - lastActivity > inactivityTimeoutMillis) {
+                    abort("Process produced no output for " + TimeUnit.MILLISECONDS.toSeconds(inactivityTimeoutMillis) + "s");
+                }
+
+                if (abortReason != null) {
+                    destroyTree(process);
+                    stdout.join(DRAIN_MILLIS);
+                    stderr.join(DRAIN_MILLIS);
+                    throw new AbortedException(abortReason);
+                }
+                Thread.sleep(POLL_MILLIS);
+            }
+
+            stdout.join(DRAIN_MILLIS);
+            stderr.join(DRAIN_MILLIS);
+            return exitCode;
+        } catch (InterruptedException e) {
+            destroyTree(process);
+            throw e;
+        } finally {
+            IOUtil.close(process.getInputStream());
+            IOUtil.close(process.getErrorStream());
+        }
+    }
+
+    /**
+     * Request that the running process be killed, the first reason given is reported.
+     *
+     * @param reason Reason for aborting
+     */
+    public synchronized void abort(String reason) {
+        if (abortReason == null) {
+            abortReason = reason;
+        }
+    }
+
+    /**
+     * @return The most recent lines of output, standard error and standard output interleaved as received
+     */
+    public List<String> getOutput() {
+        synchronized (output) {
+            return ImmutableList.copyOf(output);
+        }
+    }
+
+    /**
+     * Hook for subclasses to inspect each line of output as it is received, called on the draining thread.
+     *
+     * @param line  Line of output
+     * @param error true if the line was written to standard error
+     */
+    protected void onLine(String line, boolean error) {
+    }
+
+    private Thread drain(final InputStream is, final boolean error, String name) {
+        Thread thread = new Thread(new Runnable() {
+            @Override public void run() {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(is));
+                try {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        lastActivity = System.currentTimeMillis();
+                        line = line.trim();
+                        record(line);
+                        if (error) {
+                            log.warn(line);
+                        } else {
+                            log.info(line);
+                        }
+                        onLine(line, error);
+                    }
+                } catch (IOException e) {
+                    log.debug("Stopped reading process output: " + e.getMessage());
+                } finally {
+                    IOUtil.close(reader);
+                }
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private void record(String line) {
+        synchronized (output) {
+            if (output.size() == capacity) {
+                output.removeFirst();
+            }
+            if (capacity > 0) {
+                output.addLast(line);
+            }
+        }
+    }
+
+    private static Integer exitValue(Process process) {
+        try {
+            return process.exitValue();
+        } catch (IllegalThreadStateException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Kill a process and all of its descendants, the toolkit launcher script forks the Eclipse JVM which would
+     * otherwise survive {@link Process#destroy()}.
+     *
+     * @param process Process to kill
+     */
+    static void destroyTree(Process process) {
+        Long pid = pid(process);
+        if (pid != null) {
+            try {
+                if (Os.isFamily(Os.FAMILY_WINDOWS)) {
+                    exec("taskkill", "/F", "/T", "/PID", String.valueOf(pid));
+                } else {
+                    List<String> command = Lists.newArrayList("kill", "-9");
+                    for (Long descendant : descendants(pid)) {
+                        command.add(String.valueOf(descendant));
+                    }
+                    if (command.size() > 2) {
+                        exec(command.toArray(new String[command.size()]));
+                    }
+                }
+            } catch (IOException ignored) {
+                /* Fall back to destroying the immediate process */
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        process.destroy();
+    }
+
+    private static List<Long> descendants(long pid) throws IOException, InterruptedException {
+        Multimap<Long, Long> children = ArrayListMultimap.create();
+        for (String line : Splitter.on('\n').trimResults().omitEmptyStrings().split(exec("ps", "-A", "-o", "pid=", "-o", "ppid="))) {
+            List<String> parts = Lists.newArrayList(Splitter.on(' ').omitEmptyStrings().split(line));
+            if (parts.size() == 2) {
+                try {
+                    children.put(Long.valueOf(parts.get(1)), Long.valueOf(parts.get(0)));
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+
+        List<Long> result = Lists.newArrayList();
+        Deque<Long> pending = new ArrayDeque<Long>(children.get(pid));
+        while (!pending.isEmpty()) {
+            Long child = pending.removeFirst();
+            result.add(child);
+            pending.addAll(children.get(child));
+        }
+        return result;
+    }
+
+    private static String exec(String... command) throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        try {
+            IOUtil.close(process.getOutputStream());
+            String output = IOUtil.toString(process.getInputStream());
+            process.waitFor();
+            return output;
+        } finally {
+            IOUtil.close(process.getInputStream());
+        }
+    }
+
+    /**
+     * Determine the operating system process id, using {@code Process.pid()} where available and falling back to the
+     * private field of the platform process implementation.
+     */
+    private static Long pid(Process process) {
+        try {
+            Method method = Process.class.getMethod("pid");
+            return ((Number) method.invoke(process)).longValue();
+        } catch (Exception ignored) {
+        }
+        try {
+            Field field = process.getClass().getDeclaredField("pid");
+            field.setAccessible(true);
+            return ((Number) field.get(process)).longValue();
+        } catch (Exception ignored) {
+        }
+        return null;
+    }
+}
@@ -0,0 +1,107 @@
+package com.pressassociation.maven.wmb.utils;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.pressassociation.maven.wmb.types.EclipseProject;
+import nu.xom.ParsingException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Graph of Eclipse projects within a directory, connected by the project references declared in their
+ * {@code .project} descriptors. Projects are read on demand as the graph is traversed.
+ *
+ * @author Bob Browning <bob.browning@pressassociation.com>
+ */
+public class ProjectGraph {
+
+    private final File directory;
+    private final Map<String, EclipseProject> projects = Maps.newTreeMap();
+    private final Set<String> missing = Sets.newTreeSet();
+
+    /**
+     * @param directory Directory containing one sub-directory per project
+     */
+    public ProjectGraph(File directory) {
+        this.directory = checkNotNull(directory);
+    }
+
+    /**
+     * @param name Project name
+     * @return Project description, or null if the project does not exist
+     * @throws IOException
+     * @throws ParsingException
+     */
+    public synchronized EclipseProject getProject(String name) throws IOException, ParsingException {
+        EclipseProject project = projects.get(name);
+        if (project == null && !missing.contains(name)) {
+            File projectDirectory = new File(directory, name);
+            if (projectDirectory.isDirectory()) {
+                project = EclipseProject.read(projectDirectory);
+                projects.put(name, project);
+            } else {
+                missing.add(name);
+            }
+        }
+        return project;
+    }
+
+    /**
+     * Compute the transitive closure of project references.
+     *
+     * @param roots Names of the projects to start from
+     * @return Names of the existing projects reachable from the roots, including the roots themselves
+     * @throws IOException
+     * @throws ParsingException
+     */
+    public synchronized Set<String> closure(Collection<String> roots) throws IOException, ParsingException {
+        Set<String> closure = Sets.newLinkedHashSet();
+        Deque<String> pending = new ArrayDeque<String>(roots);
+        while (!pending.isEmpty()) {
+            String name = pending.removeFirst();
+            if (closure.contains(name)) {
+                continue;
+            }
+            EclipseProject project = getProject(name);
+            if (project != null) {
+                closure.add(name);
+                pending.addAll(project.getReferences());
+            }
+        }
+        return closure;
+    }
+
+    /**
+     * @return Names of referenced projects which could not be found, for those traversed so far
+     */
+    public synchronized Set<String> getMissing() {
+        return ImmutableSet.copyOf(missing);
+    }
+
+    /**
+     * @return One line per project traversed so far, listing the projects it references
+     */
+    public synchronized List<String> describe() {
+        List<String> lines = Lists.newArrayList();
+        for (EclipseProject project : projects.values()) {
+            lines.add(project.getDirectory().getName() + " -> "
+                    + (project.getReferences().isEmpty() ? "(none)" : Joiner.on(", ").join(project.getReferences())));
+        }
+        for (String name : missing) {
+            lines.add(name + " (missing)");
+        }
+        return lines;
+    }
+}
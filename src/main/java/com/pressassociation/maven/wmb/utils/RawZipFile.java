@@ -0,0 +1,372 @@
+package com.pressassociation.maven.wmb.utils;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Reads a zip archive from its central directory, giving access to both the compressed and the uncompressed content
+ * of each entry so that entries may be copied to another archive without being decompressed and compressed again.
+ * <p/>
+ * Names are decoded as UTF-8 when their entry is flagged as such and otherwise as code page 437, the encoding the zip
+ * specification defines. Archives are read from a file or from memory. Zip64 archives, which broker archives never
+ * approach the size of, are not supported.
+ *
+ * @author Bob Browning <bob.browning@pressassociation.com>
+ * @see RawZipOutputStream
+ */
+public class RawZipFile implements Closeable {
+
+    static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    static final int END_SIGNATURE = 0x06054b50;
+
+    /**
+     * General purpose flag marking names encoded in UTF-8 rather than code page 437.
+     */
+    static final int FLAG_UTF8 = 0x0800;
+
+    /**
+     * Encoding of names without {@link #FLAG_UTF8}, as defined by the zip specification.
+     */
+    private static final Charset CP437 = Charset.forName("IBM437");
+
+    static final int LOCAL_HEADER_LENGTH = 30;
+    static final int CENTRAL_HEADER_LENGTH = 46;
+    static final int END_LENGTH = 22;
+
+    /**
+     * Largest possible archive comment, bounding the search for the end of central directory record.
+     */
+    private static final int MAX_COMMENT_LENGTH = 0xffff;
+
+    private final Source source;
+    private final List<Entry> entries;
+
+    private RawZipFile(Source source) throws IOException {
+        this.source = source;
+        this.entries = readCentralDirectory();
+    }
+
+    /**
+     * Open an archive file.
+     *
+     * @param file Archive file
+     * @return Archive, to be closed once no longer required
+     * @throws IOException
+     */
+    public static RawZipFile open(File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return new RawZipFile(new Source() {
+                @Override public synchronized void read(long position, byte[] b, int off, int len) throws IOException {
+                    raf.seek(position);
+                    raf.readFully(b, off, len);
+                }
+
+                @Override public long length() throws IOException {
+                    return raf.length();
+                }
+
+                @Override public void close() throws IOException {
+                    raf.close();
+                }
+            });
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Open an archive held in memory.
+     *
+     * @param bytes Archive content
+     * @return Archive
+     * @throws IOException
+     */
+    public static RawZipFile open(final byte[] bytes) throws IOException {
+        return new RawZipFile(new Source() {
+            @Override public void read(long position, byte[] b, int off, int len) throws IOException {
+                if (position < 0 || position + len > bytes.length) {
+                    throw new EOFException();
+                }
+                System.arraycopy(bytes, (int) position, b, off, len);
+            }
+
+            @Override public long length() {
+                return bytes.length;
+            }
+
+            @Override public void close() {
+            }
+        });
+    }
+
+    /**
+     * @return Entries of the archive, in the order of its central directory
+     */
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * @param entry Entry of this archive
+     * @return Stream of the entry content as stored, compressed or otherwise
+     * @throws IOException
+     */
+    public InputStream getRawInputStream(Entry entry) throws IOException {
+        byte[] header = new byte[LOCAL_HEADER_LENGTH];
+        source.read(entry.localHeaderOffset, header, 0, header.length);
+        if (readInt(header, 0) != LOCAL_HEADER_SIGNATURE) {
+            throw new ZipException("Invalid local header for " + entry.name);
+        }
+        long dataOffset = entry.localHeaderOffset + LOCAL_HEADER_LENGTH + readShort(header, 26) + readShort(header, 28);
+        return new RegionInputStream(dataOffset, entry.compressedSize);
+    }
+
+    /**
+     * @param entry Entry of this archive
+     * @return Stream of the uncompressed entry content
+     * @throws IOException
+     */
+    public InputStream getInputStream(Entry entry) throws IOException {
+        InputStream raw = getRawInputStream(entry);
+        switch (entry.method) {
+            case ZipEntry.STORED:
+                return raw;
+            case ZipEntry.DEFLATED:
+                final Inflater inflater = new Inflater(true);
+                /* A dummy byte terminates raw deflate data, as expected by the inflater */
+                return new InflaterInputStream(new SequenceInputStream(raw, new ByteArrayInputStream(new byte[1])),
+                        inflater, 8192) {
+                    private boolean closed;
+
+                    @Override public void close() throws IOException {
+                        if (!closed) {
+                            closed = true;
+                            inflater.end();
+                            super.close();
+                        }
+                    }
+                };
+            default:
+                throw new ZipException("Unsupported compression method " + entry.method + " for " + entry.name);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+
+    private List<Entry> readCentralDirectory() throws IOException {
+        long length = source.length();
+        int tailLength = (int) Math.min(length, END_LENGTH + MAX_COMMENT_LENGTH);
+        byte[] tail = new byte[tailLength];
+        source.read(length - tailLength, tail, 0, tailLength);
+
+        int end = -1;
+        for (int i = tailLength - END_LENGTH; i >= 0; i--) {
+            if (readInt(tail, i) == END_SIGNATURE) {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0) {
+            throw new ZipException("End of central directory not found");
+        }
+
+        int count = readShort(tail, end + 10);
+        long size = readUnsignedInt(tail, end + 12);
+        long offset = readUnsignedInt(tail, end + 16);
+        if (count == 0xffff || size == 0xffffffffL || offset == 0xffffffffL) {
+            throw new ZipException("Zip64 archives are not supported");
+        }
+
+        byte[] directory = new byte[(int) size];
+        source.read(offset, directory, 0, directory.length);
+
+        ImmutableList.Builder<Entry> builder = ImmutableList.builder();
+        int position = 0;
+        for (int i = 0; i < count; i++) {
+            if (position + CENTRAL_HEADER_LENGTH > directory.length
+                    || readInt(directory, position) != CENTRAL_HEADER_SIGNATURE) {
+                throw new ZipException("Invalid central directory");
+            }
+            int nameLength = readShort(directory, position + 28);
+            int extraLength = readShort(directory, position + 30);
+            int commentLength = readShort(directory, position + 32);
+
+            int flags = readShort(directory, position + 8);
+            byte[] rawName = new byte[nameLength];
+            System.arraycopy(directory, position + CENTRAL_HEADER_LENGTH, rawName, 0, nameLength);
+            Entry entry = new Entry(
+                    new String(rawName, (flags & FLAG_UTF8) != 0 ? Charsets.UTF_8 : CP437),
+                    rawName,
+                    flags,
+                    readShort(directory, position + 10),
+                    readInt(directory, position + 12),
+                    readUnsignedInt(directory, position + 16),
+                    readUnsignedInt(directory, position + 20),
+                    readUnsignedInt(directory, position + 24),
+                    readUnsignedInt(directory, position + 42));
+            if (entry.compressedSize == 0xffffffffL || entry.size == 0xffffffffL
+                    || entry.localHeaderOffset == 0xffffffffL) {
+                throw new ZipException("Zip64 archives are not supported");
+            }
+            builder.add(entry);
+            position += CENTRAL_HEADER_LENGTH + nameLength + extraLength + commentLength;
+        }
+        return builder.build();
+    }
+
+    static int readShort(byte[] b, int off) {
+        return (b[off] & 0xff) | ((b[off + 1] & 0xff) << 8);
+    }
+
+    static int readInt(byte[] b, int off) {
+        return readShort(b, off) | (readShort(b, off + 2) << 16);
+    }
+
+    static long readUnsignedInt(byte[] b, int off) {
+        return readInt(b, off) & 0xffffffffL;
+    }
+
+    /**
+     * Random access to the bytes of an archive.
+     */
+    private interface Source extends Closeable {
+        void read(long position, byte[] b, int off, int len) throws IOException;
+
+        long length() throws IOException;
+    }
+
+    /**
+     * Stream of a region of the archive.
+     */
+    private final class RegionInputStream extends InputStream {
+
+        private long position;
+        private long remaining;
+
+        RegionInputStream(long position, long length) {
+            this.position = position;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = (int) Math.min(len, remaining);
+            source.read(position, b, off, n);
+            position += n;
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, remaining);
+        }
+    }
+
+    /**
+     * Entry of an archive as described by its central directory.
+     */
+    public static final class Entry {
+
+        private final String name;
+        private final byte[] rawName;
+        private final int flags;
+        private final int method;
+        private final int dosTime;
+        private final long crc;
+        private final long compressedSize;
+        private final long size;
+        private final long localHeaderOffset;
+
+        Entry(String name, byte[] rawName, int flags, int method, int dosTime, long crc, long compressedSize,
+              long size, long localHeaderOffset) {
+            this.name = name;
+            this.rawName = rawName;
+            this.flags = flags;
+            this.method = method;
+            this.dosTime = dosTime;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return Name as encoded in the archive, in UTF-8 if {@link #getFlags()} includes {@link #FLAG_UTF8} and
+         *         otherwise in code page 437
+         */
+        byte[] getRawName() {
+            return rawName.clone();
+        }
+
+        public boolean isDirectory() {
+            return name.endsWith("/");
+        }
+
+        public int getFlags() {
+            return flags;
+        }
+
+        public int getMethod() {
+            return method;
+        }
+
+        /**
+         * @return Modification time in MS-DOS format, date in the upper half and time in the lower
+         */
+        public int getDosTime() {
+            return dosTime;
+        }
+
+        public long getCrc() {
+            return crc;
+        }
+
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
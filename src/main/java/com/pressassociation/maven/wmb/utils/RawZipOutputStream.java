@@ -0,0 +1,325 @@
+package com.pressassociation.maven.wmb.utils;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.CharMatcher;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Writes a zip archive whose entries are either copied as stored from another archive, compressed content, CRC and
+ * sizes included, or written afresh and compressed as they are written. Copying avoids decompressing and compressing
+ * again entries which are left unchanged.
+ * <p/>
+ * New entries are written as {@link java.util.zip.ZipOutputStream} writes them, followed by a data descriptor.
+ * Directory entries, whose names end with {@code /}, are stored empty. Extra fields are not written.
+ *
+ * @author Bob Browning <bob.browning@pressassociation.com>
+ * @see RawZipFile
+ */
+public class RawZipOutputStream extends OutputStream {
+
+    private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+
+    private static final int FLAG_DATA_DESCRIPTOR = 0x0008;
+
+    private static final int VERSION_STORED = 10;
+    private static final int VERSION_DEFLATED = 20;
+
+    private final CountingOutputStream out;
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final byte[] buffer = new byte[8192];
+    private final CRC32 crc = new CRC32();
+
+    private final List<CentralEntry> central = Lists.newArrayList();
+    private final Set<String> names = Sets.newHashSet();
+
+    private CentralEntry current;
+    private boolean finished;
+
+    /**
+     * @param out Stream to write the archive to
+     */
+    public RawZipOutputStream(OutputStream out) {
+        this.out = new CountingOutputStream(new BufferedOutputStream(checkNotNull(out)));
+    }
+
+    /**
+     * Copy an entry of another archive as it is stored.
+     *
+     * @param source Archive holding the entry
+     * @param entry  Entry to copy
+     * @throws IOException
+     */
+    public void copyEntry(RawZipFile source, RawZipFile.Entry entry) throws IOException {
+        InputStream is = source.getRawInputStream(entry);
+        try {
+            copyEntry(entry, is);
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Copy an entry of another archive from a stream of exactly its content as stored, which is left open. Allows the
+     * content to be read once and copied to several archives.
+     *
+     * @param entry Entry to copy
+     * @param raw   Stream of the entry content as stored
+     * @throws IOException
+     */
+    public void copyEntry(RawZipFile.Entry entry, InputStream raw) throws IOException {
+        closeEntry();
+        /* The name is copied as encoded along with the flag declaring its encoding */
+        CentralEntry copy = new CentralEntry(entry.getName(), entry.getRawName(),
+                entry.getFlags() & ~FLAG_DATA_DESCRIPTOR, entry.getMethod(), entry.getDosTime());
+        copy.crc = entry.getCrc();
+        copy.compressedSize = entry.getCompressedSize();
+        copy.size = entry.getSize();
+        writeLocalHeader(copy);
+
+        if (ByteStreams.copy(raw, out) != entry.getCompressedSize()) {
+            throw new ZipException("Truncated entry " + entry.getName());
+        }
+    }
+
+    /**
+     * Begin writing a new entry, closing the current entry.
+     *
+     * @param name Entry name, ending with {@code /} for directories
+     * @throws IOException
+     */
+    public void putNextEntry(String name) throws IOException {
+        putNextEntry(name, System.currentTimeMillis());
+    }
+
+    /**
+     * Begin writing a new entry with the given modification time, closing the current entry.
+     *
+     * @param name Entry name, ending with {@code /} for directories
+     * @param time Modification time of the entry in milliseconds since the epoch
+     * @throws IOException
+     */
+    public void putNextEntry(String name, long time) throws IOException {
+        closeEntry();
+        boolean directory = name.endsWith("/");
+        CentralEntry entry = new CentralEntry(name,
+                flagsFor(name) | (directory ? 0 : FLAG_DATA_DESCRIPTOR),
+                directory ? ZipEntry.STORED : ZipEntry.DEFLATED, toDosTime(time));
+        writeLocalHeader(entry);
+        if (!directory) {
+            current = entry;
+            crc.reset();
+            deflater.reset();
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        checkState(current != null, "No entry is open for writing");
+        if (len == 0) {
+            return;
+        }
+        crc.update(b, off, len);
+        current.size += len;
+        deflater.setInput(b, off, len);
+        while (!deflater.needsInput()) {
+            deflate();
+        }
+    }
+
+    /**
+     * Complete the current entry, if any.
+     *
+     * @throws IOException
+     */
+    public void closeEntry() throws IOException {
+        checkState(!finished, "Archive is finished");
+        if (current == null) {
+            return;
+        }
+        deflater.finish();
+        while (!deflater.finished()) {
+            deflate();
+        }
+        current.crc = crc.getValue();
+        current.compressedSize = out.getCount() - current.dataStart();
+
+        writeInt(DATA_DESCRIPTOR_SIGNATURE);
+        writeInt(current.crc);
+        writeInt(current.compressedSize);
+        writeInt(current.size);
+        current = null;
+    }
+
+    private void deflate() throws IOException {
+        int n = deflater.deflate(buffer, 0, buffer.length);
+        if (n > 0) {
+            out.write(buffer, 0, n);
+        }
+    }
+
+    /**
+     * Complete the archive, writing its central directory, without closing the underlying stream.
+     *
+     * @throws IOException
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        closeEntry();
+        finished = true;
+        deflater.end();
+
+        long offset = out.getCount();
+        for (CentralEntry entry : central) {
+            writeInt(RawZipFile.CENTRAL_HEADER_SIGNATURE);
+            writeShort(VERSION_DEFLATED);
+            writeShort(entry.method == ZipEntry.STORED ? VERSION_STORED : VERSION_DEFLATED);
+            writeShort(entry.flags);
+            writeShort(entry.method);
+            writeInt(entry.dosTime);
+            writeInt(entry.crc);
+            writeInt(entry.compressedSize);
+            writeInt(entry.size);
+            writeShort(entry.name.length);
+            writeShort(0);
+            writeShort(0);
+            writeShort(0);
+            writeShort(0);
+            writeInt(0);
+            writeInt(entry.localHeaderOffset);
+            out.write(entry.name);
+        }
+        long size = out.getCount() - offset;
+
+        if (central.size() >= 0xffff || offset >= 0xffffffffL || size >= 0xffffffffL) {
+            throw new ZipException("Archive too large, Zip64 archives are not supported");
+        }
+        writeInt(RawZipFile.END_SIGNATURE);
+        writeShort(0);
+        writeShort(0);
+        writeShort(central.size());
+        writeShort(central.size());
+        writeInt(size);
+        writeInt(offset);
+        writeShort(0);
+        out.flush();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeLocalHeader(CentralEntry entry) throws IOException {
+        checkState(!finished, "Archive is finished");
+        if (!names.add(entry.nameString)) {
+            throw new ZipException("duplicate entry: " + entry.nameString);
+        }
+        entry.localHeaderOffset = out.getCount();
+        boolean descriptor = (entry.flags & FLAG_DATA_DESCRIPTOR) != 0;
+
+        writeInt(RawZipFile.LOCAL_HEADER_SIGNATURE);
+        writeShort(entry.method == ZipEntry.STORED ? VERSION_STORED : VERSION_DEFLATED);
+        writeShort(entry.flags);
+        writeShort(entry.method);
+        writeInt(entry.dosTime);
+        writeInt(descriptor ? 0 : entry.crc);
+        writeInt(descriptor ? 0 : entry.compressedSize);
+        writeInt(descriptor ? 0 : entry.size);
+        writeShort(entry.name.length);
+        writeShort(0);
+        out.write(entry.name);
+        central.add(entry);
+    }
+
+    private void writeShort(int value) throws IOException {
+        out.write(value & 0xff);
+        out.write((value >>> 8) & 0xff);
+    }
+
+    private void writeInt(long value) throws IOException {
+        writeShort((int) (value & 0xffff));
+        writeShort((int) ((value >>> 16) & 0xffff));
+    }
+
+    private static int flagsFor(String name) {
+        return CharMatcher.ASCII.matchesAllOf(name) ? 0 : RawZipFile.FLAG_UTF8;
+    }
+
+    private static int toDosTime(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        int year = calendar.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (year - 1980) << 25 | (calendar.get(Calendar.MONTH) + 1) << 21
+                | calendar.get(Calendar.DAY_OF_MONTH) << 16 | calendar.get(Calendar.HOUR_OF_DAY) << 11
+                | calendar.get(Calendar.MINUTE) << 5 | calendar.get(Calendar.SECOND) >> 1;
+    }
+
+    /**
+     * Entry as recorded in the central directory.
+     */
+    private static final class CentralEntry {
+
+        final String nameString;
+        final byte[] name;
+        final int flags;
+        final int method;
+        final int dosTime;
+        long crc;
+        long compressedSize;
+        long size;
+        long localHeaderOffset;
+
+        CentralEntry(String name, int flags, int method, int dosTime) {
+            this(name, name.getBytes(Charsets.UTF_8), flags, method, dosTime);
+        }
+
+        CentralEntry(String nameString, byte[] name, int flags, int method, int dosTime) {
+            this.nameString = nameString;
+            this.name = name;
+            this.flags = flags;
+            this.method = method;
+            this.dosTime = dosTime;
+        }
+
+        long dataStart() {
+            return localHeaderOffset + RawZipFile.LOCAL_HEADER_LENGTH + name.length;
+        }
+    }
+}
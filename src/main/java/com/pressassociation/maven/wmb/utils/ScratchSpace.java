@@ -0,0 +1,147 @@
+package com.pressassociation.maven.wmb.utils;
+
+import com.google.common.io.ByteStreams;
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.IOUtil;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Holds transient content in memory up to a threshold, spilling larger content to files within a private scratch
+ * directory. The directory is created beneath a parent directory on first use and removed with everything in it
+ * when the scratch space is closed.
+ *
+ * @author Bob Browning <bob.browning@pressassociation.com>
+ */
+public class ScratchSpace implements Closeable {
+
+    private final File parent;
+    private final long memoryThreshold;
+
+    private File directory;
+
+    /**
+     * @param parent          Directory beneath which the scratch directory is created
+     * @param memoryThreshold Size in bytes up to which content is held in memory
+     */
+    public ScratchSpace(File parent, long memoryThreshold) {
+        this.parent = checkNotNull(parent);
+        this.memoryThreshold = memoryThreshold;
+    }
+
+    /**
+     * Store the remaining content of a stream, which is left open.
+     *
+     * @param name Name of the content, used to name the file if spilled
+     * @param is   Stream to read
+     * @return Stored content
+     * @throws IOException
+     */
+    public Content store(String name, InputStream is) throws IOException {
+        ByteArrayOutputStream memory = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = is.read(buffer)) != -1) {
+            memory.write(buffer, 0, n);
+            if (memory.size() > memoryThreshold) {
+                return spill(name, memory, is);
+            }
+        }
+        return new Content(memory.toByteArray(), null);
+    }
+
+    private Content spill(String name, ByteArrayOutputStream memory, InputStream is) throws IOException {
+        File file = File.createTempFile("spill", "-" + new File(name).getName(), getDirectory());
+        OutputStream os = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            memory.writeTo(os);
+            ByteStreams.copy(is, os);
+        } finally {
+            IOUtil.close(os);
+        }
+        return new Content(null, file);
+    }
+
+    private synchronized File getDirectory() throws IOException {
+        if (directory == null) {
+            if (!parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("Unable to create " + parent);
+            }
+            File created = File.createTempFile("wmb-scratch", "", parent);
+            if (!created.delete() || !created.mkdir()) {
+                throw new IOException("Unable to create scratch directory " + created);
+            }
+            directory = created;
+        }
+        return directory;
+    }
+
+    /**
+     * Remove the scratch directory and every file spilled to it.
+     *
+     * @throws IOException
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (directory != null) {
+            FileUtils.deleteDirectory(directory);
+            directory = null;
+        }
+    }
+
+    /**
+     * Content held either in memory or in a file of the scratch directory.
+     */
+    public static final class Content {
+
+        private final byte[] bytes;
+        private final File file;
+
+        private Content(byte[] bytes, File file) {
+            this.bytes = bytes;
+            this.file = file;
+        }
+
+        public boolean isInMemory() {
+            return bytes != null;
+        }
+
+        /**
+         * @return Content held in memory, null if spilled
+         */
+        public byte[] getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return File the content was spilled to, null if held in memory
+         */
+        public File getFile() {
+            return file;
+        }
+
+        public InputStream openStream() throws IOException {
+            return bytes != null ? new ByteArrayInputStream(bytes) : new FileInputStream(file);
+        }
+
+        /**
+         * Delete the spilled file, if any, ahead of the scratch space being closed.
+         */
+        public void release() {
+            if (file != null) {
+                file.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.pressassociation.maven.wmb.utils;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * One of a number of shards amongst which the broker archives of a module are divided, so that each may be built on
+ * a separate machine.
+ * <p/>
+ * Archives are assigned by weight, heaviest first, each to the shard with the least weight assigned so far. The
+ * assignment depends only upon the names and weights of the archives, so every machine arrives at the same division.
+ *
+ * @author Bob Browning <bob.browning@pressassociation.com>
+ */
+public class Shard {
+
+    /**
+     * Name of the manifest written to the output directory of each shard.
+     */
+    public static final String MANIFEST = "wmb-shard.properties";
+
+    public static final String SHARD_PROPERTY = "shard";
+    public static final String ARCHIVES_PROPERTY = "archives";
+    public static final String ARTIFACT_PROPERTY_PREFIX = "artifact.";
+    public static final String ARCHIVE_ARTIFACTS_PROPERTY_PREFIX = "archive.";
+
+    private static final Pattern SPECIFICATION = Pattern.compile("\\s*(\\d+)\\s*/\\s*(\\d+)\\s*");
+
+    private final int index;
+    private final int count;
+
+    public Shard(int index, int count) {
+        if (count < 1 || index < 1 || index > count) {
+            throw new IllegalArgumentException("Invalid shard " + index + "/" + count);
+        }
+        this.index = index;
+        this.count = count;
+    }
+
+    /**
+     * @param specification Shard of the form {@code i/N}, numbered from one
+     * @return Shard
+     * @throws IllegalArgumentException If the specification is malformed
+     */
+    public static Shard parse(String specification) {
+        Matcher matcher = SPECIFICATION.matcher(specification);
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Invalid shard " + specification + ", expected i/N");
+        }
+        return new Shard(Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)));
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @return Name of the output directory of this shard
+     */
+    public String getDirectoryName() {
+        return "shard-" + index + "-of-" + count;
+    }
+
+    /**
+     * Select the items assigned to this shard.
+     *
+     * @param weights Names of all items mapped to their weights
+     * @return Names of the items assigned to this shard
+     */
+    public Set<String> select(final Map<String, Long> weights) {
+        List<String> names = Lists.newArrayList(weights.keySet());
+        Collections.sort(names, new Comparator<String>() {
+            @Override public int compare(String a, String b) {
+                int byWeight = weights.get(b).compareTo(weights.get(a));
+                return byWeight != 0 ? byWeight : a.compareTo(b);
+            }
+        });
+
+        long[] loads = new long[count];
+        Set<String> selected = Sets.newLinkedHashSet();
+        for (String name : names) {
+            int lightest = 0;
+            for (int i = 1; i < count; i++) {
+                if (loads[i] < loads[lightest]) {
+                    lightest = i;
+                }
+            }
+            loads[lightest] += weights.get(name);
+            if (lightest == index - 1) {
+                selected.add(name);
+            }
+        }
+        return selected;
+    }
+
+    @Override
+    public String toString() {
+        return index + "/" + count;
+    }
+}
@@ -0,0 +1,182 @@
+package com.pressassociation.maven.wmb.utils;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.io.Closeables;
+import com.google.common.io.Files;
+import org.apache.maven.plugin.logging.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Limits the number of toolkit processes running at once, each of which starts a JVM with a heap of one or two
+ * gigabytes, so that parallel module builds do not exhaust the memory of the build machine.
+ * <p/>
+ * Slots are shared by every module of the reactor built within this JVM and may optionally be shared with other
+ * builds on the machine through lock files in a common directory.
+ *
+ * @author Bob Browning <bob.browning@pressassociation.com>
+ */
+public class ToolkitGovernor {
+
+    private static final File MEMINFO = new File("/proc/meminfo");
+    private static final long MACHINE_POLL_MILLIS = 500;
+
+    private static ToolkitGovernor instance;
+
+    /**
+     * Right to run a toolkit process, must be released once the process exits.
+     */
+    public final class Permit {
+        private final RandomAccessFile lockFile;
+        private final FileLock lock;
+        private boolean released;
+
+        private Permit(RandomAccessFile lockFile, FileLock lock) {
+            this.lockFile = lockFile;
+            this.lock = lock;
+        }
+
+        public synchronized void release() {
+            if (released) {
+                return;
+            }
+            released = true;
+            try {
+                if (lock != null) {
+                    lock.release();
+                }
+            } catch (IOException ignored) {
+            } finally {
+                Closeables.closeQuietly(lockFile);
+                semaphore.release();
+            }
+        }
+    }
+
+    private final int slots;
+    private final File machineDirectory;
+    private final Semaphore semaphore;
+
+    private ToolkitGovernor(int slots, File machineDirectory) {
+        this.slots = slots;
+        this.machineDirectory = machineDirectory;
+        this.semaphore = new Semaphore(slots, true);
+    }
+
+    /**
+     * Obtain the governor shared by every build within this JVM, the configuration of the first caller applies.
+     *
+     * @param slots            Number of concurrent toolkit processes
+     * @param machineDirectory Directory of lock files shared with other processes on the machine, or null to govern
+     *                         this JVM alone
+     * @return Shared governor
+     */
+    public static synchronized ToolkitGovernor getInstance(int slots, File machineDirectory) {
+        if (instance == null) {
+            instance = new ToolkitGovernor(Math.max(1, slots), machineDirectory);
+        }
+        return instance;
+    }
+
+    /**
+     * Determine the number of toolkit processes the available memory of the machine allows for.
+     *
+     * @param heapBytes Estimated memory used by each toolkit process
+     * @return Number of slots, at least one, or zero if the available memory cannot be determined
+     */
+    public static int slotsFromAvailableMemory(long heapBytes) {
+        if (!MEMINFO.isFile()) {
+            return 0;
+        }
+        try {
+            for (String line : Files.readLines(MEMINFO, Charsets.US_ASCII)) {
+                if (line.startsWith("MemAvailable:")) {
+                    List<String> parts = Lists.newArrayList(
+                            Splitter.on(' ').omitEmptyStrings().split(line.substring("MemAvailable:".length())));
+                    long available = Long.parseLong(parts.get(0)) * 1024;
+                    return (int) Math.max(1, available / Math.max(1, heapBytes));
+                }
+            }
+        } catch (IOException ignored) {
+        } catch (NumberFormatException ignored) {
+        }
+        return 0;
+    }
+
+    public int getSlots() {
+        return slots;
+    }
+
+    /**
+     * Wait for a free slot.
+     *
+     * @param log         Log to report waiting time to
+     * @param description Description of the toolkit run awaiting a slot
+     * @return Permit to be released once the toolkit process exits
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public Permit acquire(Log log, String description) throws InterruptedException, IOException {
+        long started = System.currentTimeMillis();
+        if (!semaphore.tryAcquire()) {
+            log.info("Waiting for one of " + slots + " toolkit slots to build " + description + ".");
+            semaphore.acquire();
+        }
+
+        Permit permit;
+        try {
+            permit = machineDirectory == null ? new Permit(null, null) : acquireMachineSlot(log, description);
+        } catch (InterruptedException e) {
+            semaphore.release();
+            throw e;
+        } catch (IOException e) {
+            semaphore.release();
+            throw e;
+        }
+
+        log.info(String.format("Acquired toolkit slot for %s after %.1fs.", description,
+                (System.currentTimeMillis() - started) / 1000.0));
+        return permit;
+    }
+
+    private Permit acquireMachineSlot(Log log, String description) throws InterruptedException, IOException {
+        if (!machineDirectory.isDirectory() && !machineDirectory.mkdirs() && !machineDirectory.isDirectory()) {
+            throw new IOException("Unable to create " + machineDirectory);
+        }
+
+        boolean reported = false;
+        while (true) {
+            for (int slot = 0; slot < slots; slot++) {
+                RandomAccessFile lockFile = new RandomAccessFile(new File(machineDirectory, "slot-" + slot + ".lock"), "rw");
+                FileLock lock = null;
+                try {
+                    lock = lockFile.getChannel().tryLock();
+                } catch (OverlappingFileLockException ignored) {
+                    /* Held by another thread of this JVM */
+                } finally {
+                    if (lock == null) {
+                        Closeables.closeQuietly(lockFile);
+                    }
+                }
+                if (lock != null) {
+                    return new Permit(lockFile, lock);
+                }
+            }
+
+            if (!reported) {
+                log.info("Waiting for one of " + slots + " machine wide toolkit slots in " + machineDirectory
+                        + " to build " + description + ".");
+                reported = true;
+            }
+            Thread.sleep(MACHINE_POLL_MILLIS);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.pressassociation.maven.wmb.utils;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.collect.Sets;
+import com.google.common.io.Closeables;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Pool of persistent toolkit workspaces, keyed by the set of projects they contain, which survive between builds so
+ * that the toolkit can reuse the Eclipse metadata (project indexes and builder state) of previous runs.
+ * <p/>
+ * A workspace is leased for the duration of a single toolkit run. Leases are guarded by a lock file within the
+ * workspace, so concurrent builds in this or any other process on the machine never share a workspace; when every
+ * workspace for a project set is leased a new one is created alongside.
+ *
+ * @author Bob Browning <bob.browning@pressassociation.com>
+ */
+public class WorkspacePool {
+
+    private static final String LOCK_FILE = ".wmb-lock";
+    private static final String WARM_FILE = ".wmb-warm";
+    private static final String PROJECTS_FILE = ".wmb-projects";
+
+    /**
+     * Workspaces leased within this JVM, file locks are held per process and cannot guard against other threads.
+     */
+    private static final Set<String> LEASED = Collections.synchronizedSet(Sets.<String>newHashSet());
+
+    /**
+     * Exclusive use of a pooled workspace.
+     */
+    public static final class Lease {
+        private final File workspace;
+        private final String path;
+        private final RandomAccessFile lockFile;
+        private final FileLock lock;
+
+        private Lease(File workspace, String path, RandomAccessFile lockFile, FileLock lock) {
+            this.workspace = workspace;
+            this.path = path;
+            this.lockFile = lockFile;
+            this.lock = lock;
+        }
+
+        public File getWorkspace() {
+            return workspace;
+        }
+
+        /**
+         * @param fingerprint Fingerprint of the toolkit about to be run
+         * @return true if the workspace was last built successfully by the same toolkit
+         * @throws IOException
+         */
+        public boolean isWarm(String fingerprint) throws IOException {
+            File warm = new File(workspace, WARM_FILE);
+            return warm.isFile() && fingerprint.equals(Files.toString(warm, Charsets.UTF_8));
+        }
+
+        /**
+         * Return the workspace to the pool.
+         *
+         * @param fingerprint Fingerprint of the toolkit if the run succeeded, otherwise null to mark the workspace as
+         *                    requiring a clean build
+         */
+        public void release(String fingerprint) {
+            try {
+                File warm = new File(workspace, WARM_FILE);
+                if (fingerprint != null) {
+                    Files.write(fingerprint, warm, Charsets.UTF_8);
+                } else {
+                    warm.delete();
+                }
+            } catch (IOException e) {
+                new File(workspace, WARM_FILE).delete();
+            } finally {
+                try {
+                    lock.release();
+                } catch (IOException ignored) {
+                } finally {
+                    Closeables.closeQuietly(lockFile);
+                    LEASED.remove(path);
+                }
+            }
+        }
+    }
+
+    private final File directory;
+
+    /**
+     * @param directory Directory holding the pooled workspaces
+     */
+    public WorkspacePool(File directory) {
+        this.directory = checkNotNull(directory);
+    }
+
+    /**
+     * Lease a workspace for the given project set, creating one if none is free.
+     *
+     * @param projects Names of the projects the workspace will contain
+     * @return Lease which must be released once the toolkit run completes
+     * @throws IOException
+     */
+    public Lease lease(Collection<String> projects) throws IOException {
+        Set<String> sorted = Sets.newTreeSet(projects);
+        Fingerprint fingerprint = new Fingerprint();
+        for (String project : sorted) {
+            fingerprint.putString(project);
+        }
+        String key = fingerprint.hash().substring(0, 16);
+
+        for (int slot = 0; ; slot++) {
+            File workspace = new File(directory, key + "-" + slot);
+            if (!workspace.isDirectory() && !workspace.mkdirs() && !workspace.isDirectory()) {
+                throw new IOException("Unable to create workspace " + workspace);
+            }
+
+            String path = workspace.getCanonicalPath();
+            if (!LEASED.add(path)) {
+                continue;
+            }
+
+            RandomAccessFile lockFile = null;
+            FileLock lock = null;
+            try {
+                lockFile = new RandomAccessFile(new File(workspace, LOCK_FILE), "rw");
+                lock = lockFile.getChannel().tryLock();
+            } catch (OverlappingFileLockException ignored) {
+                /* Held elsewhere within this JVM */
+            } finally {
+                if (lock == null) {
+                    Closeables.closeQuietly(lockFile);
+                    LEASED.remove(path);
+                }
+            }
+
+            if (lock != null) {
+                Files.write(Joiner.on('\n').join(sorted), new File(workspace, PROJECTS_FILE), Charsets.UTF_8);
+                return new Lease(workspace, path, lockFile, lock);
+            }
+        }
+    }
+}
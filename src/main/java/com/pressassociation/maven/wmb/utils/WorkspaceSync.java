@@ -0,0 +1,311 @@
+package com.pressassociation.maven.wmb.utils;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.Closeables;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.codehaus.plexus.util.FileUtils;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Incrementally mirrors a set of projects from a source directory into a target directory.
+ * <p/>
+ * A manifest of the size, modification time and content hash of every file synchronised is kept in the target
+ * directory. Files whose size and modification time are unchanged are skipped without being read, files whose content
+ * is unchanged are not copied, and files which no longer exist in the source are removed from the target along with
+ * any previously synchronised projects no longer required or no longer in the source. Projects are synchronised in
+ * parallel.
+ *
+ * @author Bob Browning <bob.browning@pressassociation.com>
+ */
+public class WorkspaceSync {
+
+    /**
+     * Name of the manifest file kept in the target directory.
+     */
+    public static final String MANIFEST = ".wmb-sync";
+
+    private static final class Entry {
+        private final long size;
+        private final long lastModified;
+        private final String hash;
+
+        private Entry(long size, long lastModified, String hash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+    }
+
+    private final int threads;
+
+    private final AtomicInteger copied = new AtomicInteger();
+    private final AtomicInteger deleted = new AtomicInteger();
+    private final AtomicInteger unchanged = new AtomicInteger();
+
+    /**
+     * @param threads Number of projects to synchronise concurrently
+     */
+    public WorkspaceSync(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Synchronise projects from the source directory into the target directory.
+     *
+     * @param sourceRoot Directory containing the source projects
+     * @param projects   Names of the projects to synchronise, those missing from the source are removed from the
+     *                   target
+     * @param targetRoot Directory to synchronise into
+     * @throws IOException
+     */
+    public void sync(final File sourceRoot, Collection<String> projects, final File targetRoot) throws IOException {
+        if (!targetRoot.isDirectory() && !targetRoot.mkdirs()) {
+            throw new IOException("Unable to create " + targetRoot);
+        }
+
+        final File manifestFile = new File(targetRoot, MANIFEST);
+        final boolean trusted = manifestFile.isFile();
+        final Map<String, Entry> manifest = trusted ? readManifest(manifestFile) : Maps.<String, Entry>newHashMap();
+
+        /* Remove projects synchronised previously which are no longer required, leaving unrelated content alone */
+        Set<String> tracked = Sets.newHashSet();
+        for (String path : manifest.keySet()) {
+            tracked.add(path.substring(0, path.indexOf('/')));
+        }
+        for (String project : tracked) {
+            if (!projects.contains(project)) {
+                FileUtils.deleteDirectory(new File(targetRoot, project));
+                deleted.incrementAndGet();
+            }
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, projects.size())),
+                new ThreadFactoryBuilder().setNameFormat("wmb-sync-%d").setDaemon(true).build());
+        final Map<String, Entry> updated = Collections.synchronizedMap(Maps.<String, Entry>newHashMap());
+        try {
+            List<Future<Void>> futures = Lists.newArrayList();
+            for (final String project : projects) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override public Void call() throws Exception {
+                        syncProject(sourceRoot, project, targetRoot, manifest, trusted, updated);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted synchronising " + targetRoot);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause().getMessage(), e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        writeManifest(manifestFile, updated);
+    }
+
+    private void syncProject(File sourceRoot, String project, File targetRoot, Map<String, Entry> manifest,
+                             boolean trusted, Map<String, Entry> updated) throws IOException {
+        File source = new File(sourceRoot, project);
+        File target = new File(targetRoot, project);
+        if (!source.isDirectory()) {
+            /* The project has been removed from the source, a copy left in the target would still be built */
+            if (target.isDirectory()) {
+                FileUtils.deleteDirectory(target);
+                deleted.incrementAndGet();
+            }
+            return;
+        }
+
+        Set<String> seen = Sets.newHashSet();
+        walk(source, project + "/", targetRoot, manifest, updated, seen);
+
+        if (trusted) {
+            String prefix = project + "/";
+            for (String path : manifest.keySet()) {
+                if (path.startsWith(prefix) && !seen.contains(path)) {
+                    delete(new File(targetRoot, path), target);
+                }
+            }
+        } else if (target.isDirectory()) {
+            /* Without a manifest the target may hold anything, remove whatever the source does not contain */
+            for (String path : listFiles(target, project + "/")) {
+                if (!seen.contains(path)) {
+                    delete(new File(targetRoot, path), target);
+                }
+            }
+        }
+    }
+
+    private void walk(File directory, String prefix, File targetRoot, Map<String, Entry> manifest,
+                      Map<String, Entry> updated, Set<String> seen) throws IOException {
+        File[] children = directory.listFiles();
+        if (children == null) {
+            throw new IOException("Unable to list " + directory);
+        }
+        for (File child : children) {
+            String path = prefix + child.getName();
+            if (child.isDirectory()) {
+                walk(child, path + "/", targetRoot, manifest, updated, seen);
+                continue;
+            }
+
+            seen.add(path);
+            File target = new File(targetRoot, path);
+            long size = child.length();
+            long lastModified = child.lastModified();
+            Entry entry = manifest.get(path);
+
+            if (entry != null && entry.size == size && entry.lastModified == lastModified
+                    && target.isFile() && target.length() == size) {
+                updated.put(path, entry);
+                unchanged.incrementAndGet();
+                continue;
+            }
+
+            String hash = new Fingerprint().putFile(child).hash();
+            if (entry != null && entry.hash.equals(hash) && target.isFile() && target.length() == size) {
+                unchanged.incrementAndGet();
+            } else {
+                copy(child, target);
+                copied.incrementAndGet();
+            }
+            target.setLastModified(lastModified);
+            updated.put(path, new Entry(size, lastModified, hash));
+        }
+    }
+
+    private static List<String> listFiles(File directory, String prefix) {
+        List<String> paths = Lists.newArrayList();
+        File[] children = directory.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                if (child.isDirectory()) {
+                    paths.addAll(listFiles(child, prefix + child.getName() + "/"));
+                } else {
+                    paths.add(prefix + child.getName());
+                }
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * Delete a stale file and any directories left empty by its removal, up to the project directory.
+     */
+    private void delete(File file, File projectDirectory) {
+        if (file.delete() || !file.exists()) {
+            deleted.incrementAndGet();
+        }
+        File parent = file.getParentFile();
+        while (parent != null && !parent.equals(projectDirectory) && parent.delete()) {
+            parent = parent.getParentFile();
+        }
+    }
+
+    private static void copy(File source, File target) throws IOException {
+        File parent = target.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+            throw new IOException("Unable to create " + parent);
+        }
+
+        FileInputStream is = new FileInputStream(source);
+        try {
+            FileOutputStream os = new FileOutputStream(target);
+            try {
+                FileChannel in = is.getChannel();
+                FileChannel out = os.getChannel();
+                long size = in.size();
+                long position = 0;
+                while (position < size) {
+                    position += in.transferTo(position, size - position, out);
+                }
+            } finally {
+                Closeables.closeQuietly(os);
+            }
+        } finally {
+            Closeables.closeQuietly(is);
+        }
+    }
+
+    private static Map<String, Entry> readManifest(File file) throws IOException {
+        Map<String, Entry> manifest = Maps.newHashMap();
+        for (String line : Files.readLines(file, Charsets.UTF_8)) {
+            List<String> parts = Lists.newArrayList(Splitter.on('\t').split(line));
+            if (parts.size() == 4) {
+                try {
+                    manifest.put(parts.get(0),
+                            new Entry(Long.parseLong(parts.get(1)), Long.parseLong(parts.get(2)), parts.get(3)));
+                } catch (NumberFormatException ignored) {
+                    /* Entry will be re-hashed */
+                }
+            }
+        }
+        return manifest;
+    }
+
+    private static void writeManifest(File file, Map<String, Entry> manifest) throws IOException {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile), Charsets.UTF_8));
+        try {
+            synchronized (manifest) {
+                for (Map.Entry<String, Entry> entry : manifest.entrySet()) {
+                    writer.write(entry.getKey() + '\t' + entry.getValue().size + '\t'
+                            + entry.getValue().lastModified + '\t' + entry.getValue().hash + '\n');
+                }
+            }
+        } finally {
+            writer.close();
+        }
+        if (!tmpFile.renameTo(file)) {
+            file.delete();
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException("Unable to write " + file);
+            }
+        }
+    }
+
+    /**
+     * @return Number of files and projects removed by this instance
+     */
+    public int getDeleted() {
+        return deleted.get();
+    }
+
+    /**
+     * @return Summary of the work performed by this instance
+     */
+    public String getStatistics() {
+        return String.format("%d copied, %d deleted, %d unchanged", copied.get(), deleted.get(), unchanged.get());
+    }
+}
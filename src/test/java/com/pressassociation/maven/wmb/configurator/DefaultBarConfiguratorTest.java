@@ -0,0 +1,159 @@
+package com.pressassociation.maven.wmb.configurator;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+import nu.xom.Attribute;
+import nu.xom.Builder;
+import nu.xom.Document;
+import nu.xom.Element;
+import nu.xom.Nodes;
+import nu.xom.ParsingException;
+import nu.xom.Serializer;
+import nu.xom.canonical.Canonicalizer;
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.artifact.DefaultArtifact;
+import org.apache.maven.artifact.handler.DefaultArtifactHandler;
+import org.apache.maven.artifact.versioning.VersionRange;
+import org.codehaus.plexus.logging.Logger;
+import org.codehaus.plexus.logging.console.ConsoleLogger;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Bob Browning <bob.browning@pressassociation.com>
+ */
+public class DefaultBarConfiguratorTest {
+
+    private static final String BROKER_XML_ENTRY = "META-INF/broker.xml";
+
+    private static final String DESCRIPTOR = "<Broker>\n"
+            + "  <!-- Compiled flows -->\n"
+            + "  <CompiledMessageFlow name=\"orders.Receive\">\n"
+            + "    <ConfigurableProperty uri=\"orders.Receive#additionalInstances\"/>\n"
+            + "    <ConfigurableProperty override=\"ORDERS.IN\" uri=\"orders.Receive#MQ Input.queueName\"/>\n"
+            + "    <ConfigurableProperty override=\"true\" uri=\"orders.Receive#startMode\"/>\n"
+            + "  </CompiledMessageFlow>\n"
+            + "</Broker>\n";
+
+    private static final Map<String, String> OVERRIDES = ImmutableMap.of(
+            "orders.Receive#additionalInstances", "4",
+            "orders.Receive#MQ Input.queueName", "ORDERS.TEST.IN");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private DefaultBarConfigurator configurator;
+
+    @Before
+    public void createConfigurator() {
+        configurator = new DefaultBarConfigurator();
+        configurator.enableLogging(new ConsoleLogger(Logger.LEVEL_ERROR, "test"));
+        configurator.setScratchSpace(folder.getRoot(), 1024);
+    }
+
+    private Artifact createArchive(String descriptor) throws IOException {
+        File file = folder.newFile("source.bar");
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(file));
+        try {
+            zos.putNextEntry(new ZipEntry(BROKER_XML_ENTRY));
+            zos.write(descriptor.getBytes(Charsets.UTF_8));
+            zos.putNextEntry(new ZipEntry("orders/Receive.cmf"));
+            zos.write("compiled".getBytes(Charsets.UTF_8));
+            zos.closeEntry();
+        } finally {
+            zos.close();
+        }
+
+        Artifact artifact = new DefaultArtifact("com.example", "orders", VersionRange.createFromVersion("1.0"),
+                Artifact.SCOPE_COMPILE, "bar", null, new DefaultArtifactHandler("bar"));
+        artifact.setFile(file);
+        return artifact;
+    }
+
+    private byte[] configure(String descriptor) throws IOException, ParsingException {
+        Properties properties = new Properties();
+        properties.putAll(OVERRIDES);
+        File target = new File(folder.getRoot(), "target.bar");
+        configurator.configure(createArchive(descriptor), target, properties);
+
+        ZipFile zip = new ZipFile(target);
+        try {
+            assertArrayEquals("compiled".getBytes(Charsets.UTF_8),
+                    ByteStreams.toByteArray(zip.getInputStream(zip.getEntry("orders/Receive.cmf"))));
+            return ByteStreams.toByteArray(zip.getInputStream(zip.getEntry(BROKER_XML_ENTRY)));
+        } finally {
+            zip.close();
+        }
+    }
+
+    /**
+     * Apply the overrides as the configurator did before descriptors were streamed, by building a XOM document.
+     */
+    private static byte[] configureWithXom(String descriptor) throws IOException, ParsingException {
+        Document document = new Builder().build(new ByteArrayInputStream(descriptor.getBytes(Charsets.UTF_8)));
+        Nodes nodes = document.query("//ConfigurableProperty");
+        for (int i = 0; i < nodes.size(); i++) {
+            Element e = (Element) nodes.get(i);
+            String uri = e.getAttributeValue("uri");
+            if (OVERRIDES.containsKey(uri)) {
+                Attribute override = e.getAttribute("override");
+                if (override != null) {
+                    override.setValue(OVERRIDES.get(uri));
+                } else {
+                    e.addAttribute(new Attribute("override", OVERRIDES.get(uri)));
+                }
+            }
+        }
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        new Serializer(os).write(document);
+        return os.toByteArray();
+    }
+
+    private static String canonicalize(byte[] content) throws IOException, ParsingException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        new Canonicalizer(os).write(new Builder().build(new ByteArrayInputStream(content)));
+        return new String(os.toByteArray(), Charsets.UTF_8);
+    }
+
+    @Test
+    public void overridesMatchDescriptorWrittenByXom() throws IOException, ParsingException {
+        String descriptor = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" + DESCRIPTOR;
+
+        assertEquals(canonicalize(configureWithXom(descriptor)), canonicalize(configure(descriptor)));
+    }
+
+    @Test
+    public void keepsStandaloneDeclaration() throws IOException, ParsingException {
+        String descriptor = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n" + DESCRIPTOR;
+        byte[] configured = configure(descriptor);
+
+        assertTrue(new String(configured, Charsets.UTF_8).contains("standalone=\"yes\""));
+        assertEquals(canonicalize(configureWithXom(descriptor)), canonicalize(configured));
+    }
+
+    @Test
+    public void addsNoStandaloneDeclaration() throws IOException, ParsingException {
+        String descriptor = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" + DESCRIPTOR;
+
+        assertFalse(new String(configure(descriptor), Charsets.UTF_8).contains("standalone"));
+    }
+}
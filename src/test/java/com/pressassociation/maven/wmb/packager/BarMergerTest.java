@@ -0,0 +1,131 @@
+package com.pressassociation.maven.wmb.packager;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import nu.xom.Builder;
+import nu.xom.Document;
+import nu.xom.Element;
+import nu.xom.Elements;
+import nu.xom.ParsingException;
+import org.codehaus.plexus.util.IOUtil;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Bob Browning <bob.browning@pressassociation.com>
+ */
+public class BarMergerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File archive(String name, String... entries) throws IOException {
+        File file = folder.newFile(name);
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(file));
+        try {
+            for (int i = 0; i < entries.length; i += 2) {
+                zos.putNextEntry(new ZipEntry(entries[i]));
+                zos.write(entries[i + 1].getBytes(Charsets.UTF_8));
+                zos.closeEntry();
+            }
+        } finally {
+            IOUtil.close(zos);
+        }
+        return file;
+    }
+
+    private static String descriptor(String declarations) {
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<Broker>" + declarations + "</Broker>\n";
+    }
+
+    private static Map<String, String> read(File file) throws IOException {
+        Map<String, String> entries = Maps.newLinkedHashMap();
+        ZipInputStream zis = new ZipInputStream(new FileInputStream(file));
+        try {
+            for (ZipEntry entry = zis.getNextEntry(); entry != null; entry = zis.getNextEntry()) {
+                entries.put(entry.getName(), new String(ByteStreams.toByteArray(zis), Charsets.UTF_8));
+            }
+        } finally {
+            IOUtil.close(zis);
+        }
+        return entries;
+    }
+
+    private static List<String> declarations(String descriptor) throws IOException, ParsingException {
+        Document document = new Builder().build(new ByteArrayInputStream(descriptor.getBytes(Charsets.UTF_8)));
+        List<String> declarations = Lists.newArrayList();
+        Elements elements = document.getRootElement().getChildElements();
+        for (int i = 0; i < elements.size(); i++) {
+            Element element = elements.get(i);
+            String name = element.getAttributeValue("name");
+            declarations.add(element.getQualifiedName() + (name != null ? ":" + name : "=" + element.getValue()));
+        }
+        return declarations;
+    }
+
+    @Test
+    public void firstPartWinsConflictingEntries() throws IOException, ParsingException {
+        File first = archive("first.bar", "orders.cmf", "first orders", "common.jar", "first common");
+        File second = archive("second.bar", "payments.cmf", "second payments", "common.jar", "second common");
+        File target = new File(folder.getRoot(), "merged.bar");
+
+        new BarMerger().merge(ImmutableList.of(first, second), target);
+
+        Map<String, String> entries = read(target);
+        assertEquals(ImmutableList.of("orders.cmf", "common.jar", "payments.cmf"),
+                ImmutableList.copyOf(entries.keySet()));
+        assertEquals("first common", entries.get("common.jar"));
+        assertEquals("second payments", entries.get("payments.cmf"));
+    }
+
+    @Test
+    public void combinesDescriptorsOncePerDeclaration() throws IOException, ParsingException {
+        File first = archive("first.bar", BarPackager.BROKER_XML_ENTRY, descriptor(
+                "<CompiledMessageFlow name=\"orders\"><ConfigurableProperty uri=\"a\" override=\"1\"/>"
+                        + "</CompiledMessageFlow><Property>shared</Property>"));
+        File second = archive("second.bar", BarPackager.BROKER_XML_ENTRY, descriptor(
+                "<CompiledMessageFlow name=\"orders\"><ConfigurableProperty uri=\"a\" override=\"2\"/>"
+                        + "</CompiledMessageFlow><CompiledMessageFlow name=\"payments\"/>"
+                        + "<Property>shared</Property><Property>other</Property>"));
+        File target = new File(folder.getRoot(), "merged.bar");
+
+        new BarMerger().merge(ImmutableList.of(first, second), target);
+
+        String merged = read(target).get(BarPackager.BROKER_XML_ENTRY);
+        assertEquals(ImmutableList.of("CompiledMessageFlow:orders", "Property=shared",
+                "CompiledMessageFlow:payments", "Property=other"), declarations(merged));
+
+        /* The declaration of the first part takes precedence over that of later ones */
+        Document document = new Builder().build(new ByteArrayInputStream(merged.getBytes(Charsets.UTF_8)));
+        assertEquals("1", document.query("//ConfigurableProperty").get(0).query("@override").get(0).getValue());
+    }
+
+    @Test
+    public void descriptorIsWrittenLast() throws IOException, ParsingException {
+        File first = archive("first.bar", BarPackager.BROKER_XML_ENTRY, descriptor(""), "orders.cmf", "orders");
+        File second = archive("second.bar", "payments.cmf", "payments");
+        File target = new File(folder.getRoot(), "merged.bar");
+
+        new BarMerger().merge(ImmutableList.of(first, second), target);
+
+        assertEquals(ImmutableList.of("orders.cmf", "payments.cmf", BarPackager.BROKER_XML_ENTRY),
+                ImmutableList.copyOf(read(target).keySet()));
+    }
+}
@@ -0,0 +1,135 @@
+package com.pressassociation.maven.wmb.packager;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import nu.xom.ParsingException;
+import org.codehaus.plexus.util.IOUtil;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Bob Browning <bob.browning@pressassociation.com>
+ */
+public class BarNormalizerTest {
+
+    private static final String APPZIP_ENTRY = "Orders" + BarPackager.EXT_APPLICATION;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Write the entries of an archive, each pair of elements being the name and content of an entry.
+     */
+    private static void write(OutputStream os, long time, List<Object> entries) throws IOException {
+        ZipOutputStream zos = new ZipOutputStream(os);
+        for (int i = 0; i < entries.size(); i += 2) {
+            ZipEntry entry = new ZipEntry((String) entries.get(i));
+            entry.setTime(time);
+            entry.setComment("built at " + time);
+            zos.putNextEntry(entry);
+            Object content = entries.get(i + 1);
+            zos.write(content instanceof byte[] ? (byte[]) content : ((String) content).getBytes(Charsets.UTF_8));
+            zos.closeEntry();
+        }
+        zos.finish();
+    }
+
+    private static byte[] application(long time, boolean reversed, String descriptor) throws IOException {
+        List<Object> entries = Lists.<Object>newArrayList(
+                "Receive.cmf", "<flow/>", BarPackager.BROKER_XML_ENTRY, descriptor, "Orders.esql", "-- orders");
+        if (reversed) {
+            entries = Lists.<Object>newArrayList(
+                    "Orders.esql", "-- orders", BarPackager.BROKER_XML_ENTRY, descriptor, "Receive.cmf", "<flow/>");
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        write(bytes, time, entries);
+        return bytes.toByteArray();
+    }
+
+    private File archive(String name, long time, boolean reversed, String descriptor, String nestedDescriptor)
+            throws IOException {
+        List<Object> entries = Lists.<Object>newArrayList(
+                "lib/", "", "lib/common.jar", "jar", APPZIP_ENTRY, application(time, reversed, nestedDescriptor),
+                BarPackager.BROKER_XML_ENTRY, descriptor);
+        if (reversed) {
+            entries = Lists.<Object>newArrayList(BarPackager.BROKER_XML_ENTRY, descriptor,
+                    APPZIP_ENTRY, application(time, reversed, nestedDescriptor), "lib/common.jar", "jar", "lib/", "");
+        }
+        File file = new File(folder.getRoot(), name);
+        OutputStream os = new FileOutputStream(file);
+        try {
+            write(os, time, entries);
+        } finally {
+            IOUtil.close(os);
+        }
+        return file;
+    }
+
+    private static List<String> names(byte[] archive) throws IOException {
+        List<String> names = Lists.newArrayList();
+        ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(archive));
+        for (ZipEntry entry = zis.getNextEntry(); entry != null; entry = zis.getNextEntry()) {
+            names.add(entry.getName());
+        }
+        return names;
+    }
+
+    private static byte[] read(File file, String name) throws IOException {
+        ZipInputStream zis = new ZipInputStream(Files.newInputStreamSupplier(file).getInput());
+        try {
+            for (ZipEntry entry = zis.getNextEntry(); entry != null; entry = zis.getNextEntry()) {
+                if (entry.getName().equals(name)) {
+                    return ByteStreams.toByteArray(zis);
+                }
+            }
+        } finally {
+            IOUtil.close(zis);
+        }
+        throw new AssertionError(name + " not found");
+    }
+
+    @Test
+    public void identicalInputsGiveIdenticalBytes() throws IOException, ParsingException {
+        File first = archive("first.bar", 1300000000000L, false,
+                "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                        + "<Broker><CompiledMessageFlow name=\"Receive\" version=\"1\"/></Broker>\n",
+                "<Broker><CompiledMessageFlow name=\"Receive\"/></Broker>");
+        File second = archive("second.bar", 1400000000000L, true,
+                "<?xml version='1.0' encoding='UTF-8'?>\r\n"
+                        + "<Broker><CompiledMessageFlow version='1' name='Receive'></CompiledMessageFlow></Broker>",
+                "<?xml version=\"1.0\"?><Broker><CompiledMessageFlow  name = \"Receive\" /></Broker>");
+
+        new BarNormalizer().normalize(first);
+        new BarNormalizer().normalize(second);
+
+        assertArrayEquals(Files.toByteArray(first), Files.toByteArray(second));
+        assertEquals(ImmutableList.of(BarPackager.BROKER_XML_ENTRY, APPZIP_ENTRY, "lib/", "lib/common.jar"),
+                names(Files.toByteArray(first)));
+        assertEquals(ImmutableList.of(BarPackager.BROKER_XML_ENTRY, "Orders.esql", "Receive.cmf"),
+                names(read(first, APPZIP_ENTRY)));
+
+        /* Neither the replaced archive nor any spilled container is left behind */
+        String[] files = folder.getRoot().list();
+        Arrays.sort(files);
+        assertArrayEquals(new String[]{"first.bar", "second.bar"}, files);
+    }
+}
@@ -0,0 +1,146 @@
+package com.pressassociation.maven.wmb.utils;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Files;
+import com.pressassociation.maven.wmb.types.BrokerArchive;
+import org.apache.maven.shared.model.fileset.FileSet;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Bob Browning <bob.browning@pressassociation.com>
+ */
+public class ArchiveValidatorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ArchiveValidator validator;
+
+    @Before
+    public void createValidator() throws IOException {
+        write("Flows/.project", "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<projectDescription><name>Flows</name><projects/></projectDescription>\n");
+        validator = new ArchiveValidator(new ProjectGraph(folder.getRoot()));
+    }
+
+    private File write(String path, String content) throws IOException {
+        File file = new File(folder.getRoot(), path);
+        Files.createParentDirs(file);
+        Files.write(content, file, Charsets.UTF_8);
+        return file;
+    }
+
+    private static String flow(String namespaces, String nodes) {
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<ecore:EPackage xmi:version=\"2.0\" xmlns:xmi=\"http://www.omg.org/XMI\""
+                + " xmlns:ecore=\"http://www.eclipse.org/emf/2002/Ecore\""
+                + " xmlns:eflow=\"http://www.ibm.com/wbi/2005/eflow\"" + namespaces + ">\n"
+                + "  <eClassifiers xmi:type=\"eflow:FCMComposite\" name=\"FCMComposite_1\">\n"
+                + "    <composition>\n" + nodes + "    </composition>\n"
+                + "  </eClassifiers>\n"
+                + "</ecore:EPackage>\n";
+    }
+
+    @Test
+    public void findsSubflowsAndModulesReferencedThroughRelativeNamespaces() throws IOException {
+        File main = write("Flows/main/Main.msgflow", flow(
+                " xmlns:ComIbmCompute.msgnode=\"ComIbmCompute.msgnode\""
+                        + " xmlns:common_Sub.msgflow=\"common/Sub.msgflow\"",
+                "      <nodes xmi:type=\"ComIbmCompute.msgnode:FCMComposite_1\" xmi:id=\"FCMComposite_1_1\""
+                        + " computeExpression=\"esql://routine/main#Main_Compute.Main\"/>\n"
+                        + "      <nodes xmi:type=\"common_Sub.msgflow:FCMComposite_1\" xmi:id=\"FCMComposite_1_2\"/>\n"));
+        File subflow = write("Flows/common/Sub.msgflow", flow(
+                " xmlns:ComIbmCompute.msgnode=\"ComIbmCompute.msgnode\"",
+                "      <nodes xmi:type=\"ComIbmCompute.msgnode:FCMComposite_1\" xmi:id=\"FCMComposite_1_1\""
+                        + " computeExpression=\"esql://routine/common#Sub_Compute.Main\"/>\n"));
+        File mainModule = write("Flows/main/Main.esql",
+                "BROKER SCHEMA main\n\nCREATE COMPUTE MODULE Main_Compute\nEND MODULE;\n");
+        File subModule = write("Flows/common/Sub.esql",
+                "BROKER SCHEMA common\n\nCREATE COMPUTE MODULE Sub_Compute\nEND MODULE;\n");
+
+        assertEquals(ImmutableSet.of(subflow, mainModule, subModule), validator.getDependencies(main));
+    }
+
+    @Test
+    public void ignoresUnresolvedReferences() throws IOException {
+        File main = write("Flows/Main.msgflow", flow(
+                " xmlns:missing_Sub.msgflow=\"missing/Sub.msgflow\"",
+                "      <nodes xmi:type=\"missing_Sub.msgflow:FCMComposite_1\" xmi:id=\"FCMComposite_1_1\"/>\n"));
+
+        assertEquals(ImmutableSet.<File>of(), validator.getDependencies(main));
+    }
+
+    private static BrokerArchive archive(String... projects) {
+        BrokerArchive archive = new BrokerArchive();
+        archive.setClassifier("orders");
+        archive.setProjects(projects);
+        return archive;
+    }
+
+    /**
+     * Any problem fails the build, assert there is exactly one and that it names the resource at fault.
+     */
+    private static void assertProblem(List<String> problems, String resource) {
+        assertEquals(problems.toString(), 1, problems.size());
+        assertTrue(problems.get(0), problems.get(0).startsWith("orders: "));
+        assertTrue(problems.get(0), problems.get(0).contains(resource));
+    }
+
+    @Test
+    public void acceptsResolvedReferences() throws IOException {
+        File main = write("Flows/Main.msgflow", flow(
+                " xmlns:ComIbmCompute.msgnode=\"ComIbmCompute.msgnode\"",
+                "      <nodes xmi:type=\"ComIbmCompute.msgnode:FCMComposite_1\" xmi:id=\"FCMComposite_1_1\""
+                        + " computeExpression=\"esql://routine/#Main_Compute.Main\"/>\n"));
+        write("Flows/Main.esql", "CREATE COMPUTE MODULE Main_Compute\nEND MODULE;\n");
+
+        List<String> problems = validator.validate(archive("Flows"), new String[]{main.getPath()});
+        assertTrue(problems.toString(), problems.isEmpty());
+    }
+
+    @Test
+    public void reportsMissingProject() throws IOException {
+        assertProblem(validator.validate(archive("Flows", "Missing"), null), "project Missing");
+    }
+
+    @Test
+    public void reportsDeployableFilesMatchingNothing() throws IOException {
+        BrokerArchive archive = archive("Flows");
+        FileSet deployableFiles = new FileSet();
+        deployableFiles.setDirectory(folder.getRoot().getPath());
+        deployableFiles.addInclude("**/*.msgflow");
+        archive.setDeployableFiles(deployableFiles);
+
+        assertProblem(validator.validate(archive, new String[0]), "**/*.msgflow");
+    }
+
+    @Test
+    public void reportsUnresolvedSubflow() throws IOException {
+        File main = write("Flows/Main.msgflow", flow(
+                " xmlns:missing_Sub.msgflow=\"missing/Sub.msgflow\"",
+                "      <nodes xmi:type=\"missing_Sub.msgflow:FCMComposite_1\" xmi:id=\"FCMComposite_1_1\"/>\n"));
+
+        assertProblem(validator.validate(archive("Flows"), new String[]{main.getPath()}), "missing/Sub.msgflow");
+    }
+
+    @Test
+    public void reportsUnresolvedModule() throws IOException {
+        File main = write("Flows/main/Main.msgflow", flow(
+                " xmlns:ComIbmCompute.msgnode=\"ComIbmCompute.msgnode\"",
+                "      <nodes xmi:type=\"ComIbmCompute.msgnode:FCMComposite_1\" xmi:id=\"FCMComposite_1_1\""
+                        + " computeExpression=\"esql://routine/main#Missing_Compute.Main\"/>\n"));
+
+        assertProblem(validator.validate(archive("Flows"), new String[]{main.getPath()}), "main.Missing_Compute");
+    }
+}
@@ -0,0 +1,132 @@
+package com.pressassociation.maven.wmb.utils;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import org.apache.maven.shared.model.fileset.FileSet;
+import org.codehaus.plexus.util.SelectorUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Bob Browning <bob.browning@pressassociation.com>
+ */
+public class FileSetIndexTest {
+
+    private static final List<String> PATTERNS = ImmutableList.of("**", "**/*.msgflow", "flows/**", "flows/*.msgflow",
+            "a/**/b.esql", "*/b.esql", "?.txt", "a/**", "**/common/**", "a+b(1).txt");
+
+    private static final List<String> PATHS = ImmutableList.of("a.msgflow", "flows/a.msgflow", "flows/x/a.msgflow",
+            "flows", "a/b.esql", "a/x/y/b.esql", "ab.esql", "x/b.esql", "b.esql", "a.txt", "ab.txt", "a",
+            "common/a.esql", "x/common/y/a.esql", "x/commons/a.esql", "a+b(1).txt", "aab(1).txt");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static boolean matches(String pattern, String path) {
+        return Pattern.compile(FileSetIndex.toRegex(pattern)).matcher(path).matches();
+    }
+
+    @Test
+    public void translatesAntPatterns() {
+        assertTrue(matches("**/*.msgflow", "a.msgflow"));
+        assertTrue(matches("**/*.msgflow", "x/y/a.msgflow"));
+        assertFalse(matches("**/*.msgflow", "a.msgflowx"));
+
+        assertTrue(matches("flows/*.msgflow", "flows/a.msgflow"));
+        assertFalse(matches("flows/*.msgflow", "flows/x/a.msgflow"));
+
+        assertTrue(matches("a/**/b.esql", "a/b.esql"));
+        assertTrue(matches("a/**/b.esql", "a/x/y/b.esql"));
+        assertFalse(matches("a/**/b.esql", "ab.esql"));
+
+        assertTrue(matches("flows/**", "flows"));
+        assertTrue(matches("flows/**", "flows/x/a.msgflow"));
+        assertFalse(matches("flows/**", "flowsx/a.msgflow"));
+
+        assertTrue(matches("?.txt", "a.txt"));
+        assertFalse(matches("?.txt", "ab.txt"));
+        assertFalse(matches("?.txt", "/.txt"));
+
+        assertTrue(matches("a+b(1).txt", "a+b(1).txt"));
+        assertFalse(matches("a+b(1).txt", "aab(1).txt"));
+    }
+
+    @Test
+    public void agreesWithSelectorUtils() {
+        for (String pattern : PATTERNS) {
+            for (String path : PATHS) {
+                assertEquals(pattern + " against " + path, SelectorUtils.matchPath(pattern, path, true),
+                        matches(pattern, path));
+            }
+        }
+    }
+
+    private void write(String path) throws IOException {
+        File file = new File(folder.getRoot(), path);
+        Files.createParentDirs(file);
+        Files.write(path, file, Charsets.UTF_8);
+    }
+
+    private FileSet fileSet(List<String> includes, List<String> excludes) {
+        FileSet fileSet = new FileSet();
+        fileSet.setDirectory(folder.getRoot().getPath());
+        for (String include : includes) {
+            fileSet.addInclude(include);
+        }
+        for (String exclude : excludes) {
+            fileSet.addExclude(exclude);
+        }
+        return fileSet;
+    }
+
+    private static Set<String> included(FileSetIndex index, FileSet fileSet) {
+        Set<String> paths = Sets.newTreeSet();
+        for (String path : index.getIncludedFiles(fileSet)) {
+            paths.add(path.replace(File.separatorChar, '/'));
+        }
+        return paths;
+    }
+
+    @Test
+    public void resolvesEveryFileSetFromOneWalk() throws IOException {
+        write("Orders/Receive.msgflow");
+        write("Orders/common/Audit.subflow");
+        write("Orders/common/Audit.esql");
+        write("Orders/test/Stub.msgflow");
+        write("Orders/.svn/entries");
+
+        FileSet flows = fileSet(ImmutableList.of("**/*.msgflow"), ImmutableList.of("**/test/"));
+        FileSet common = fileSet(ImmutableList.of("Orders/common/"), Collections.<String>emptyList());
+        FileSetIndex index = new FileSetIndex(ImmutableList.of(flows, common));
+
+        assertEquals(Sets.newHashSet("Orders/Receive.msgflow"), included(index, flows));
+        assertEquals(Sets.newHashSet("Orders/common/Audit.subflow", "Orders/common/Audit.esql"),
+                included(index, common));
+    }
+
+    @Test
+    public void defaultExcludesApply() throws IOException {
+        write("Orders/Receive.msgflow");
+        write("Orders/.svn/entries");
+        write("Orders/Receive.msgflow~");
+
+        FileSet all = fileSet(Collections.<String>emptyList(), Collections.<String>emptyList());
+        all.setUseDefaultExcludes(true);
+        assertEquals(Sets.newHashSet("Orders/Receive.msgflow"),
+                included(new FileSetIndex(ImmutableList.of(all)), all));
+    }
+}
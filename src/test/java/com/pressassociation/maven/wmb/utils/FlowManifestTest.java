@@ -0,0 +1,128 @@
+package com.pressassociation.maven.wmb.utils;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Files;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * @author Bob Browning <bob.browning@pressassociation.com>
+ */
+public class FlowManifestTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File project;
+    private File first;
+    private File second;
+    private File subflow;
+    private File resource;
+
+    @Before
+    public void createProject() throws IOException {
+        project = new File(folder.getRoot(), "Project");
+        first = write("first.msgflow", "first");
+        second = write("second.msgflow", "second");
+        subflow = write("common/sub.msgflow", "sub");
+        resource = write("common/lookup.xml", "lookup");
+    }
+
+    private File write(String path, String content) throws IOException {
+        File file = new File(project, path);
+        Files.createParentDirs(file);
+        Files.write(content, file, Charsets.UTF_8);
+        return file;
+    }
+
+    private FlowManifest build() throws IOException {
+        return new FlowManifest.Builder(new Fingerprint().putString("toolkit"))
+                .putFlow("first.msgflow", first, Collections.singleton(subflow))
+                .putFlow("second.msgflow", second, Collections.<File>emptySet())
+                .putShared(project.getName())
+                .putSharedTree(project)
+                .build();
+    }
+
+    @Test
+    public void editingFlowChangesOnlyItsHash() throws IOException {
+        FlowManifest previous = build();
+        write("second.msgflow", "second, edited");
+
+        assertEquals(ImmutableSet.of("second.msgflow"), build().getChangedFlows(previous));
+    }
+
+    @Test
+    public void editingDependencyChangesOnlyFlowsUsingIt() throws IOException {
+        FlowManifest previous = build();
+        write("common/sub.msgflow", "sub, edited");
+
+        assertEquals(ImmutableSet.of("first.msgflow"), build().getChangedFlows(previous));
+    }
+
+    @Test
+    public void unchangedInputsChangeNothing() throws IOException {
+        assertEquals(Collections.<String>emptySet(), build().getChangedFlows(build()));
+    }
+
+    @Test
+    public void editingSharedResourceRequiresFullRebuild() throws IOException {
+        FlowManifest previous = build();
+        Files.write("lookup, edited", resource, Charsets.UTF_8);
+
+        assertNull(build().getChangedFlows(previous));
+    }
+
+    @Test
+    public void addingFileRequiresFullRebuild() throws IOException {
+        FlowManifest previous = build();
+        write("common/extra.xml", "extra");
+
+        assertNull(build().getChangedFlows(previous));
+    }
+
+    @Test
+    public void differentFlowsRequireFullRebuild() {
+        FlowManifest current = new FlowManifest("shared", ImmutableMap.of("a.msgflow", "1", "b.msgflow", "2"));
+        FlowManifest previous = new FlowManifest("shared", ImmutableMap.of("a.msgflow", "1"));
+
+        assertNull(current.getChangedFlows(previous));
+    }
+
+    @Test
+    public void changedFlowsAreListedInOrder() {
+        FlowManifest current = new FlowManifest("shared", ImmutableMap.of("c", "3", "a", "1", "b", "2"));
+        FlowManifest previous = new FlowManifest("shared", ImmutableMap.of("a", "0", "b", "2", "c", "0"));
+
+        Set<String> changed = current.getChangedFlows(previous);
+        assertEquals("[a, c]", changed.toString());
+    }
+
+    @Test
+    public void storedManifestLoadsUnchanged() throws IOException {
+        FlowManifest manifest = build();
+        File file = new File(folder.getRoot(), "archive.bar" + FlowManifest.EXTENSION);
+        manifest.store(file);
+
+        FlowManifest loaded = FlowManifest.load(file);
+        assertEquals(manifest.getFlows(), loaded.getFlows());
+        assertEquals(Collections.<String>emptySet(), loaded.getChangedFlows(manifest));
+    }
+
+    @Test
+    public void missingManifestLoadsAsNull() throws IOException {
+        assertNull(FlowManifest.load(new File(folder.getRoot(), "missing" + FlowManifest.EXTENSION)));
+    }
+}
@@ -0,0 +1,234 @@
+package com.pressassociation.maven.wmb.utils;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Bob Browning <bob.browning@pressassociation.com>
+ */
+public class RawZipFileTest {
+
+    private static final byte[] FLOW = "<flow>compiled flow, compiled flow</flow>".getBytes(Charsets.UTF_8);
+    private static final byte[] DESCRIPTOR = "<Broker/>".getBytes(Charsets.UTF_8);
+
+    /**
+     * Write an archive as the toolkit does, deflated entries followed by data descriptors along with a stored entry.
+     */
+    private static byte[] createArchive() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream zos = new ZipOutputStream(bytes);
+        zos.putNextEntry(new ZipEntry("META-INF/"));
+        zos.closeEntry();
+
+        ZipEntry stored = new ZipEntry("META-INF/broker.xml");
+        stored.setMethod(ZipEntry.STORED);
+        stored.setSize(DESCRIPTOR.length);
+        stored.setCrc(crc(DESCRIPTOR));
+        zos.putNextEntry(stored);
+        zos.write(DESCRIPTOR);
+        zos.closeEntry();
+
+        zos.putNextEntry(new ZipEntry("orders/Receive.cmf"));
+        zos.write(FLOW);
+        zos.closeEntry();
+        zos.close();
+        return bytes.toByteArray();
+    }
+
+    private static long crc(byte[] content) {
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        return crc.getValue();
+    }
+
+    private static byte[] read(RawZipFile file, String name) throws IOException {
+        for (RawZipFile.Entry entry : file.getEntries()) {
+            if (entry.getName().equals(name)) {
+                InputStream is = file.getInputStream(entry);
+                try {
+                    return ByteStreams.toByteArray(is);
+                } finally {
+                    is.close();
+                }
+            }
+        }
+        throw new AssertionError(name + " not found");
+    }
+
+    private static List<String> names(RawZipFile file) {
+        List<String> names = Lists.newArrayList();
+        for (RawZipFile.Entry entry : file.getEntries()) {
+            names.add(entry.getName());
+        }
+        return names;
+    }
+
+    private static byte[] copy(RawZipFile source) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        RawZipOutputStream zos = new RawZipOutputStream(bytes);
+        for (RawZipFile.Entry entry : source.getEntries()) {
+            zos.copyEntry(source, entry);
+        }
+        zos.close();
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void readsStoredAndDeflatedEntries() throws IOException {
+        RawZipFile file = RawZipFile.open(createArchive());
+
+        assertEquals(Lists.newArrayList("META-INF/", "META-INF/broker.xml", "orders/Receive.cmf"), names(file));
+        assertEquals(ZipEntry.STORED, file.getEntries().get(1).getMethod());
+        assertEquals(ZipEntry.DEFLATED, file.getEntries().get(2).getMethod());
+        assertArrayEquals(DESCRIPTOR, read(file, "META-INF/broker.xml"));
+        assertArrayEquals(FLOW, read(file, "orders/Receive.cmf"));
+    }
+
+    @Test
+    public void copiedEntriesKeepTheirCompressedContent() throws IOException {
+        RawZipFile source = RawZipFile.open(createArchive());
+        RawZipFile copy = RawZipFile.open(copy(source));
+
+        assertEquals(names(source), names(copy));
+        for (int i = 0; i < source.getEntries().size(); i++) {
+            RawZipFile.Entry expected = source.getEntries().get(i);
+            RawZipFile.Entry actual = copy.getEntries().get(i);
+            assertEquals(expected.getMethod(), actual.getMethod());
+            assertEquals(expected.getCrc(), actual.getCrc());
+            assertEquals(expected.getCompressedSize(), actual.getCompressedSize());
+            assertEquals(expected.getDosTime(), actual.getDosTime());
+        }
+        assertArrayEquals(FLOW, read(copy, "orders/Receive.cmf"));
+    }
+
+    @Test
+    public void copiedArchiveIsReadableByZipInputStream() throws IOException {
+        ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(copy(RawZipFile.open(createArchive()))));
+        List<String> names = Lists.newArrayList();
+        for (ZipEntry entry = zis.getNextEntry(); entry != null; entry = zis.getNextEntry()) {
+            names.add(entry.getName());
+            if (entry.getName().equals("orders/Receive.cmf")) {
+                assertArrayEquals(FLOW, ByteStreams.toByteArray(zis));
+            }
+        }
+        assertEquals(Lists.newArrayList("META-INF/", "META-INF/broker.xml", "orders/Receive.cmf"), names);
+    }
+
+    @Test
+    public void newEntriesRoundTrip() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        RawZipOutputStream zos = new RawZipOutputStream(bytes);
+        zos.putNextEntry("orders/");
+        zos.putNextEntry("orders/Empfänger.cmf");
+        zos.write(FLOW);
+        zos.putNextEntry("orders/empty.txt");
+        zos.close();
+
+        RawZipFile file = RawZipFile.open(bytes.toByteArray());
+        assertEquals(Lists.newArrayList("orders/", "orders/Empfänger.cmf", "orders/empty.txt"), names(file));
+        assertEquals(RawZipFile.FLAG_UTF8, file.getEntries().get(1).getFlags() & RawZipFile.FLAG_UTF8);
+        assertEquals(0, file.getEntries().get(2).getFlags() & RawZipFile.FLAG_UTF8);
+        assertArrayEquals(FLOW, read(file, "orders/Empfänger.cmf"));
+        assertArrayEquals(new byte[0], read(file, "orders/empty.txt"));
+    }
+
+    @Test
+    public void nestedArchivesAreReadFromTheirContent() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream zos = new ZipOutputStream(bytes);
+        zos.putNextEntry(new ZipEntry("orders.appzip"));
+        zos.write(createArchive());
+        zos.closeEntry();
+        zos.close();
+
+        RawZipFile outer = RawZipFile.open(copy(RawZipFile.open(bytes.toByteArray())));
+        RawZipFile nested = RawZipFile.open(read(outer, "orders.appzip"));
+        assertArrayEquals(FLOW, read(nested, "orders/Receive.cmf"));
+    }
+
+    @Test
+    public void namesWithoutUtf8FlagAreCodePage437() throws IOException {
+        /* 0x81 is u with diaeresis in code page 437 */
+        byte[] name = {'R', (byte) 0x81, '.', 'c', 'm', 'f'};
+        RawZipFile source = RawZipFile.open(storedArchive(name, FLOW));
+        assertEquals("Rü.cmf", source.getEntries().get(0).getName());
+
+        /* Copies keep the name as encoded rather than flagging it as UTF-8 */
+        RawZipFile copy = RawZipFile.open(copy(source));
+        RawZipFile.Entry entry = copy.getEntries().get(0);
+        assertEquals("Rü.cmf", entry.getName());
+        assertEquals(0, entry.getFlags() & RawZipFile.FLAG_UTF8);
+        assertArrayEquals(name, entry.getRawName());
+        assertArrayEquals(FLOW, read(copy, "Rü.cmf"));
+    }
+
+    /**
+     * Write an archive of a single stored entry without flags, whose name is given as encoded.
+     */
+    private static byte[] storedArchive(byte[] name, byte[] content) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        writeInt(bytes, RawZipFile.LOCAL_HEADER_SIGNATURE);
+        writeHeader(bytes, name, content);
+        bytes.write(name, 0, name.length);
+        bytes.write(content, 0, content.length);
+
+        int offset = bytes.size();
+        writeInt(bytes, RawZipFile.CENTRAL_HEADER_SIGNATURE);
+        writeShort(bytes, 10);
+        writeHeader(bytes, name, content);
+        writeShort(bytes, 0);
+        writeShort(bytes, 0);
+        writeShort(bytes, 0);
+        writeInt(bytes, 0);
+        writeInt(bytes, 0);
+        bytes.write(name, 0, name.length);
+        int size = bytes.size() - offset;
+
+        writeInt(bytes, RawZipFile.END_SIGNATURE);
+        writeShort(bytes, 0);
+        writeShort(bytes, 0);
+        writeShort(bytes, 1);
+        writeShort(bytes, 1);
+        writeInt(bytes, size);
+        writeInt(bytes, offset);
+        writeShort(bytes, 0);
+        return bytes.toByteArray();
+    }
+
+    private static void writeHeader(ByteArrayOutputStream bytes, byte[] name, byte[] content) {
+        writeShort(bytes, 10);
+        writeShort(bytes, 0);
+        writeShort(bytes, ZipEntry.STORED);
+        writeInt(bytes, 0);
+        writeInt(bytes, crc(content));
+        writeInt(bytes, content.length);
+        writeInt(bytes, content.length);
+        writeShort(bytes, name.length);
+        writeShort(bytes, 0);
+    }
+
+    private static void writeShort(ByteArrayOutputStream bytes, int value) {
+        bytes.write(value & 0xff);
+        bytes.write((value >>> 8) & 0xff);
+    }
+
+    private static void writeInt(ByteArrayOutputStream bytes, long value) {
+        writeShort(bytes, (int) (value & 0xffff));
+        writeShort(bytes, (int) ((value >>> 16) & 0xffff));
+    }
+}
@@ -0,0 +1,88 @@
+package com.pressassociation.maven.wmb.utils;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Bob Browning <bob.browning@pressassociation.com>
+ */
+public class ShardTest {
+
+    private static final Map<String, Long> WEIGHTS = ImmutableMap.<String, Long>builder()
+            .put("orders", 40L)
+            .put("payments", 30L)
+            .put("audit", 20L)
+            .put("customers", 20L)
+            .put("reporting", 10L)
+            .put("alerts", 5L)
+            .build();
+
+    @Test
+    public void parsesSpecification() {
+        Shard shard = Shard.parse(" 2 / 3 ");
+
+        assertEquals(2, shard.getIndex());
+        assertEquals(3, shard.getCount());
+        assertEquals("2/3", shard.toString());
+        assertEquals("shard-2-of-3", shard.getDirectoryName());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMalformedSpecification() {
+        Shard.parse("2 of 3");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsIndexBeyondCount() {
+        Shard.parse("4/3");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsIndexZero() {
+        Shard.parse("0/3");
+    }
+
+    @Test
+    public void assignsEveryItemToExactlyOneShard() {
+        Set<String> assigned = Sets.newHashSet();
+        for (int i = 1; i <= 3; i++) {
+            for (String name : new Shard(i, 3).select(WEIGHTS)) {
+                assertTrue(name + " assigned twice", assigned.add(name));
+            }
+        }
+        assertEquals(WEIGHTS.keySet(), assigned);
+    }
+
+    @Test
+    public void balancesByWeightHeaviestFirst() {
+        assertEquals(ImmutableSet.of("orders", "alerts"), new Shard(1, 3).select(WEIGHTS));
+        assertEquals(ImmutableSet.of("payments", "reporting"), new Shard(2, 3).select(WEIGHTS));
+        assertEquals(ImmutableSet.of("audit", "customers"), new Shard(3, 3).select(WEIGHTS));
+    }
+
+    @Test
+    public void assignmentDoesNotDependOnOrder() {
+        Map<String, Long> reversed = Maps.newLinkedHashMap();
+        for (String name : Sets.newTreeSet(WEIGHTS.keySet()).descendingSet()) {
+            reversed.put(name, WEIGHTS.get(name));
+        }
+
+        for (int i = 1; i <= 3; i++) {
+            assertEquals(new Shard(i, 3).select(WEIGHTS), new Shard(i, 3).select(reversed));
+        }
+    }
+
+    @Test
+    public void singleShardSelectsEverything() {
+        assertEquals(WEIGHTS.keySet(), new Shard(1, 1).select(WEIGHTS));
+    }
+}